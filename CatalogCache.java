@@ -0,0 +1,327 @@
+/* Group E CS390DB Fall 2013 */
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Size bounded LRU cache of the directors and cast of movies, keyed by movie
+ * id. The imdb catalog practically never changes, so once a movie's people
+ * have been read they can be reused by every later search.
+ *
+ * Each movie is stored as one compact UTF-8 encoded byte array instead of an
+ * object graph; the index and the LRU list live in primitive arrays. The
+ * cache evicts least recently used movies once the encoded records exceed
+ * the byte budget. Thread safe.
+ */
+public class CatalogCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/* rough per entry overhead on top of the record: array header + slot */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/**
+	 * the decoded directors and cast of one movie
+	 */
+	public static class Entry {
+		public final String[] directorFirst;
+		public final String[] directorLast;
+		public final String[] actorFirst;
+		public final String[] actorLast;
+		public final String[] actorGender;
+
+		public Entry(String[] directorFirst, String[] directorLast,
+				String[] actorFirst, String[] actorLast, String[] actorGender) {
+			this.directorFirst = directorFirst;
+			this.directorLast = directorLast;
+			this.actorFirst = actorFirst;
+			this.actorLast = actorLast;
+			this.actorGender = actorGender;
+		}
+	}
+
+	/**
+	 * collects the people of one movie while its rows are read
+	 */
+	public static class Builder {
+		private String[] dirs = new String[8];
+		private int nDirs = 0;
+		private String[] actors = new String[24];
+		private int nActors = 0;
+
+		public void director(String fname, String lname) {
+			if (nDirs + 2 > dirs.length) {
+				dirs = Arrays.copyOf(dirs, dirs.length * 2);
+			}
+			dirs[nDirs++] = fname;
+			dirs[nDirs++] = lname;
+		}
+
+		public void actor(String fname, String lname, String gender) {
+			if (nActors + 3 > actors.length) {
+				actors = Arrays.copyOf(actors, actors.length * 2);
+			}
+			actors[nActors++] = fname;
+			actors[nActors++] = lname;
+			actors[nActors++] = gender;
+		}
+
+		public Entry build() {
+			int d = nDirs / 2, a = nActors / 3;
+			Entry e = new Entry(new String[d], new String[d], new String[a],
+					new String[a], new String[a]);
+			for (int i = 0; i < d; i++) {
+				e.directorFirst[i] = dirs[2 * i];
+				e.directorLast[i] = dirs[2 * i + 1];
+			}
+			for (int i = 0; i < a; i++) {
+				e.actorFirst[i] = actors[3 * i];
+				e.actorLast[i] = actors[3 * i + 1];
+				e.actorGender[i] = actors[3 * i + 2];
+			}
+			return e;
+		}
+	}
+
+	private final long budget;
+
+	/* movie id -> slot */
+	private final IntIntMap slots = new IntIntMap(1024);
+	/* per slot: movie id, record, and the LRU list (head = most recent) */
+	private int[] mids = new int[1024];
+	private byte[][] records = new byte[1024][];
+	private int[] prev = new int[1024];
+	private int[] next = new int[1024];
+	private int head = -1;
+	private int tail = -1;
+	private int used = 0;
+	private int[] freeSlots = new int[16];
+	private int nFree = 0;
+
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param budget
+	 *            most bytes of records to keep
+	 */
+	public CatalogCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * the people of movie mid, or null if it is not cached
+	 */
+	public Entry get(int mid) {
+		byte[] record;
+		synchronized (this) {
+			int slot = slots.get(mid, -1);
+			if (slot < 0) {
+				misses++;
+				return null;
+			}
+			hits++;
+			unlink(slot);
+			pushFront(slot);
+			record = records[slot];
+		}
+		return decode(record);
+	}
+
+	public void put(int mid, Entry entry) {
+		byte[] record = encode(entry);
+		synchronized (this) {
+			int slot = slots.get(mid, -1);
+			if (slot >= 0) {
+				bytes -= records[slot].length + ENTRY_OVERHEAD;
+				unlink(slot);
+			} else {
+				slot = allocate();
+				slots.put(mid, slot);
+				mids[slot] = mid;
+			}
+			records[slot] = record;
+			bytes += record.length + ENTRY_OVERHEAD;
+			pushFront(slot);
+			while (bytes > budget && tail != slot) {
+				evict(tail);
+			}
+		}
+	}
+
+	private void evict(int slot) {
+		unlink(slot);
+		slots.remove(mids[slot], -1);
+		bytes -= records[slot].length + ENTRY_OVERHEAD;
+		records[slot] = null;
+		if (nFree == freeSlots.length) {
+			freeSlots = Arrays.copyOf(freeSlots, nFree * 2);
+		}
+		freeSlots[nFree++] = slot;
+		evictions++;
+	}
+
+	private int allocate() {
+		if (nFree > 0) {
+			return freeSlots[--nFree];
+		}
+		if (used == mids.length) {
+			int n = used * 2;
+			mids = Arrays.copyOf(mids, n);
+			records = Arrays.copyOf(records, n);
+			prev = Arrays.copyOf(prev, n);
+			next = Arrays.copyOf(next, n);
+		}
+		return used++;
+	}
+
+	private void unlink(int slot) {
+		if (prev[slot] >= 0) {
+			next[prev[slot]] = next[slot];
+		} else {
+			head = next[slot];
+		}
+		if (next[slot] >= 0) {
+			prev[next[slot]] = prev[slot];
+		} else {
+			tail = prev[slot];
+		}
+	}
+
+	private void pushFront(int slot) {
+		prev[slot] = -1;
+		next[slot] = head;
+		if (head >= 0) {
+			prev[head] = slot;
+		}
+		head = slot;
+		if (tail < 0) {
+			tail = slot;
+		}
+	}
+
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+		return "catalog cache: " + slots.size() + " movies, " + bytes + "/"
+				+ budget + " bytes, " + hits + " hits, " + misses + " misses, "
+				+ evictions + " evictions";
+	}
+
+	/*
+	 * record layout: director count, actor count, then for every director
+	 * fname, lname and for every actor fname, lname, gender. counts and string
+	 * lengths are varints; a string is stored as length + 1 so 0 means null
+	 */
+
+	private static byte[] encode(Entry e) {
+		int d = e.directorFirst.length, a = e.actorFirst.length;
+		byte[][] parts = new byte[2 * d + 3 * a][];
+		int p = 0;
+		for (int i = 0; i < d; i++) {
+			parts[p++] = bytes(e.directorFirst[i]);
+			parts[p++] = bytes(e.directorLast[i]);
+		}
+		for (int i = 0; i < a; i++) {
+			parts[p++] = bytes(e.actorFirst[i]);
+			parts[p++] = bytes(e.actorLast[i]);
+			parts[p++] = bytes(e.actorGender[i]);
+		}
+		int size = varintSize(d) + varintSize(a);
+		for (byte[] part : parts) {
+			size += part == null ? 1 : varintSize(part.length + 1) + part.length;
+		}
+		byte[] out = new byte[size];
+		int at = writeVarint(out, 0, d);
+		at = writeVarint(out, at, a);
+		for (byte[] part : parts) {
+			if (part == null) {
+				out[at++] = 0;
+			} else {
+				at = writeVarint(out, at, part.length + 1);
+				System.arraycopy(part, 0, out, at, part.length);
+				at += part.length;
+			}
+		}
+		return out;
+	}
+
+	private static Entry decode(byte[] in) {
+		int[] at = new int[1];
+		int d = readVarint(in, at);
+		int a = readVarint(in, at);
+		Entry e = new Entry(new String[d], new String[d], new String[a],
+				new String[a], new String[a]);
+		for (int i = 0; i < d; i++) {
+			e.directorFirst[i] = readString(in, at);
+			e.directorLast[i] = readString(in, at);
+		}
+		for (int i = 0; i < a; i++) {
+			e.actorFirst[i] = readString(in, at);
+			e.actorLast[i] = readString(in, at);
+			e.actorGender[i] = readString(in, at);
+		}
+		return e;
+	}
+
+	private static byte[] bytes(String s) {
+		return s == null ? null : s.getBytes(UTF8);
+	}
+
+	private static String readString(byte[] in, int[] at) {
+		int len = readVarint(in, at) - 1;
+		if (len < 0) {
+			return null;
+		}
+		String s = new String(in, at[0], len, UTF8);
+		at[0] += len;
+		return s;
+	}
+
+	private static int varintSize(int v) {
+		int size = 1;
+		while ((v >>>= 7) != 0) {
+			size++;
+		}
+		return size;
+	}
+
+	private static int writeVarint(byte[] out, int at, int v) {
+		while ((v & ~0x7F) != 0) {
+			out[at++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out[at++] = (byte) v;
+		return at;
+	}
+
+	private static int readVarint(byte[] in, int[] at) {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in[at[0]++];
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+}
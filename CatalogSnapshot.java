@@ -0,0 +1,476 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Read only copy of the imdb catalog in one binary file, memory mapped, so
+ * movie titles, directors and cast can be read without the database. The
+ * pages belong to the OS page cache: opening a snapshot reads nothing up
+ * front, and every JVM on the host mapping the same file shares them.
+ *
+ * File layout, big endian:
+ *
+ * <pre>
+ * header    magic "VSCS", format version, created (millis), movie count,
+ *           offset of the table
+ * records   one per movie, ascending by id: name, year, then the directors
+ *           and cast in the record layout of CatalogCache
+ * table     movie ids int[count], ascending
+ *           record offsets int[count + 1], record i is [off[i], off[i + 1])
+ * </pre>
+ *
+ * Strings are a varint length + 1 (0 for null) followed by UTF-8 bytes.
+ * Export with
+ *
+ * <pre>
+ * java -cp target/classes:postgresql-9.2-1002.jdbc4.jar CatalogSnapshot catalog.snap
+ * </pre>
+ *
+ * which reads dbconn.config and replaces the file atomically, so running
+ * readers keep their old mapping.
+ */
+public class CatalogSnapshot {
+	public static final int MAGIC = 0x56534353; // "VSCS"
+	public static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String _movies_sql = "SELECT id, name, year FROM movie ORDER BY id";
+	private static final String _directors_sql = "SELECT r.mid, d.fname, d.lname "
+			+ "FROM movie_directors r, directors d WHERE r.did = d.id ORDER BY r.mid";
+	private static final String _actors_sql = "SELECT c.mid, a.fname, a.lname, a.gender "
+			+ "FROM casts c, actor a WHERE c.pid = a.id ORDER BY c.mid";
+
+	private final File file;
+	private final ByteBuffer data;
+	private final IntBuffer ids;
+	private final IntBuffer offsets;
+	private final int count;
+	private final long createdAt;
+
+	private CatalogSnapshot(File file, ByteBuffer data) throws IOException {
+		this.file = file;
+		this.data = data;
+		if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a catalog snapshot");
+		}
+		int version = data.getInt(4);
+		if (version != FORMAT_VERSION) {
+			throw new IOException(file + " has snapshot format " + version
+					+ ", this program reads format " + FORMAT_VERSION);
+		}
+		createdAt = data.getLong(8);
+		count = data.getInt(16);
+		int table = (int) data.getLong(20);
+		ByteBuffer b = data.duplicate();
+		b.position(table);
+		ids = b.slice().asIntBuffer();
+		ids.limit(count);
+		b.position(table + 4 * count);
+		offsets = b.slice().asIntBuffer();
+		offsets.limit(count + 1);
+	}
+
+	/**
+	 * maps the snapshot in file
+	 *
+	 * @throws IOException
+	 *             if it can't be read or is not a snapshot of this format
+	 */
+	public static CatalogSnapshot open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			/* the mapping stays valid after the channel is closed */
+			MappedByteBuffer map = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new CatalogSnapshot(file, map);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public long createdAt() {
+		return createdAt;
+	}
+
+	/**
+	 * position of movie mid in the snapshot, or -1 if there is no such movie
+	 */
+	public int find(int mid) {
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int m = (lo + hi) >>> 1;
+			int id = ids.get(m);
+			if (id < mid) {
+				lo = m + 1;
+			} else if (id > mid) {
+				hi = m - 1;
+			} else {
+				return m;
+			}
+		}
+		return -1;
+	}
+
+	public boolean hasMovie(int mid) {
+		return find(mid) >= 0;
+	}
+
+	/* the movie at position i */
+	public int id(int i) {
+		return ids.get(i);
+	}
+
+	public String name(int i) {
+		int[] at = { offsets.get(i) };
+		return readString(at);
+	}
+
+	public String year(int i) {
+		int[] at = { offsets.get(i) };
+		skipString(at);
+		return readString(at);
+	}
+
+	/**
+	 * the directors and cast of the movie at position i
+	 */
+	public CatalogCache.Entry people(int i) {
+		int[] at = { offsets.get(i) };
+		skipString(at);
+		skipString(at);
+		int d = readVarint(at);
+		int a = readVarint(at);
+		CatalogCache.Entry e = new CatalogCache.Entry(new String[d],
+				new String[d], new String[a], new String[a], new String[a]);
+		for (int k = 0; k < d; k++) {
+			e.directorFirst[k] = readString(at);
+			e.directorLast[k] = readString(at);
+		}
+		for (int k = 0; k < a; k++) {
+			e.actorFirst[k] = readString(at);
+			e.actorLast[k] = readString(at);
+			e.actorGender[k] = readString(at);
+		}
+		return e;
+	}
+
+	/**
+	 * ids of the movies whose title contains term, ignoring case, ascending,
+	 * by looking at every title. returns null if term uses LIKE wildcards,
+	 * like TitleIndex.search(). ASCII titles are compared in the mapped bytes
+	 * without decoding them
+	 */
+	public int[] search(String term) {
+		if (term.indexOf('%') >= 0 || term.indexOf('_') >= 0
+				|| term.indexOf('\\') >= 0) {
+			return null;
+		}
+		String lower = term.toLowerCase(Locale.ROOT);
+		char[] t = lower.toCharArray();
+		int[] result = new int[16];
+		int found = 0;
+		int[] at = new int[1];
+		for (int i = 0; i < count; i++) {
+			at[0] = offsets.get(i);
+			int len = readVarint(at) - 1;
+			if (len < t.length) {
+				continue;
+			}
+			boolean match;
+			int ascii = asciiContains(at[0], len, t);
+			if (ascii >= 0) {
+				match = ascii == 1;
+			} else {
+				at[0] = offsets.get(i);
+				match = readString(at).toLowerCase(Locale.ROOT).contains(lower);
+			}
+			if (match) {
+				if (found == result.length) {
+					result = Arrays.copyOf(result, found * 2);
+				}
+				result[found++] = ids.get(i);
+			}
+		}
+		return Arrays.copyOf(result, found);
+	}
+
+	/*
+	 * 1 if the ASCII string of len bytes at from contains t, 0 if not, -1 if
+	 * it is not all ASCII and has to be decoded
+	 */
+	private int asciiContains(int from, int len, char[] t) {
+		for (int i = 0; i < len; i++) {
+			if (data.get(from + i) < 0) {
+				return -1;
+			}
+		}
+		int last = from + len - t.length;
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < t.length
+					&& Character.toLowerCase((char) data.get(i + j)) == t[j]) {
+				j++;
+			}
+			if (j == t.length) {
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	private String readString(int[] at) {
+		int len = readVarint(at) - 1;
+		if (len < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[len];
+		for (int i = 0; i < len; i++) {
+			bytes[i] = data.get(at[0] + i);
+		}
+		at[0] += len;
+		return new String(bytes, UTF8);
+	}
+
+	private void skipString(int[] at) {
+		int len = readVarint(at) - 1;
+		if (len > 0) {
+			at[0] += len;
+		}
+	}
+
+	private int readVarint(int[] at) {
+		int v = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data.get(at[0]++);
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return v;
+	}
+
+	/**********************************************************/
+	/* export */
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: java CatalogSnapshot SNAPSHOT_FILE");
+			System.exit(1);
+		}
+		Properties config = new Properties();
+		config.load(new FileInputStream("dbconn.config"));
+		Class.forName(config.getProperty("postgreSQLDriver"));
+		Connection imdb = DriverManager.getConnection(
+				config.getProperty("imdbUrl"),
+				config.getProperty("postgreSQLUser"),
+				config.getProperty("postgreSQLPassword"));
+		try {
+			long start = System.currentTimeMillis();
+			int n = export(imdb, new File(args[0]));
+			System.out.println(n + " movies written to " + args[0] + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			imdb.close();
+		}
+	}
+
+	/**
+	 * writes the whole catalog to file, returns the number of movies. the
+	 * movies, directors and cast are read with three cursors sorted by movie
+	 * id and merged, so nothing but the offset table is held in memory. the
+	 * snapshot is written next to file and renamed over it when complete
+	 *
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static int export(Connection imdb, File file) throws SQLException,
+			IOException {
+		File tmp = new File(file.getAbsoluteFile().getParentFile(),
+				file.getName() + ".tmp");
+		int[] ids = new int[1 << 16];
+		int[] offsets = new int[(1 << 16) + 1];
+		int n = 0;
+		long created = System.currentTimeMillis();
+
+		boolean autoCommit = imdb.getAutoCommit();
+		/* the driver only fetches through a cursor inside a transaction */
+		imdb.setAutoCommit(false);
+		Statement movieStm = imdb.createStatement();
+		Statement dirStm = imdb.createStatement();
+		Statement actorStm = imdb.createStatement();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		boolean ok = false;
+		try {
+			movieStm.setFetchSize(10000);
+			dirStm.setFetchSize(10000);
+			actorStm.setFetchSize(10000);
+			ResultSet movies = movieStm.executeQuery(_movies_sql);
+			ResultSet directors = dirStm.executeQuery(_directors_sql);
+			ResultSet actors = actorStm.executeQuery(_actors_sql);
+			boolean moreDirs = directors.next();
+			boolean moreActors = actors.next();
+
+			out.write(new byte[HEADER_SIZE]);
+			long pos = HEADER_SIZE;
+			byte[] buf = new byte[1024];
+			while (movies.next()) {
+				int mid = movies.getInt(1);
+				CatalogCache.Builder people = new CatalogCache.Builder();
+				/* people of movies that are not in the movie table are skipped */
+				while (moreDirs && directors.getInt(1) <= mid) {
+					if (directors.getInt(1) == mid) {
+						people.director(directors.getString(2),
+								directors.getString(3));
+					}
+					moreDirs = directors.next();
+				}
+				while (moreActors && actors.getInt(1) <= mid) {
+					if (actors.getInt(1) == mid) {
+						people.actor(actors.getString(2), actors.getString(3),
+								actors.getString(4));
+					}
+					moreActors = actors.next();
+				}
+				CatalogCache.Entry e = people.build();
+
+				if (n == ids.length) {
+					ids = Arrays.copyOf(ids, n * 2);
+					offsets = Arrays.copyOf(offsets, n * 2 + 1);
+				}
+				ids[n] = mid;
+				offsets[n] = (int) pos;
+				n++;
+				int at = 0;
+				String[] strings = { movies.getString(2), movies.getString(3) };
+				for (String s : strings) {
+					buf = ensure(buf, at, s);
+					at = writeString(buf, at, s);
+				}
+				buf = ensure(buf, at, null);
+				at = writeVarint(buf, at, e.directorFirst.length);
+				at = writeVarint(buf, at, e.actorFirst.length);
+				for (int i = 0; i < e.directorFirst.length; i++) {
+					buf = ensure(buf, at, e.directorFirst[i]);
+					at = writeString(buf, at, e.directorFirst[i]);
+					buf = ensure(buf, at, e.directorLast[i]);
+					at = writeString(buf, at, e.directorLast[i]);
+				}
+				for (int i = 0; i < e.actorFirst.length; i++) {
+					buf = ensure(buf, at, e.actorFirst[i]);
+					at = writeString(buf, at, e.actorFirst[i]);
+					buf = ensure(buf, at, e.actorLast[i]);
+					at = writeString(buf, at, e.actorLast[i]);
+					buf = ensure(buf, at, e.actorGender[i]);
+					at = writeString(buf, at, e.actorGender[i]);
+				}
+				out.write(buf, 0, at);
+				pos += at;
+				if (pos > Integer.MAX_VALUE - 8L * (n + 1)) {
+					/* one mapping covers at most 2 GB */
+					throw new IOException("catalog too large for one snapshot");
+				}
+			}
+			movies.close();
+			directors.close();
+			actors.close();
+			offsets[n] = (int) pos;
+
+			long table = pos;
+			for (int i = 0; i < n; i++) {
+				out.writeInt(ids[i]);
+			}
+			for (int i = 0; i <= n; i++) {
+				out.writeInt(offsets[i]);
+			}
+			out.close();
+
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.writeInt(MAGIC);
+				raf.writeInt(FORMAT_VERSION);
+				raf.writeLong(created);
+				raf.writeInt(n);
+				raf.writeLong(table);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+			if (!tmp.renameTo(file)) {
+				/* some platforms won't rename over an existing file */
+				if (!file.delete() || !tmp.renameTo(file)) {
+					throw new IOException("could not replace " + file);
+				}
+			}
+			ok = true;
+		} finally {
+			out.close();
+			if (!ok) {
+				tmp.delete();
+			}
+			movieStm.close();
+			dirStm.close();
+			actorStm.close();
+			imdb.commit();
+			imdb.setAutoCommit(autoCommit);
+		}
+		return n;
+	}
+
+	/* room in buf for s (as at most 3 bytes per char) plus two varints */
+	private static byte[] ensure(byte[] buf, int at, String s) {
+		int need = at + 10 + (s == null ? 0 : 3 * s.length());
+		if (need > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(need, buf.length * 2));
+		}
+		return buf;
+	}
+
+	private static int writeString(byte[] buf, int at, String s) {
+		if (s == null) {
+			buf[at++] = 0;
+			return at;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		at = writeVarint(buf, at, bytes.length + 1);
+		System.arraycopy(bytes, 0, buf, at, bytes.length);
+		return at + bytes.length;
+	}
+
+	private static int writeVarint(byte[] out, int at, int v) {
+		while ((v & ~0x7F) != 0) {
+			out[at++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out[at++] = (byte) v;
+		return at;
+	}
+}
@@ -0,0 +1,476 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * "Customers who rented this also rented": for every two movies, how many
+ * customers have rented both, over activerental and the rental history.
+ * Customers' movies are kept in sorted int arrays and the counts in one
+ * IntIntMap per movie, so nothing is boxed and the top movies for one movie
+ * only walk that movie's counts.
+ *
+ * The index is built in one pass over all rentals sorted by customer. After
+ * that Query calls rented() for each rental it commits; a return changes
+ * nothing, the movie stays in the customer's history. catchUp() adds the
+ * rentals other processes started since the last catch up, by dateout,
+ * from activerental and the history alike, so a rental returned and
+ * archived in between is not lost. It looks CATCH_UP_SLACK further back
+ * for rentals that committed late, and may see rentals that are counted
+ * already, which is harmless since a customer counts a movie only once.
+ *
+ * save() writes the index to a file and load() reads it back, so a restart
+ * only has to catch up on the rentals made since. File layout, big endian:
+ *
+ * <pre>
+ * header     magic "VSCR", format version, saved (millis), caught up to
+ *            (database time, millis), customer count, movie count
+ * customers  per customer: id, movie count, movie ids ascending
+ * movies     per movie: id, pair count, (other movie id, customers) pairs
+ * </pre>
+ *
+ * Thread safe.
+ */
+public class CoRentalIndex {
+	public static final int MAGIC = 0x56534352; // "VSCR"
+	public static final int FORMAT_VERSION = 2;
+
+	/*
+	 * dateout is when the renting transaction started, so one that commits
+	 * later than this after its start can be missed by a catch up
+	 */
+	private static final long CATCH_UP_SLACK = 5 * 60 * 1000;
+
+	private static final String _now_sql = "SELECT current_timestamp";
+	private static final String _rentals_sql = "SELECT cust_id, movie_id FROM activerental "
+			+ "UNION ALL SELECT cust_id, movie_id FROM rental_history ORDER BY 1, 2";
+	/*
+	 * a rental is returned after it starts, so the datein condition lets
+	 * postgres skip the history partitions of earlier months
+	 */
+	private static final String _rentals_since_sql = "SELECT cust_id, movie_id FROM activerental WHERE dateout >= ? "
+			+ "UNION ALL SELECT cust_id, movie_id FROM rental_history WHERE datein >= ? AND dateout >= ?";
+
+	/* customer id -> slot in movies / movieCount */
+	private final IntIntMap customerSlot;
+	private int[][] movies;
+	private int[] movieCount;
+	private int customers = 0;
+
+	/* movie id -> slot in pairs; pairs[slot] maps other movie -> customers */
+	private final IntIntMap movieSlot;
+	private IntIntMap[] pairs;
+	private int rentedMovies = 0;
+
+	/* database time up to which rentals have been read */
+	private long caughtUpTo = 0;
+	private long builtAt = System.currentTimeMillis();
+
+	private CoRentalIndex(int customers, int movies) {
+		customerSlot = new IntIntMap(customers);
+		this.movies = new int[Math.max(customers, 16)][];
+		movieCount = new int[this.movies.length];
+		movieSlot = new IntIntMap(movies);
+		pairs = new IntIntMap[Math.max(movies, 16)];
+	}
+
+	/**
+	 * an index of no rentals, filled with rented(); for tests
+	 */
+	static CoRentalIndex empty() {
+		return new CoRentalIndex(16, 16);
+	}
+
+	/**
+	 * builds the index from all rentals in the customer database. the
+	 * rentals are read through a cursor sorted by customer, so only one
+	 * customer's movies are held besides the index
+	 *
+	 * @throws SQLException
+	 */
+	public static CoRentalIndex build(Connection customer) throws SQLException {
+		CoRentalIndex index = new CoRentalIndex(1024, 1024);
+		boolean autoCommit = customer.getAutoCommit();
+		/* the driver only fetches through a cursor inside a transaction */
+		customer.setAutoCommit(false);
+		Statement stm = customer.createStatement();
+		try {
+			/* the time of this transaction's snapshot */
+			index.caughtUpTo = now(stm);
+			stm.setFetchSize(10000);
+			ResultSet rentals = stm.executeQuery(_rentals_sql);
+			int cid = 0;
+			int[] mids = new int[64];
+			int n = 0;
+			while (rentals.next()) {
+				int c = rentals.getInt(1);
+				int mid = rentals.getInt(2);
+				if (n > 0 && c != cid) {
+					index.addCustomer(cid, mids, n);
+					n = 0;
+				}
+				cid = c;
+				/* sorted, so renting a movie twice shows up as a repeat */
+				if (n > 0 && mids[n - 1] == mid) {
+					continue;
+				}
+				if (n == mids.length) {
+					mids = Arrays.copyOf(mids, n * 2);
+				}
+				mids[n++] = mid;
+			}
+			if (n > 0) {
+				index.addCustomer(cid, mids, n);
+			}
+			rentals.close();
+		} finally {
+			stm.close();
+			customer.commit();
+			customer.setAutoCommit(autoCommit);
+		}
+		index.builtAt = System.currentTimeMillis();
+		return index;
+	}
+
+	/* a customer not in the index yet with the n distinct sorted mids */
+	private void addCustomer(int cid, int[] mids, int n) {
+		for (int i = 0; i < n; i++) {
+			IntIntMap a = pairsOf(mids[i]);
+			for (int j = 0; j < n; j++) {
+				if (j != i) {
+					a.add(mids[j], 1);
+				}
+			}
+		}
+		int slot = slotOf(cid);
+		movies[slot] = Arrays.copyOf(mids, Math.max(n, 4));
+		movieCount[slot] = n;
+	}
+
+	private int slotOf(int cid) {
+		int slot = customerSlot.get(cid, -1);
+		if (slot < 0) {
+			slot = customers++;
+			if (slot == movies.length) {
+				movies = Arrays.copyOf(movies, slot * 2);
+				movieCount = Arrays.copyOf(movieCount, slot * 2);
+			}
+			movies[slot] = new int[4];
+			customerSlot.put(cid, slot);
+		}
+		return slot;
+	}
+
+	private IntIntMap pairsOf(int mid) {
+		int slot = movieSlot.get(mid, -1);
+		if (slot < 0) {
+			slot = rentedMovies++;
+			if (slot == pairs.length) {
+				pairs = Arrays.copyOf(pairs, slot * 2);
+			}
+			pairs[slot] = new IntIntMap(8);
+			movieSlot.put(mid, slot);
+		}
+		return pairs[slot];
+	}
+
+	/**
+	 * counts cid renting mid, for a rental that just committed. returns
+	 * false if cid had rented mid before, which changes nothing
+	 */
+	public synchronized boolean rented(int cid, int mid) {
+		int slot = slotOf(cid);
+		int[] own = movies[slot];
+		int n = movieCount[slot];
+		int at = Arrays.binarySearch(own, 0, n, mid);
+		if (at >= 0) {
+			return false;
+		}
+		at = -at - 1;
+		IntIntMap a = pairsOf(mid);
+		for (int i = 0; i < n; i++) {
+			a.add(own[i], 1);
+			pairsOf(own[i]).add(mid, 1);
+		}
+		if (n == own.length) {
+			own = Arrays.copyOf(own, n * 2);
+			movies[slot] = own;
+		}
+		System.arraycopy(own, at, own, at + 1, n - at);
+		own[at] = mid;
+		movieCount[slot] = n + 1;
+		return true;
+	}
+
+	private static long now(Statement stm) throws SQLException {
+		ResultSet now = stm.executeQuery(_now_sql);
+		now.next();
+		long t = now.getTimestamp(1).getTime();
+		now.close();
+		return t;
+	}
+
+	/**
+	 * adds the rentals started since the last catch up (or the build or
+	 * save), by any process. returns how many were new to the index
+	 *
+	 * @throws SQLException
+	 */
+	public int catchUp(Connection customer) throws SQLException {
+		Timestamp since;
+		synchronized (this) {
+			since = new Timestamp(Math.max(0, caughtUpTo - CATCH_UP_SLACK));
+		}
+		Statement stm = customer.createStatement();
+		PreparedStatement ps = customer.prepareStatement(_rentals_since_sql);
+		int added = 0;
+		try {
+			/* read before the rentals, so the next catch up overlaps this one */
+			long until = now(stm);
+			ps.setTimestamp(1, since);
+			ps.setTimestamp(2, since);
+			ps.setTimestamp(3, since);
+			ResultSet rentals = ps.executeQuery();
+			while (rentals.next()) {
+				if (rented(rentals.getInt(1), rentals.getInt(2))) {
+					added++;
+				}
+			}
+			rentals.close();
+			synchronized (this) {
+				caughtUpTo = Math.max(caughtUpTo, until);
+			}
+		} finally {
+			ps.close();
+			stm.close();
+		}
+		return added;
+	}
+
+	/**
+	 * the (at most) k movies most often rented by customers who rented mid,
+	 * most customers first, then by id. their ids and customer counts go
+	 * into ids and counts; returns how many there are
+	 */
+	public synchronized int similar(int mid, int k, int[] ids, int[] counts) {
+		int slot = movieSlot.get(mid, -1);
+		if (slot < 0 || k <= 0) {
+			return 0;
+		}
+		TopK top = new TopK(k);
+		pairs[slot].forEach(top);
+		return top.drain(ids, counts);
+	}
+
+	/**
+	 * keeps the best k entries it visits in a heap with the worst on top
+	 */
+	private static class TopK implements IntIntMap.Visitor {
+		private final int[] ids;
+		private final int[] counts;
+		private int n = 0;
+
+		TopK(int k) {
+			ids = new int[k];
+			counts = new int[k];
+		}
+
+		/* whether entry i ranks below entry j */
+		private boolean worse(int i, int j) {
+			return counts[i] < counts[j] || counts[i] == counts[j]
+					&& ids[i] > ids[j];
+		}
+
+		public void visit(int id, int count) {
+			if (n < ids.length) {
+				ids[n] = id;
+				counts[n] = count;
+				int i = n++;
+				while (i > 0 && worse(i, (i - 1) / 2)) {
+					swap(i, (i - 1) / 2);
+					i = (i - 1) / 2;
+				}
+			} else if (count > counts[0] || count == counts[0] && id < ids[0]) {
+				ids[0] = id;
+				counts[0] = count;
+				siftDown(0, n);
+			}
+		}
+
+		private void siftDown(int i, int size) {
+			while (true) {
+				int child = 2 * i + 1;
+				if (child >= size) {
+					return;
+				}
+				if (child + 1 < size && worse(child + 1, child)) {
+					child++;
+				}
+				if (!worse(child, i)) {
+					return;
+				}
+				swap(i, child);
+				i = child;
+			}
+		}
+
+		private void swap(int i, int j) {
+			int id = ids[i];
+			int count = counts[i];
+			ids[i] = ids[j];
+			counts[i] = counts[j];
+			ids[j] = id;
+			counts[j] = count;
+		}
+
+		/* best first */
+		int drain(int[] toIds, int[] toCounts) {
+			int size = n;
+			for (int i = size - 1; i >= 0; i--) {
+				toIds[i] = ids[0];
+				toCounts[i] = counts[0];
+				swap(0, i);
+				siftDown(0, i);
+			}
+			return size;
+		}
+	}
+
+	public synchronized int customers() {
+		return customers;
+	}
+
+	public synchronized int movies() {
+		return rentedMovies;
+	}
+
+	public long builtAt() {
+		return builtAt;
+	}
+
+	/* persistence */
+
+	/**
+	 * writes the index next to file and renames it over file when complete,
+	 * like CatalogSnapshot.export()
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save(File file) throws IOException {
+		File tmp = new File(file.getAbsoluteFile().getParentFile(),
+				file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 16));
+		boolean ok = false;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(System.currentTimeMillis());
+			out.writeLong(caughtUpTo);
+			out.writeInt(customers);
+			out.writeInt(rentedMovies);
+			for (int cid : customerSlot.keys()) {
+				int slot = customerSlot.get(cid, -1);
+				out.writeInt(cid);
+				out.writeInt(movieCount[slot]);
+				for (int i = 0; i < movieCount[slot]; i++) {
+					out.writeInt(movies[slot][i]);
+				}
+			}
+			for (int mid : movieSlot.keys()) {
+				IntIntMap a = pairs[movieSlot.get(mid, -1)];
+				out.writeInt(mid);
+				out.writeInt(a.size());
+				for (int other : a.keys()) {
+					out.writeInt(other);
+					out.writeInt(a.get(other, 0));
+				}
+			}
+			out.close();
+			if (!tmp.renameTo(file)) {
+				/* some platforms won't rename over an existing file */
+				if (!file.delete() || !tmp.renameTo(file)) {
+					throw new IOException("could not replace " + file);
+				}
+			}
+			ok = true;
+		} finally {
+			out.close();
+			if (!ok) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * reads an index written by save(). it is as old as the file, see
+	 * catchUp()
+	 *
+	 * @throws IOException
+	 *             if it can't be read or is not an index of this format
+	 */
+	public static CoRentalIndex load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a co-rental index");
+			}
+			int version = in.readInt();
+			if (version != FORMAT_VERSION) {
+				throw new IOException(file + " has index format " + version
+						+ ", this program reads format " + FORMAT_VERSION);
+			}
+			long saved = in.readLong();
+			long caughtUpTo = in.readLong();
+			int customers = in.readInt();
+			int movies = in.readInt();
+			CoRentalIndex index = new CoRentalIndex(customers, movies);
+			index.caughtUpTo = caughtUpTo;
+			index.builtAt = saved;
+			for (int i = 0; i < customers; i++) {
+				int slot = index.slotOf(in.readInt());
+				int n = in.readInt();
+				int[] mids = new int[Math.max(n, 4)];
+				for (int j = 0; j < n; j++) {
+					mids[j] = in.readInt();
+				}
+				index.movies[slot] = mids;
+				index.movieCount[slot] = n;
+			}
+			for (int i = 0; i < movies; i++) {
+				int mid = in.readInt();
+				int n = in.readInt();
+				IntIntMap a = new IntIntMap(n);
+				for (int j = 0; j < n; j++) {
+					int other = in.readInt();
+					a.put(other, in.readInt());
+				}
+				int slot = index.rentedMovies++;
+				index.pairs[slot] = a;
+				index.movieSlot.put(mid, slot);
+			}
+			return index;
+		} finally {
+			in.close();
+		}
+	}
+
+	public synchronized String toString() {
+		return "co-rental index: " + customers + " customers, "
+				+ rentedMovies + " movies, caught up to "
+				+ new Timestamp(caughtUpTo);
+	}
+}
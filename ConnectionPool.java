@@ -0,0 +1,372 @@
+/* Group E CS390DB Fall 2013 */
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded pool of connections to one postgres database. Connections are
+ * created on demand up to maxSize, handed out with borrow() and given back
+ * with release(). Idle connections are validated before reuse and closed
+ * once they have been idle longer than idleTimeout. Each pooled connection
+ * keeps its own cache of prepared statements so a statement is only
+ * prepared once per backend.
+ */
+public class ConnectionPool {
+
+	/**
+	 * a physical connection plus the statements prepared on it
+	 */
+	public static class PooledConnection implements
+			StatementStats.RoundTripCounter {
+		private final ConnectionPool pool;
+		private final Connection conn;
+		private final Map<String, PreparedStatement> statements;
+		private long lastUsed;
+		private long roundTrips;
+
+		private PooledConnection(ConnectionPool pool, Connection conn) {
+			this.pool = pool;
+			this.conn = conn;
+			this.lastUsed = System.currentTimeMillis();
+			final int max = pool.maxStatements;
+			this.statements = new LinkedHashMap<String, PreparedStatement>(
+					16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, PreparedStatement> eldest) {
+					if (size() > max) {
+						closeQuietly(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+		}
+
+		public Connection getConnection() {
+			return conn;
+		}
+
+		/**
+		 * returns the statement for sql, preparing it on this connection the
+		 * first time it is asked for
+		 *
+		 * @throws SQLException
+		 */
+		public PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stm = statements.get(sql);
+			if (stm == null) {
+				stm = conn.prepareStatement(sql);
+				if (pool.stats != null) {
+					stm = pool.stats.wrap(sql, stm, this);
+				}
+				statements.put(sql, stm);
+			}
+			return stm;
+		}
+
+		public ConnectionPool getPool() {
+			return pool;
+		}
+
+		public void roundTrip() {
+			roundTrips++;
+		}
+
+		/**
+		 * statements executed on this connection so far, when the pool keeps
+		 * statistics
+		 */
+		public long getRoundTrips() {
+			return roundTrips;
+		}
+
+		private void closePhysical() {
+			for (PreparedStatement stm : statements.values()) {
+				closeQuietly(stm);
+			}
+			statements.clear();
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// already broken, nothing to do
+			}
+		}
+
+		private static void closeQuietly(PreparedStatement stm) {
+			try {
+				stm.close();
+			} catch (SQLException e) {
+				// statement is gone either way
+			}
+		}
+	}
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int maxSize;
+	private final long idleTimeout;
+	private final long borrowTimeout;
+	private final int maxStatements;
+
+	/* isolation level of new connections, -1 for the driver's default */
+	private volatile int isolation = -1;
+
+	/* records every statement prepared from now on, if set */
+	private volatile StatementStats stats;
+
+	/* idle connections, most recently released first */
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<PooledConnection>();
+	private int total = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param url
+	 *            jdbc url of the database
+	 * @param maxSize
+	 *            most physical connections this pool will ever open
+	 * @param idleTimeout
+	 *            milliseconds an idle connection is kept before eviction
+	 * @param borrowTimeout
+	 *            milliseconds borrow() waits for a free connection
+	 * @param maxStatements
+	 *            prepared statements cached per connection
+	 */
+	public ConnectionPool(String url, String user, String password,
+			int maxSize, long idleTimeout, long borrowTimeout, int maxStatements) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.borrowTimeout = borrowTimeout;
+		this.maxStatements = maxStatements;
+	}
+
+	/**
+	 * opens n connections up front so the first transactions don't pay for
+	 * connection setup
+	 *
+	 * @throws SQLException
+	 */
+	public void warmUp(int n) throws SQLException {
+		ArrayList<PooledConnection> opened = new ArrayList<PooledConnection>();
+		try {
+			for (int i = 0; i < n; i++) {
+				opened.add(borrow());
+			}
+		} finally {
+			for (PooledConnection pc : opened) {
+				release(pc, true);
+			}
+		}
+	}
+
+	/**
+	 * hand out a healthy connection, opening a new one if the pool is not
+	 * full, otherwise waiting up to borrowTimeout for one to be released
+	 *
+	 * @throws SQLException
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+		while (true) {
+			PooledConnection candidate = null;
+			boolean create = false;
+			List<PooledConnection> evicted = null;
+			try {
+				synchronized (this) {
+					if (closed) {
+						throw new SQLException("connection pool is closed");
+					}
+					evicted = evictIdle();
+					if (!idle.isEmpty()) {
+						candidate = idle.pollFirst();
+					} else if (total < maxSize) {
+						total++;
+						create = true;
+					} else {
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							throw new SQLException("timed out waiting for a connection to "
+									+ url);
+						}
+						try {
+							wait(wait);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SQLException("interrupted waiting for a connection");
+						}
+						continue;
+					}
+				}
+			} finally {
+				closeAll(evicted);
+			}
+			if (create) {
+				try {
+					Connection conn = DriverManager.getConnection(url, user,
+							password);
+					if (isolation >= 0) {
+						conn.setTransactionIsolation(isolation);
+					}
+					return new PooledConnection(this, conn);
+				} catch (SQLException e) {
+					discarded();
+					throw e;
+				}
+			}
+			if (validate(candidate)) {
+				return candidate;
+			}
+			candidate.closePhysical();
+			discarded();
+		}
+	}
+
+	/**
+	 * like borrow(), but returns null instead of waiting when every connection
+	 * is in use, for callers that have a fallback
+	 *
+	 * @throws SQLException
+	 */
+	public PooledConnection tryBorrow() throws SQLException {
+		List<PooledConnection> evicted;
+		boolean full;
+		synchronized (this) {
+			evicted = evictIdle();
+			full = idle.isEmpty() && total >= maxSize;
+		}
+		closeAll(evicted);
+		return full ? null : borrow();
+	}
+
+	/**
+	 * give a borrowed connection back. healthy is false when the caller hit an
+	 * error and the session state of the connection can't be trusted, in which
+	 * case it is closed instead of reused
+	 */
+	public void release(PooledConnection pc, boolean healthy) {
+		boolean close;
+		synchronized (this) {
+			close = closed || !healthy;
+			if (!close) {
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+				notify();
+			}
+		}
+		if (close) {
+			pc.closePhysical();
+			discarded();
+		}
+	}
+
+	/**
+	 * transaction isolation (a Connection.TRANSACTION_ constant) for the
+	 * connections opened from now on, set once per connection rather than
+	 * once per transaction
+	 */
+	public void setTransactionIsolation(int level) {
+		this.isolation = level;
+	}
+
+	/**
+	 * wrap statements prepared from now on so their executions are recorded
+	 * in stats
+	 */
+	public void setStatementStats(StatementStats stats) {
+		this.stats = stats;
+	}
+
+	public synchronized int size() {
+		return total;
+	}
+
+	public synchronized int idleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * closes idle connections now; borrowed ones are closed as they come back
+	 */
+	public void close() {
+		ArrayList<PooledConnection> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<PooledConnection>(idle);
+			total -= idle.size();
+			idle.clear();
+			notifyAll();
+		}
+		for (PooledConnection pc : toClose) {
+			pc.closePhysical();
+		}
+	}
+
+	private synchronized void discarded() {
+		total--;
+		notify();
+	}
+
+	/**
+	 * take out the connections idle for longer than idleTimeout; oldest are
+	 * at the tail of the deque. caller holds the lock, and closes what this
+	 * returns (null if nothing) after letting go of it, so a slow close
+	 * doesn't hold up every borrow()
+	 */
+	private List<PooledConnection> evictIdle() {
+		long cutoff = System.currentTimeMillis() - idleTimeout;
+		List<PooledConnection> evicted = null;
+		Iterator<PooledConnection> it = idle.descendingIterator();
+		while (it.hasNext()) {
+			PooledConnection pc = it.next();
+			if (pc.lastUsed >= cutoff) {
+				break;
+			}
+			it.remove();
+			total--;
+			if (evicted == null) {
+				evicted = new ArrayList<PooledConnection>();
+			}
+			evicted.add(pc);
+		}
+		return evicted;
+	}
+
+	private static void closeAll(List<PooledConnection> connections) {
+		if (connections != null) {
+			for (PooledConnection pc : connections) {
+				pc.closePhysical();
+			}
+		}
+	}
+
+	/**
+	 * a connection that sat idle may have been dropped by the server, check
+	 * it before handing it out. recently used ones are trusted
+	 */
+	private boolean validate(PooledConnection pc) {
+		if (System.currentTimeMillis() - pc.lastUsed < 1000) {
+			return true;
+		}
+		try {
+			return !pc.conn.isClosed() && pc.conn.isValid(2);
+		} catch (SQLException e) {
+			return false;
+		} catch (AbstractMethodError e) {
+			/* pre JDBC4 driver without isValid() */
+			return true;
+		}
+	}
+}
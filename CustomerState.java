@@ -0,0 +1,115 @@
+/* Group E CS390DB Fall 2013 */
+
+/**
+ * What a session knows about its logged in customer: name, plan, plan limit
+ * and number of active rentals. Loaded once at login and then kept up to
+ * date by the session's own rent, return and plan transactions, so the menu
+ * doesn't have to ask the database before every prompt.
+ *
+ * version mirrors customer.version, which triggers in setup.sql bump on every
+ * rental, return and plan change. Our own changes bump the copy here as well;
+ * if the database ever holds a different number, someone else changed the
+ * customer and the state has to be reloaded.
+ */
+public class CustomerState {
+	private final int cid;
+	private final String name;
+	private int planId;
+	private int maxRentals;
+	private int activeRentals;
+	private int version;
+	private long loadedAt;
+	private boolean stale = false;
+
+	public CustomerState(int cid, String name, int planId, int maxRentals,
+			int activeRentals, int version) {
+		this.cid = cid;
+		this.name = name;
+		this.planId = planId;
+		this.maxRentals = maxRentals;
+		this.activeRentals = activeRentals;
+		this.version = version;
+		this.loadedAt = System.currentTimeMillis();
+	}
+
+	public int getCid() {
+		return cid;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getPlanId() {
+		return planId;
+	}
+
+	public int getMaxRentals() {
+		return maxRentals;
+	}
+
+	public int getActiveRentals() {
+		return activeRentals;
+	}
+
+	public int getRemainingRentals() {
+		return maxRentals - activeRentals;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * milliseconds since this state was last checked against the database
+	 */
+	public long age() {
+		return System.currentTimeMillis() - loadedAt;
+	}
+
+	/**
+	 * the database still has our version, trust the state for another while
+	 */
+	public void revalidated() {
+		loadedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * true once something showed the state may be out of date
+	 */
+	public boolean isStale() {
+		return stale;
+	}
+
+	public void markStale() {
+		stale = true;
+	}
+
+	/**
+	 * the session committed n new rentals
+	 */
+	public void rented(int n) {
+		activeRentals += n;
+		version += n;
+	}
+
+	/**
+	 * the session committed n returns
+	 */
+	public void returned(int n) {
+		activeRentals -= n;
+		version += n;
+	}
+
+	/**
+	 * the session switched to plan planId
+	 */
+	public void planChanged(int planId, int maxRentals) {
+		if (planId != this.planId) {
+			/* the plan_version trigger only bumps on a real change */
+			version++;
+		}
+		this.planId = planId;
+		this.maxRentals = maxRentals;
+	}
+}
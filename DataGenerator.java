@@ -0,0 +1,311 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Fills the imdb database (movie, actor, casts, directors, movie_directors)
+ * and the customer database (customer, address, activerental) with synthetic
+ * data, for benchmarks and load tests. The same seed and sizes always give
+ * the same data.
+ *
+ * The customer database must already have the schema from setup.sql; its
+ * customers, addresses and rentals are replaced. The imdb tables are dropped
+ * and recreated, which is why --reset has to be given, and their indexes
+ * from Migrations are created again after the load.
+ *
+ * Customer i logs in as "user<i>" / "pass<i>". user1 is on the largest plan
+ * and gets no generated rentals, and movies 1 to RESERVED_MOVIES are never
+ * rented, so benchmarks always have something to rent.
+ */
+public class DataGenerator {
+	public static final int RESERVED_MOVIES = 100;
+
+	/* title words, also the search terms of LoadSimulator */
+	static final String[] WORDS = { "the", "star", "wars", "matrix",
+			"return", "of", "king", "lord", "rings", "night", "day", "love",
+			"story", "dark", "knight", "rises", "lost", "city", "man", "woman",
+			"girl", "boy", "house", "river", "blue", "red", "last", "first",
+			"summer", "winter", "ghost", "dragon", "empire", "strikes", "back",
+			"new", "hope", "space", "odyssey", "god", "father", "part", "ii",
+			"iii", "big", "little", "secret", "life", "death", "time", "world",
+			"war", "peace", "dream", "street", "fire", "ice", "stone", "moon" };
+
+	private static final String[] FIRST = { "James", "Mary", "John",
+			"Patricia", "Robert", "Jennifer", "Michael", "Linda", "William",
+			"Elizabeth", "David", "Barbara", "Richard", "Susan", "Joseph",
+			"Jessica", "Thomas", "Sarah", "Charles", "Karen", "Akira", "Ingrid",
+			"Federico", "Agnes", "Satyajit" };
+
+	private static final String[] LAST = { "Smith", "Johnson", "Williams",
+			"Brown", "Jones", "Garcia", "Miller", "Davis", "Rodriguez",
+			"Martinez", "Hernandez", "Lopez", "Gonzalez", "Wilson", "Anderson",
+			"Thomas", "Taylor", "Moore", "Jackson", "Martin", "Kurosawa",
+			"Bergman", "Fellini", "Varda", "Ray" };
+
+	private static final int BATCH = 1000;
+
+	private int movies = 100000;
+	private int actors = 50000;
+	private int directors = 5000;
+	private int customers = 1000;
+	private int rentals = 500;
+	private long seed = 390;
+	private boolean reset = false;
+
+	public static void main(String[] args) throws Exception {
+		DataGenerator gen = new DataGenerator();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (a.equals("--reset")) {
+				gen.reset = true;
+			} else if (i + 1 < args.length && a.equals("--movies")) {
+				gen.movies = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--actors")) {
+				gen.actors = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--directors")) {
+				gen.directors = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--customers")) {
+				gen.customers = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--rentals")) {
+				gen.rentals = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--seed")) {
+				gen.seed = Long.parseLong(args[++i]);
+			} else {
+				usage();
+				System.exit(1);
+			}
+		}
+		if (!gen.reset) {
+			usage();
+			System.out.println("This replaces the imdb tables and all customers; "
+					+ "rerun with --reset to go ahead.");
+			System.exit(1);
+		}
+		gen.run();
+	}
+
+	public static void usage() {
+		System.out.println("Usage: java DataGenerator --reset [--movies N] "
+				+ "[--actors N] [--directors N] [--customers N] "
+				+ "[--rentals N] [--seed S]");
+	}
+
+	public void run() throws Exception {
+		Properties config = new Properties();
+		config.load(new FileInputStream("dbconn.config"));
+		Class.forName(config.getProperty("postgreSQLDriver"));
+		String user = config.getProperty("postgreSQLUser");
+		String password = config.getProperty("postgreSQLPassword");
+
+		Random random = new Random(seed);
+		Connection imdb = DriverManager.getConnection(
+				config.getProperty("imdbUrl"), user, password);
+		try {
+			generateCatalog(imdb, random);
+		} finally {
+			imdb.close();
+		}
+		Connection customer = DriverManager.getConnection(
+				config.getProperty("customerUrl"), user, password);
+		try {
+			generateCustomers(customer, random);
+		} finally {
+			customer.close();
+		}
+	}
+
+	private void generateCatalog(Connection imdb, Random random)
+			throws SQLException {
+		long start = System.currentTimeMillis();
+		Statement stm = imdb.createStatement();
+		stm.execute("DROP TABLE IF EXISTS movie, actor, casts, directors, movie_directors CASCADE");
+		stm.execute("CREATE TABLE movie (id integer PRIMARY KEY, name text, year integer)");
+		stm.execute("CREATE TABLE actor (id integer PRIMARY KEY, fname text, lname text, gender char(1))");
+		stm.execute("CREATE TABLE casts (pid integer, mid integer, role text)");
+		stm.execute("CREATE TABLE directors (id integer PRIMARY KEY, fname text, lname text)");
+		stm.execute("CREATE TABLE movie_directors (did integer, mid integer)");
+		stm.close();
+
+		imdb.setAutoCommit(false);
+		PreparedStatement actor = imdb.prepareStatement("INSERT INTO actor VALUES (?, ?, ?, ?)");
+		for (int id = 1; id <= actors; id++) {
+			actor.setInt(1, id);
+			actor.setString(2, pick(random, FIRST));
+			actor.setString(3, pick(random, LAST));
+			actor.setString(4, random.nextBoolean() ? "M" : "F");
+			batch(actor, id);
+		}
+		actor.executeBatch();
+		actor.close();
+
+		PreparedStatement director = imdb.prepareStatement("INSERT INTO directors VALUES (?, ?, ?)");
+		for (int id = 1; id <= directors; id++) {
+			director.setInt(1, id);
+			director.setString(2, pick(random, FIRST));
+			director.setString(3, pick(random, LAST));
+			batch(director, id);
+		}
+		director.executeBatch();
+		director.close();
+
+		PreparedStatement movie = imdb.prepareStatement("INSERT INTO movie VALUES (?, ?, ?)");
+		PreparedStatement directs = imdb.prepareStatement("INSERT INTO movie_directors VALUES (?, ?)");
+		PreparedStatement cast = imdb.prepareStatement("INSERT INTO casts VALUES (?, ?, ?)");
+		int castRows = 0;
+		int directRows = 0;
+		for (int id = 1; id <= movies; id++) {
+			movie.setInt(1, id);
+			movie.setString(2, title(random));
+			movie.setInt(3, 1920 + random.nextInt(95));
+			batch(movie, id);
+
+			int d = random.nextInt(10) == 0 ? 2 : 1;
+			for (int i = 0; i < d; i++) {
+				directs.setInt(1, 1 + random.nextInt(directors));
+				directs.setInt(2, id);
+				batch(directs, ++directRows);
+			}
+			int c = random.nextInt(16);
+			for (int i = 0; i < c; i++) {
+				cast.setInt(1, 1 + random.nextInt(actors));
+				cast.setInt(2, id);
+				cast.setString(3, "Role " + (i + 1));
+				batch(cast, ++castRows);
+			}
+		}
+		movie.executeBatch();
+		directs.executeBatch();
+		cast.executeBatch();
+		movie.close();
+		directs.close();
+		cast.close();
+		imdb.commit();
+		imdb.setAutoCommit(true);
+
+		/* the dropped tables took the migrated indexes with them */
+		Migrations.forget(imdb, Migrations.IMDB);
+		Migrations.migrate(imdb, Migrations.IMDB);
+
+		stm = imdb.createStatement();
+		stm.execute("ANALYZE");
+		stm.close();
+		System.out.println("imdb: " + movies + " movies, " + actors + " actors, "
+				+ directors + " directors, " + castRows + " cast rows in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private void generateCustomers(Connection db, Random random)
+			throws SQLException {
+		long start = System.currentTimeMillis();
+		Statement stm = db.createStatement();
+		stm.execute("TRUNCATE activerental, inactiverental, rental_return_queue, customer, address RESTART IDENTITY");
+		/* plans from setup.sql, skipping ones that allow no rentals */
+		ArrayList<int[]> plans = new ArrayList<int[]>();
+		ResultSet rs = stm.executeQuery("SELECT plan_id, maxrentals FROM rentalplan WHERE maxrentals > 0 ORDER BY maxrentals");
+		while (rs.next()) {
+			plans.add(new int[] { rs.getInt(1), rs.getInt(2) });
+		}
+		rs.close();
+		stm.close();
+		if (plans.isEmpty()) {
+			throw new SQLException("no rental plans, run setup.sql first");
+		}
+
+		db.setAutoCommit(false);
+		PreparedStatement address = db.prepareStatement("INSERT INTO address (street, city, state, zip) VALUES (?, ?, ?, ?)");
+		PreparedStatement customer = db.prepareStatement("INSERT INTO customer "
+				+ "(username, password, fname, lname, phone, plan_id, address_id) "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?)");
+		int[] limit = new int[customers + 1];
+		for (int i = 1; i <= customers; i++) {
+			address.setString(1, (1 + random.nextInt(999)) + " "
+					+ pick(random, LAST) + " Street");
+			address.setString(2, "Amherst");
+			address.setString(3, "Massachusetts");
+			address.setString(4, "01003");
+			batch(address, i);
+
+			int[] plan = i == 1 ? plans.get(plans.size() - 1) : plans
+					.get(random.nextInt(plans.size()));
+			limit[i] = plan[1];
+			customer.setString(1, "user" + i);
+			customer.setString(2, "pass" + i);
+			customer.setString(3, pick(random, FIRST));
+			customer.setString(4, pick(random, LAST));
+			customer.setString(5, String.format("413%07d", i));
+			customer.setInt(6, plan[0]);
+			customer.setInt(7, i);
+			/* address batches are flushed first, so the foreign key holds */
+			batch(customer, i);
+		}
+		address.executeBatch();
+		customer.executeBatch();
+		address.close();
+		customer.close();
+
+		PreparedStatement rent = db.prepareStatement("INSERT INTO activerental (movie_id, cust_id, dateout) "
+				+ "VALUES (?, ?, current_timestamp - ? * interval '1 hour')");
+		boolean[] rented = new boolean[movies + 1];
+		int[] count = new int[customers + 1];
+		int made = 0;
+		for (int attempt = 0; made < rentals && attempt < rentals * 10; attempt++) {
+			if (customers < 2 || movies <= RESERVED_MOVIES) {
+				break;
+			}
+			int cid = 2 + random.nextInt(customers - 1);
+			int mid = RESERVED_MOVIES + 1 + random.nextInt(movies - RESERVED_MOVIES);
+			if (rented[mid] || count[cid] >= limit[cid]) {
+				continue;
+			}
+			rented[mid] = true;
+			count[cid]++;
+			rent.setInt(1, mid);
+			rent.setInt(2, cid);
+			rent.setInt(3, random.nextInt(24 * 30));
+			batch(rent, ++made);
+		}
+		rent.executeBatch();
+		rent.close();
+		db.commit();
+		db.setAutoCommit(true);
+
+		stm = db.createStatement();
+		stm.execute("ANALYZE");
+		stm.close();
+		System.out.println("customer: " + customers + " customers, " + made
+				+ " active rentals in " + (System.currentTimeMillis() - start)
+				+ " ms");
+	}
+
+	private static void batch(PreparedStatement stm, int n) throws SQLException {
+		stm.addBatch();
+		if (n % BATCH == 0) {
+			stm.executeBatch();
+		}
+	}
+
+	private static String pick(Random random, String[] from) {
+		return from[random.nextInt(from.length)];
+	}
+
+	private static String title(Random random) {
+		int words = 1 + random.nextInt(4);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			String w = pick(random, WORDS);
+			if (i > 0) {
+				sb.append(' ');
+			}
+			sb.append(Character.toUpperCase(w.charAt(0))).append(w.substring(1));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,184 @@
+/* Group E CS390DB Fall 2013 */
+import java.util.Arrays;
+
+/**
+ * Hash map from int to int kept in two primitive arrays, so no Integer is
+ * ever boxed. Open addressing with linear probing; removal shifts the
+ * following entries back instead of leaving tombstones. Not thread safe.
+ */
+public class IntIntMap {
+	/* marks an empty slot, so this key itself can't be stored */
+	private static final int FREE = Integer.MIN_VALUE;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	public IntIntMap() {
+		this(16);
+	}
+
+	public IntIntMap(int expected) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private int slot(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * the value for key, or missing if there is none
+	 */
+	public int get(int key, int missing) {
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key) {
+				return values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return missing;
+	}
+
+	public boolean containsKey(int key) {
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	public void put(int key, int value) {
+		if (key == FREE) {
+			throw new IllegalArgumentException("key " + key + " is reserved");
+		}
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * 3 / 4) {
+			grow();
+		}
+	}
+
+	/**
+	 * adds delta to the value for key (0 if absent) and returns the sum
+	 */
+	public int add(int key, int delta) {
+		int value = get(key, 0) + delta;
+		put(key, value);
+		return value;
+	}
+
+	/**
+	 * removes key, returning its value or missing if it wasn't there
+	 */
+	public int remove(int key, int missing) {
+		int i = slot(key);
+		while (keys[i] != FREE) {
+			if (keys[i] == key) {
+				int value = values[i];
+				shiftBack(i);
+				size--;
+				return value;
+			}
+			i = (i + 1) & mask;
+		}
+		return missing;
+	}
+
+	/**
+	 * close the gap at slot free by moving back any later entry of the same
+	 * probe run that would otherwise become unreachable
+	 */
+	private void shiftBack(int free) {
+		int i = (free + 1) & mask;
+		while (keys[i] != FREE) {
+			int home = slot(keys[i]);
+			/* entry at i may move to free if free lies between home and i */
+			if (((i - home) & mask) >= ((i - free) & mask)) {
+				keys[free] = keys[i];
+				values[free] = values[i];
+				free = i;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[free] = FREE;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	/**
+	 * called with every entry by forEach()
+	 */
+	public interface Visitor {
+		void visit(int key, int value);
+	}
+
+	/**
+	 * passes every entry to v, in no particular order, without copying the
+	 * map. v must not change the map
+	 */
+	public void forEach(Visitor v) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				v.visit(keys[i], values[i]);
+			}
+		}
+	}
+
+	/**
+	 * the keys currently in the map, in no particular order
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != FREE) {
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,106 @@
+/* Group E CS390DB Fall 2013 */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non negative longs (latencies in microseconds, row counts)
+ * in the style of HdrHistogram: values below 32 get a bucket each, above
+ * that every power of two is split into 16 buckets, so any recorded value is
+ * off by at most 1/16 and the whole range of a long fits in under a thousand
+ * counters. Recording is lock free and allocation free; percentiles scan the
+ * buckets.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// lost the race to a concurrent record, look again
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * the smallest value such that at least fraction p (0 to 1) of the
+	 * recorded values are at or below it, to the precision of the buckets
+	 */
+	public long percentile(double p) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(p * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	static int index(long value) {
+		if (value < 2 * SUB) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) (value >>> shift) - SUB;
+	}
+
+	/* the lowest value that goes to bucket i */
+	static long lowest(int i) {
+		if (i < 2 * SUB) {
+			return i;
+		}
+		int shift = i / SUB - 1;
+		return (long) (SUB + i % SUB) << shift;
+	}
+
+	/* the highest value that goes to bucket i */
+	static long highest(int i) {
+		if (i < 2 * SUB) {
+			return i;
+		}
+		return i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,375 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives many customers through Query at the same time, to reproduce the
+ * contention of a busy store: customers racing for the same single copy of
+ * a popular movie, customers at their plan limit, bursts of plan changes.
+ *
+ * Every simulated customer is a thread with its own Query session on the
+ * shared connection pools, logged in as one of the DataGenerator customers
+ * (user2, user3, ...). It picks operations from the configured mix, movies
+ * from a Zipfian popularity distribution over the movie ids, and waits an
+ * exponentially distributed think time between operations. At the end it
+ * reports throughput, latency percentiles per operation and how the
+ * operations ended: conflicts, limits, rejected plan changes, constraint
+ * violations, serialization retries and errors.
+ *
+ * <pre>
+ * java -cp target/classes:postgresql-9.2-1002.jdbc4.jar LoadSimulator --customers 200 --duration 60
+ * </pre>
+ *
+ * Set poolSize in dbconn.config to the number of backends to use; with many
+ * more customers than connections they queue on the pool, as they would in
+ * the server.
+ */
+public class LoadSimulator {
+	private static final String[] OPS = { "search", "fastsearch", "rent",
+			"return", "plan" };
+	private static final int SEARCH = 0, FASTSEARCH = 1, RENT = 2, RETURN = 3,
+			PLAN = 4;
+
+	/* how operations ended, besides their latency */
+	private static final String[] OUTCOMES = { "ok", "out of stock",
+			"limit reached", "not rented", "plan rejected",
+			"constraint violation", "error" };
+	private static final int OK = 0, OUT_OF_STOCK = 1, LIMIT = 2,
+			NOT_RENTED = 3, PLAN_REJECTED = 4, CONSTRAINT = 5, ERROR = 6;
+
+	private int customers = 50;
+	private int firstCustomer = 2;
+	private long duration = 30;
+	private int movies = 100000;
+	private double zipf = 1.0;
+	private long think = 100;
+	private long seed = 390;
+	private int[] mix = { 20, 10, 35, 25, 10 };
+
+	private final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+	private final AtomicLong[][] outcomes = new AtomicLong[OPS.length][OUTCOMES.length];
+	private volatile boolean running = true;
+
+	/* cumulative zipf probabilities of the movie ranks */
+	private double[] cdf;
+	private int[] plans;
+
+	public static void main(String[] args) throws Exception {
+		LoadSimulator sim = new LoadSimulator();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 < args.length && a.equals("--customers")) {
+				sim.customers = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--first-customer")) {
+				sim.firstCustomer = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--duration")) {
+				sim.duration = Long.parseLong(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--movies")) {
+				sim.movies = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--zipf")) {
+				sim.zipf = Double.parseDouble(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--think")) {
+				sim.think = Long.parseLong(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--seed")) {
+				sim.seed = Long.parseLong(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--mix")) {
+				sim.mix = parseMix(args[++i]);
+			} else {
+				usage();
+				System.exit(1);
+			}
+		}
+		sim.run();
+	}
+
+	public static void usage() {
+		System.out.println("Usage: java LoadSimulator [--customers N] "
+				+ "[--first-customer I] [--duration SECONDS] [--movies N] "
+				+ "[--zipf S] [--think MS] [--seed S] "
+				+ "[--mix search=20,fastsearch=10,rent=35,return=25,plan=10]");
+	}
+
+	private static int[] parseMix(String spec) {
+		int[] mix = new int[OPS.length];
+		for (String part : spec.split(",")) {
+			String[] kv = part.split("=");
+			int op = Arrays.asList(OPS).indexOf(kv[0].trim());
+			if (kv.length != 2 || op < 0) {
+				throw new IllegalArgumentException("bad --mix entry '" + part
+						+ "'");
+			}
+			mix[op] = Integer.parseInt(kv[1].trim());
+		}
+		return mix;
+	}
+
+	public void run() throws Exception {
+		for (int i = 0; i < OPS.length; i++) {
+			latency[i] = new LatencyHistogram();
+			for (int j = 0; j < OUTCOMES.length; j++) {
+				outcomes[i][j] = new AtomicLong();
+			}
+		}
+		cdf = zipfCdf(movies, zipf);
+
+		/* keeps the pools open from the first login to the report */
+		Query anchor = new Query();
+		anchor.openConnection();
+		try {
+			anchor.prepareStatements();
+			plans = findPlans(anchor);
+			simulate();
+		} finally {
+			anchor.closeConnection();
+		}
+	}
+
+	private void simulate() throws Exception {
+		final CountDownLatch ready = new CountDownLatch(customers);
+		final CountDownLatch start = new CountDownLatch(1);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int c = 0; c < customers; c++) {
+			final int user = firstCustomer + c;
+			final Random random = new Random(seed * 31 + user);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						customer(user, random, ready, start);
+					} catch (Exception e) {
+						System.err.println("user" + user + ": " + e);
+					}
+				}
+			}, "customer-" + user);
+			t.setDaemon(true);
+			threads.add(t);
+			t.start();
+		}
+		ready.await();
+		long[] tx0 = Query.helper_tx_counts();
+		long began = System.nanoTime();
+		start.countDown();
+		Thread.sleep(duration * 1000);
+		running = false;
+		for (Thread t : threads) {
+			t.join();
+		}
+		double seconds = (System.nanoTime() - began) / 1e9;
+		long[] tx1 = Query.helper_tx_counts();
+		report(seconds, tx1[1] - tx0[1], tx1[2] - tx0[2]);
+	}
+
+	/**
+	 * one simulated customer, until the run is over
+	 *
+	 * @throws Exception
+	 */
+	private void customer(int user, Random random, CountDownLatch ready,
+			CountDownLatch start) throws Exception {
+		Query q = new Query();
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		q.setOutput(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}), new PrintStream(err, true, "UTF-8"));
+		boolean counted = false;
+		try {
+			q.openConnection();
+		} catch (Exception e) {
+			ready.countDown();
+			throw e;
+		}
+		try {
+			int cid = q.transaction_login("user" + user, "pass" + user);
+			ready.countDown();
+			counted = true;
+			start.await();
+			if (cid < 0) {
+				System.err.println("user" + user
+						+ " can't log in, load data with DataGenerator first");
+				return;
+			}
+			/* what this customer rented during the run, for its returns */
+			ArrayList<Integer> held = new ArrayList<Integer>();
+			int total = 0;
+			for (int w : mix) {
+				total += w;
+			}
+			while (running) {
+				int op = pick(random, total);
+				if (op == RETURN && held.isEmpty()) {
+					op = RENT;
+				}
+				int mid = 0;
+				err.reset();
+				long t0 = System.nanoTime();
+				int outcome = OK;
+				try {
+					switch (op) {
+					case SEARCH:
+						q.transaction_search(cid, term(random));
+						break;
+					case FASTSEARCH:
+						q.transaction_fast_search(cid, term(random));
+						break;
+					case RENT:
+						mid = movie(random);
+						q.transaction_rent(cid, mid);
+						break;
+					case RETURN:
+						mid = held.get(random.nextInt(held.size()));
+						q.transaction_return(cid, mid);
+						break;
+					default:
+						q.transaction_choose_plan(cid,
+								plans[random.nextInt(plans.length)]);
+					}
+					outcome = classify(err.toString("UTF-8"));
+				} catch (SQLException e) {
+					String state = e.getSQLState();
+					outcome = state != null && state.startsWith("23") ? CONSTRAINT
+							: ERROR;
+				} catch (Exception e) {
+					outcome = ERROR;
+				}
+				latency[op].record((System.nanoTime() - t0) / 1000);
+				outcomes[op][outcome].incrementAndGet();
+				if (op == RENT && outcome == OK) {
+					held.add(mid);
+				} else if (op == RETURN && (outcome == OK || outcome == NOT_RENTED)) {
+					held.remove(Integer.valueOf(mid));
+				}
+				if (think > 0) {
+					Thread.sleep((long) (-think * Math.log(1 - random.nextDouble())));
+				}
+			}
+			/* leave the store as we found it */
+			for (int m : held) {
+				q.transaction_return(cid, m);
+			}
+		} finally {
+			if (!counted) {
+				ready.countDown();
+			}
+			q.closeConnection();
+		}
+	}
+
+	private static int classify(String complaints) {
+		if (complaints.length() == 0) {
+			return OK;
+		} else if (complaints.contains("out of stock")) {
+			return OUT_OF_STOCK;
+		} else if (complaints.contains("limit")) {
+			return LIMIT;
+		} else if (complaints.contains("Can only return")) {
+			return NOT_RENTED;
+		} else if (complaints.contains("Plan not changed")) {
+			return PLAN_REJECTED;
+		}
+		return ERROR;
+	}
+
+	private int pick(Random random, int total) {
+		int r = random.nextInt(total);
+		for (int op = 0; op < mix.length; op++) {
+			r -= mix[op];
+			if (r < 0) {
+				return op;
+			}
+		}
+		return mix.length - 1;
+	}
+
+	/* movie ids by popularity: id 1 is the most popular */
+	private int movie(Random random) {
+		int rank = Arrays.binarySearch(cdf, random.nextDouble());
+		return (rank >= 0 ? rank : -rank - 1) + 1;
+	}
+
+	private static String term(Random random) {
+		return DataGenerator.WORDS[random.nextInt(DataGenerator.WORDS.length)];
+	}
+
+	private static double[] zipfCdf(int n, double s) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			sum += 1 / Math.pow(k + 1, s);
+			cdf[k] = sum;
+		}
+		for (int k = 0; k < n; k++) {
+			cdf[k] /= sum;
+		}
+		cdf[n - 1] = 1.0;
+		return cdf;
+	}
+
+	/* the plan ids the store offers, found by asking for the first few */
+	private static int[] findPlans(Query q) throws Exception {
+		int[] found = new int[0];
+		for (int pid = 1; pid <= 20; pid++) {
+			if (q.helper_check_plan(pid)) {
+				found = Arrays.copyOf(found, found.length + 1);
+				found[found.length - 1] = pid;
+			}
+		}
+		if (found.length == 0) {
+			throw new IllegalStateException("no rental plans, run setup.sql first");
+		}
+		return found;
+	}
+
+	private void report(double seconds, long retries, long aborts) {
+		long total = 0;
+		System.out.println(String.format("%-12s %9s %10s %10s %10s %10s %10s",
+				"operation", "count", "p50 ms", "p90 ms", "p99 ms", "p999 ms",
+				"max ms"));
+		for (int op = 0; op < OPS.length; op++) {
+			LatencyHistogram h = latency[op];
+			total += h.getCount();
+			System.out.println(String.format(
+					"%-12s %9d %10.2f %10.2f %10.2f %10.2f %10.2f", OPS[op],
+					h.getCount(), h.percentile(0.5) / 1000.0,
+					h.percentile(0.9) / 1000.0, h.percentile(0.99) / 1000.0,
+					h.percentile(0.999) / 1000.0, h.getMax() / 1000.0));
+		}
+		System.out.println();
+		StringBuilder head = new StringBuilder(String.format("%-12s", "outcome"));
+		for (String op : OPS) {
+			head.append(String.format(" %10s", op));
+		}
+		System.out.println(head);
+		for (int o = 0; o < OUTCOMES.length; o++) {
+			StringBuilder row = new StringBuilder(String.format("%-12s",
+					OUTCOMES[o].length() > 12 ? OUTCOMES[o].substring(0, 12)
+							: OUTCOMES[o]));
+			for (int op = 0; op < OPS.length; op++) {
+				row.append(String.format(" %10d", outcomes[op][o].get()));
+			}
+			System.out.println(row);
+		}
+		System.out.println();
+		System.out.println(String.format(
+				"%d customers, %d operations in %.1f s, %.1f ops/sec", customers,
+				total, seconds, total / seconds));
+		long failed = 0;
+		for (int op = 0; op < OPS.length; op++) {
+			failed += outcomes[op][CONSTRAINT].get() + outcomes[op][ERROR].get();
+		}
+		System.out.println("serialization failures: " + retries
+				+ " retried, " + aborts + " gave up after retries");
+		System.out.println("rollbacks: " + (retries + failed
+				+ outcomes[PLAN][PLAN_REJECTED].get())
+				+ " (serialization retries, failed operations, rejected plan changes)");
+	}
+}
@@ -0,0 +1,423 @@
+/* Group E CS390DB Fall 2013 */
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versioned schema changes on top of setup.sql and the imdb tables. Each
+ * database keeps the versions applied to it in schema_version, and every
+ * migration runs in its own transaction, so a process starting against an
+ * up to date database only reads that table. The statements themselves are
+ * idempotent as well, for databases where the same change was made by hand.
+ *
+ * Also checks the plans of the statements Query prepares, see explain().
+ *
+ *   java Migrations            apply what is missing
+ *   java Migrations --verify   apply, then fail on sequential scans of large tables
+ */
+public class Migrations {
+	public static final String IMDB = "imdb";
+	public static final String CUSTOMER = "customer";
+
+	/* held while migrating, so processes starting together take turns */
+	private static final long LOCK_KEY = 390020;
+
+	private static class Migration {
+		final int version;
+		final String database;
+		final String description;
+		final String[] sql;
+		/* may fail without stopping the others; it is retried next time */
+		boolean optional = false;
+
+		Migration(int version, String database, String description,
+				String... sql) {
+			this.version = version;
+			this.database = database;
+			this.description = description;
+			this.sql = sql;
+		}
+
+		Migration optional() {
+			optional = true;
+			return this;
+		}
+	}
+
+	/*
+	 * append only: a released version must never change, add a new one
+	 * instead. versions are shared by both databases so the log reads in
+	 * order
+	 */
+	private static final Migration[] MIGRATIONS = {
+			new Migration(1, CUSTOMER, "index activerental by customer",
+					createIndex("activerental_cid_idx",
+							"activerental (cust_id)")),
+			new Migration(2, CUSTOMER, "index customer by username",
+					createIndex("customer_username_idx",
+							"customer (username)")),
+			new Migration(3, IMDB, "index casts by movie",
+					createIndex("casts_mid_idx", "casts (mid)")),
+			new Migration(4, IMDB, "index movie_directors by movie",
+					createIndex("movie_directors_mid_idx",
+							"movie_directors (mid)")),
+			/*
+			 * ILIKE '%title%' can only use a trigram index. pg_trgm ships with
+			 * postgres but creating it needs the right privileges, without
+			 * them the searches keep working from a sequential scan and the
+			 * migration is tried again at the next start
+			 */
+			new Migration(5, IMDB, "trigram index on movie titles",
+					"CREATE EXTENSION IF NOT EXISTS pg_trgm",
+					createIndex("movie_name_trgm_idx",
+							"movie USING gin (name gin_trgm_ops)")).optional(),
+			/*
+			 * customer.active_rentals is kept equal to the customer's rows in
+			 * activerental by the trigger that bumps customer.version, and
+			 * customer.rental_limit to the maxrentals of the plan, so the
+			 * limit is a CHECK on one row instead of a count per rental.
+			 * check_outstanding() is dropped, the constraint does its job.
+			 * databases set up before customer.version existed get it and
+			 * its triggers here too, so they end up as setup.sql makes them
+			 */
+			new Migration(6, CUSTOMER, "maintained active rental counter",
+					addColumn("customer", "version",
+							"integer NOT NULL DEFAULT 0"),
+					addColumn("customer", "active_rentals",
+							"integer NOT NULL DEFAULT 0"),
+					addColumn("customer", "rental_limit", "integer"),
+					"DROP TRIGGER IF EXISTS check_overdue ON activerental",
+					"LOCK TABLE customer, activerental IN SHARE ROW EXCLUSIVE MODE",
+					"UPDATE customer c SET rental_limit = r.maxrentals, "
+							+ "active_rentals = (SELECT count(*) FROM activerental a WHERE a.cust_id = c.cust_id) "
+							+ "FROM rentalplan r WHERE r.plan_id = c.plan_id",
+					"DO $migration$ BEGIN "
+							+ "IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'customer_rental_limit_check') THEN "
+							+ "ALTER TABLE customer ADD CONSTRAINT customer_rental_limit_check "
+							+ "CHECK (active_rentals >= 0 AND active_rentals <= rental_limit); "
+							+ "END IF; END $migration$",
+					"CREATE OR REPLACE FUNCTION bump_customer_version() RETURNS trigger AS $rental_version$ "
+							+ "BEGIN "
+							+ "IF TG_OP = 'DELETE' OR TG_OP = 'UPDATE' THEN "
+							+ "UPDATE customer SET version = version + 1, active_rentals = active_rentals - 1 "
+							+ "WHERE cust_id = OLD.cust_id; "
+							+ "END IF; "
+							+ "IF TG_OP = 'INSERT' OR TG_OP = 'UPDATE' THEN "
+							+ "UPDATE customer SET version = version + 1, active_rentals = active_rentals + 1 "
+							+ "WHERE cust_id = NEW.cust_id; "
+							+ "END IF; "
+							+ "RETURN NULL; "
+							+ "END; $rental_version$ LANGUAGE plpgsql",
+					"DROP TRIGGER IF EXISTS rental_version ON activerental",
+					"CREATE TRIGGER rental_version AFTER INSERT OR UPDATE OR DELETE ON activerental "
+							+ "FOR EACH ROW EXECUTE PROCEDURE bump_customer_version()",
+					"CREATE OR REPLACE FUNCTION bump_plan_version() RETURNS trigger AS $plan_version$ "
+							+ "BEGIN "
+							+ "IF NEW.plan_id IS DISTINCT FROM OLD.plan_id THEN "
+							+ "NEW.version := OLD.version + 1; "
+							+ "END IF; "
+							+ "RETURN NEW; "
+							+ "END; $plan_version$ LANGUAGE plpgsql",
+					"DROP TRIGGER IF EXISTS plan_version ON customer",
+					"CREATE TRIGGER plan_version BEFORE UPDATE OF plan_id ON customer "
+							+ "FOR EACH ROW EXECUTE PROCEDURE bump_plan_version()",
+					/* the limit follows the plan, on a plan switch and when a plan changes */
+					"CREATE OR REPLACE FUNCTION set_rental_limit() RETURNS trigger AS $rental_limit$ "
+							+ "BEGIN "
+							+ "SELECT maxrentals INTO NEW.rental_limit FROM rentalplan WHERE plan_id = NEW.plan_id; "
+							+ "RETURN NEW; "
+							+ "END; $rental_limit$ LANGUAGE plpgsql",
+					"DROP TRIGGER IF EXISTS rental_limit ON customer",
+					"CREATE TRIGGER rental_limit BEFORE INSERT OR UPDATE OF plan_id ON customer "
+							+ "FOR EACH ROW EXECUTE PROCEDURE set_rental_limit()",
+					"CREATE OR REPLACE FUNCTION update_rental_limits() RETURNS trigger AS $plan_limit$ "
+							+ "BEGIN "
+							+ "UPDATE customer SET version = version + 1, rental_limit = NEW.maxrentals WHERE plan_id = NEW.plan_id; "
+							+ "RETURN NULL; "
+							+ "END; $plan_limit$ LANGUAGE plpgsql",
+					"DROP TRIGGER IF EXISTS plan_limit ON rentalplan",
+					"CREATE TRIGGER plan_limit AFTER UPDATE OF maxrentals ON rentalplan "
+							+ "FOR EACH ROW EXECUTE PROCEDURE update_rental_limits()",
+					/* reads the counter under the customer lock it already takes */
+					"CREATE OR REPLACE FUNCTION rent_movie(mid integer, cid integer) RETURNS integer AS $rent_movie$ "
+							+ "DECLARE outstanding integer; allowedrentals integer; "
+							+ "BEGIN "
+							+ "SELECT active_rentals, rental_limit INTO outstanding, allowedrentals "
+							+ "FROM customer WHERE cust_id = cid FOR UPDATE; "
+							+ "IF allowedrentals IS NULL OR outstanding >= allowedrentals THEN RETURN 1; END IF; "
+							+ "IF EXISTS (SELECT 1 FROM activerental WHERE movie_id = mid) THEN RETURN 2; END IF; "
+							+ "INSERT INTO activerental (movie_id, cust_id, dateout) VALUES (mid, cid, current_timestamp); "
+							+ "RETURN 0; "
+							+ "EXCEPTION WHEN unique_violation THEN RETURN 2; "
+							+ "END; $rent_movie$ LANGUAGE plpgsql",
+					/*
+					 * fixes and returns every customer whose counter differs
+					 * from activerental. each one is locked before it is
+					 * counted again; a rental in flight has to update the same
+					 * row, so it either is counted or waits for the fix
+					 */
+					"CREATE OR REPLACE FUNCTION reconcile_rental_counts() "
+							+ "RETURNS TABLE (cust integer, counter integer, rentals integer) AS $reconcile$ "
+							+ "DECLARE drifted integer; "
+							+ "BEGIN "
+							+ "FOR drifted IN SELECT c.cust_id FROM customer c "
+							+ "LEFT JOIN (SELECT a.cust_id, count(*) AS n FROM activerental a GROUP BY a.cust_id) r "
+							+ "ON r.cust_id = c.cust_id WHERE c.active_rentals <> coalesce(r.n, 0) LOOP "
+							+ "SELECT c.active_rentals INTO counter FROM customer c WHERE c.cust_id = drifted FOR UPDATE; "
+							+ "SELECT count(*) INTO rentals FROM activerental a WHERE a.cust_id = drifted; "
+							+ "IF counter <> rentals THEN "
+							+ "UPDATE customer c SET version = c.version + 1, active_rentals = rentals WHERE c.cust_id = drifted; "
+							+ "cust := drifted; "
+							+ "RETURN NEXT; "
+							+ "END IF; "
+							+ "END LOOP; "
+							+ "END; $reconcile$ LANGUAGE plpgsql"), };
+
+	/* postgres 9.2 has no CREATE INDEX IF NOT EXISTS */
+	private static String createIndex(String name, String definition) {
+		return "DO $migration$ BEGIN "
+				+ "IF NOT EXISTS (SELECT 1 FROM pg_class WHERE relname = '"
+				+ name + "') THEN CREATE INDEX " + name + " ON " + definition
+				+ "; END IF; END $migration$";
+	}
+
+	/* nor ADD COLUMN IF NOT EXISTS */
+	private static String addColumn(String table, String column,
+			String definition) {
+		return "DO $migration$ BEGIN "
+				+ "IF NOT EXISTS (SELECT 1 FROM information_schema.columns "
+				+ "WHERE table_name = '" + table + "' AND column_name = '"
+				+ column + "') THEN ALTER TABLE " + table + " ADD COLUMN "
+				+ column + " " + definition + "; END IF; END $migration$";
+	}
+
+	/**
+	 * applies the migrations of database ("imdb" or "customer") that conn
+	 * has not seen yet, in version order. returns how many were applied
+	 *
+	 * @throws SQLException
+	 */
+	public static int migrate(Connection conn, String database)
+			throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		Statement stm = conn.createStatement();
+		int applied = 0;
+		stm.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+		try {
+			createVersionTable(stm);
+			conn.setAutoCommit(false);
+			for (Migration m : MIGRATIONS) {
+				if (!m.database.equals(database)) {
+					continue;
+				}
+				ResultSet done = stm
+						.executeQuery("SELECT 1 FROM schema_version WHERE version = "
+								+ m.version);
+				boolean seen = done.next();
+				done.close();
+				if (!seen) {
+					try {
+						for (String sql : m.sql) {
+							stm.execute(sql);
+						}
+					} catch (SQLException e) {
+						if (!m.optional) {
+							throw e;
+						}
+						/* not recorded, so the next start tries again */
+						conn.rollback();
+						System.err.println("Skipped migration " + m.version
+								+ " (" + m.description + "): " + e.getMessage());
+						continue;
+					}
+					PreparedStatement log = conn
+							.prepareStatement("INSERT INTO schema_version (version, description) VALUES (?, ?)");
+					log.setInt(1, m.version);
+					log.setString(2, m.description);
+					log.executeUpdate();
+					log.close();
+					applied++;
+				}
+				conn.commit();
+			}
+		} catch (SQLException e) {
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+			}
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+			stm.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+			stm.close();
+		}
+		return applied;
+	}
+
+	private static void createVersionTable(Statement stm) throws SQLException {
+		stm.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+				+ "version integer PRIMARY KEY, description text NOT NULL, "
+				+ "applied_at timestamp NOT NULL DEFAULT current_timestamp)");
+	}
+
+	/**
+	 * forgets which migrations of database were applied, for when its tables
+	 * were dropped and created again (DataGenerator --reset) and took the
+	 * migrated indexes with them. the next migrate() applies them again
+	 *
+	 * @throws SQLException
+	 */
+	public static void forget(Connection conn, String database)
+			throws SQLException {
+		Statement stm = conn.createStatement();
+		try {
+			createVersionTable(stm);
+			PreparedStatement delete = conn
+					.prepareStatement("DELETE FROM schema_version WHERE version = ?");
+			for (Migration m : MIGRATIONS) {
+				if (m.database.equals(database)) {
+					delete.setInt(1, m.version);
+					delete.executeUpdate();
+				}
+			}
+			delete.close();
+		} finally {
+			stm.close();
+		}
+	}
+
+	/**
+	 * migrates both databases, each on a connection of its own
+	 *
+	 * @throws SQLException
+	 */
+	public static int migrate(String imdbUrl, String customerUrl,
+			String user, String password) throws SQLException {
+		int applied = 0;
+		Connection imdb = DriverManager.getConnection(imdbUrl, user, password);
+		try {
+			applied += migrate(imdb, IMDB);
+		} finally {
+			imdb.close();
+		}
+		Connection customer = DriverManager.getConnection(customerUrl, user,
+				password);
+		try {
+			applied += migrate(customer, CUSTOMER);
+		} finally {
+			customer.close();
+		}
+		return applied;
+	}
+
+	private static final Pattern SEQ_SCAN = Pattern
+			.compile("Seq Scan on (\\S+)");
+
+	/**
+	 * EXPLAINs each statement with a typical value for every parameter and
+	 * returns a complaint for every plan that scans a whole table of at
+	 * least minRows rows (as of the last ANALYZE). nothing is executed
+	 *
+	 * @throws SQLException
+	 */
+	public static List<String> explain(Connection conn, List<String> sqls,
+			long minRows) throws SQLException {
+		Set<String> large = new HashSet<String>();
+		PreparedStatement tables = conn
+				.prepareStatement("SELECT relname FROM pg_class WHERE relkind = 'r' AND reltuples >= ?");
+		tables.setLong(1, minRows);
+		ResultSet rs = tables.executeQuery();
+		while (rs.next()) {
+			large.add(rs.getString(1));
+		}
+		rs.close();
+		tables.close();
+
+		List<String> problems = new ArrayList<String>();
+		for (String sql : sqls) {
+			PreparedStatement stm = conn.prepareStatement("EXPLAIN " + sql);
+			try {
+				bindTypical(conn, stm);
+				ResultSet plan = stm.executeQuery();
+				while (plan.next()) {
+					Matcher m = SEQ_SCAN.matcher(plan.getString(1));
+					if (m.find() && large.contains(m.group(1))) {
+						problems.add("sequential scan on " + m.group(1) + ": "
+								+ sql);
+					}
+				}
+				plan.close();
+			} finally {
+				stm.close();
+			}
+		}
+		return problems;
+	}
+
+	/*
+	 * the planner picks by value, so these are values a real call would
+	 * pass: a selective title pattern, a single id, a short id list
+	 */
+	private static void bindTypical(Connection conn, PreparedStatement stm)
+			throws SQLException {
+		ParameterMetaData md = stm.getParameterMetaData();
+		for (int i = 1; i <= md.getParameterCount(); i++) {
+			switch (md.getParameterType(i)) {
+			case Types.INTEGER:
+			case Types.SMALLINT:
+				stm.setInt(i, 1);
+				break;
+			case Types.BIGINT:
+				stm.setLong(i, 1);
+				break;
+			case Types.VARCHAR:
+				stm.setString(i, "%star wars%");
+				break;
+			case Types.TIMESTAMP:
+				stm.setTimestamp(i, new Timestamp(System.currentTimeMillis()));
+				break;
+			case Types.ARRAY:
+				Array ids = conn.createArrayOf("int4", new Integer[] { 1, 2, 3 });
+				stm.setArray(i, ids);
+				break;
+			default:
+				stm.setNull(i, md.getParameterType(i));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Query q = new Query();
+		/* openConnection() applies the migrations */
+		q.openConnection();
+		List<String> problems = new ArrayList<String>();
+		try {
+			if (args.length > 0 && args[0].equals("--verify")) {
+				problems = q.helper_verify_plans();
+				for (String p : problems) {
+					System.err.println(p);
+				}
+				if (problems.isEmpty()) {
+					System.out.println("No statement scans a large table.");
+				}
+			}
+		} finally {
+			q.closeConnection();
+		}
+		if (!problems.isEmpty()) {
+			System.exit(1);
+		}
+	}
+}
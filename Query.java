@@ -1,13 +1,32 @@
 /* Group E CS390DB Fall 2013 */
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Runs queries against a back-end database
@@ -22,9 +41,46 @@ public class Query {
 	private static String postgreSQLUser;
 	private static String postgreSQLPassword;
 
-	// DB Connection
+	// DB Connection, only set while a transaction holds a lease
 	private Connection _imdb;
 	private Connection _customer_db;
+	private ConnectionPool.PooledConnection _imdb_lease;
+	private ConnectionPool.PooledConnection _customer_lease;
+	private int _lease_depth = 0;
+	private boolean _lease_ok = true;
+
+	/* the outermost transaction holding the lease, for statementStats */
+	private String _tx_name;
+	private long _tx_start;
+	private long _tx_trips;
+
+	/* where the transactions print, the console unless setOutput() was called */
+	private PrintStream _out = System.out;
+	private PrintStream _err = System.err;
+
+	/* result rows of the searches and rental lists go through here to _out */
+	private RowWriter _rows = new RowWriter(System.out, outputFormat);
+
+	/* the logged in customer, see helper_customer_state() */
+	private CustomerState _customer_state;
+
+	/* where the paged search stopped, see transaction_search_page() */
+	private String _page_title;
+	private int _page_size;
+	private int _page_last_id;
+	private boolean _page_has_more;
+
+	/* while set, openStatement() lists what it prepares for each database */
+	private List<String> _canned_imdb;
+	private List<String> _canned_customer;
+
+	/* where the rental history listing stopped, see transaction_history() */
+	private Timestamp _history_datein;
+	private int _history_rental_id;
+	private boolean _history_has_more = false;
+
+	/* title pattern of the fast search in progress */
+	private String _fast_search_pattern;
 
 	// Canned queries
 	private String _search_sql = "SELECT * FROM movie WHERE name ILIKE ? ORDER BY id";
@@ -40,19 +96,79 @@ public class Query {
 			+ "WHERE c.mid = ? and c.pid = a.id";
 	private PreparedStatement _actor_mid_statement;
 
+	/* set based variants of the above, for a whole batch of movie ids */
+	private static final int SEARCH_BATCH_SIZE = 500;
+
+	/* rows fetched per cursor round trip, and movies per fast search status lookup */
+	private static final int CURSOR_FETCH_SIZE = 1000;
+	private static final int FAST_SEARCH_WINDOW = 100;
+
+	/* rows printed by the searches, rental list and history, see RowWriter */
+	private static final RowWriter.Template SEARCH_MOVIE_ROW = RowWriter
+			.template("movie", "ID: {id}\nName: {name}\nYear: {year}\n");
+	private static final RowWriter.Template SEARCH_DIRECTOR_ROW = RowWriter
+			.template("director", "Director: {lname} {fname}\n");
+	private static final RowWriter.Template SEARCH_ACTOR_ROW = RowWriter
+			.template("actor", "Actor: {lname} {fname} {gender}\n");
+	private static final RowWriter.Template SEARCH_STATUS_ROW = RowWriter
+			.template("status", "{status}\n");
+	private static final RowWriter.Template FAST_MOVIE_ROW = RowWriter
+			.template("movie", "ID : {id}\nName : {name}\nYear : {year}\n");
+	private static final RowWriter.Template FAST_DIRECTOR_ROW = RowWriter
+			.template("director", "Director : {fname} {lname}\n");
+	private static final RowWriter.Template FAST_ACTOR_ROW = RowWriter
+			.template("actor", "Actor : {fname} {lname}\n");
+	private static final RowWriter.Template FAST_STATUS_ROW = RowWriter
+			.template("status", "{status}\n\n");
+	private static final RowWriter.Template RENTAL_ROW = RowWriter.template(
+			"rental", "ID : {id}\nName : {name}\n");
+	private static final RowWriter.Template HISTORY_ROW = RowWriter.template(
+			"history", "Rented {dateout}, returned {datein}: {id} {name}\n");
+	private static final RowWriter.Template SIMILAR_ROW = RowWriter.template(
+			"similar", "ID : {id}\nName : {name}\nAlso rented by : {customers}\n");
+
+	private String _search_page_sql = "SELECT * FROM movie WHERE name ILIKE ? AND id > ? ORDER BY id LIMIT ?";
+	private PreparedStatement _search_page_statement;
+
+	private String _director_mids_sql = "SELECT r.mid, d.* "
+			+ "FROM movie_directors r, directors d "
+			+ "WHERE r.mid = ANY (?) AND r.did = d.id ORDER BY r.mid";
+	private PreparedStatement _director_mids_statement;
+
+	private String _actor_mids_sql = "SELECT c.mid, a.* "
+			+ "FROM casts c, actor a "
+			+ "WHERE c.mid = ANY (?) AND c.pid = a.id ORDER BY c.mid";
+	private PreparedStatement _actor_mids_statement;
+
 	private String _customer_name_sql = "SELECT lname, fname "
 			+ "FROM customer " + "WHERE cust_id = ?";
 	private PreparedStatement _customer_name_statement;
 
-	private String _remaining_rental_sql = "SELECT r.maxrentals - curRental.num "
-			+ "FROM customer c, rentalplan r, (SELECT COUNT(*) AS num FROM activerental m WHERE m.cust_id = ?) curRental "
+	private String _customer_state_sql = "SELECT c.fname, c.lname, c.plan_id, r.maxrentals, "
+			+ "c.active_rentals, c.version "
+			+ "FROM customer c, rentalplan r "
 			+ "WHERE c.cust_id = ? AND c.plan_id = r.plan_id";
+	private PreparedStatement _customer_state_statement;
+
+	private String _customer_version_sql = "SELECT version FROM customer WHERE cust_id = ?";
+	private PreparedStatement _customer_version_statement;
+
+	/*
+	 * active_rentals and rental_limit are kept up to date by triggers, see
+	 * migration 6 in Migrations
+	 */
+	private String _remaining_rental_sql = "SELECT rental_limit - active_rentals "
+			+ "FROM customer WHERE cust_id = ? AND rental_limit IS NOT NULL";
 	private PreparedStatement _remaining_rental_statement;
 
 	private String _who_has_this_movie_sql = "SELECT cust_id "
 			+ "FROM activerental " + "WHERE movie_id = ?";
 	private PreparedStatement _who_has_this_movie_statement;
 
+	private String _who_has_these_movies_sql = "SELECT movie_id, cust_id "
+			+ "FROM activerental " + "WHERE movie_id = ANY (?)";
+	private PreparedStatement _who_has_these_movies_statement;
+
 	private String _rental_plans_sql = "SELECT * " + "FROM rentalplan";
 	private PreparedStatement _rental_plans_statement;
 
@@ -66,10 +182,32 @@ public class Query {
 	private String _rent_mid_to_cid_sql = "INSERT INTO activerental (movie_id, cust_id, dateout) VALUES (?, ?, current_timestamp)";
 	private PreparedStatement _rent_mid_to_cid_statement;
 
+	/**
+	 * rent_movie() and return_movie() from setup.sql do the whole rent or
+	 * return in one round trip and answer with one of these status codes
+	 */
+	private static final int RENT_OK = 0;
+	private static final int RENT_LIMIT_REACHED = 1;
+	private static final int RENT_OUT_OF_STOCK = 2;
+	private static final int RETURN_OK = 0;
+	private static final int RETURN_NOT_RENTED = 1;
+
+	private String _rent_movie_sql = "SELECT rent_movie(?, ?)";
+	private PreparedStatement _rent_movie_statement;
+
+	private String _return_movie_sql = "SELECT return_movie(?, ?)";
+	private PreparedStatement _return_movie_statement;
+
+	private String _lock_customer_sql = "SELECT plan_id FROM customer WHERE cust_id = ? FOR UPDATE";
+	private PreparedStatement _lock_customer_statement;
+
+	private String _return_by_mid_cid_sql = "DELETE FROM activerental WHERE movie_id = ? AND cust_id = ?";
+	private PreparedStatement _return_by_mid_cid_statement;
+
 	private String _activerentals_by_cid_sql = "SELECT * FROM activerental WHERE cust_id = ?";
 	private PreparedStatement _activerentals_by_cid_statement;
 
-	private String _activerentals_count_sql = "SELECT count(*) FROM activerental WHERE cust_id = ?";
+	private String _activerentals_count_sql = "SELECT active_rentals FROM customer WHERE cust_id = ?";
 	private PreparedStatement _activerentals_count_statement;
 
 	/**
@@ -90,316 +228,1919 @@ public class Query {
 	private String _customer_login_sql = "SELECT * FROM customer WHERE username = ? and password = ?";
 	private PreparedStatement _customer_login_statement;
 
-	private String _begin_transaction_read_write_sql = "BEGIN TRANSACTION READ WRITE";
-	private PreparedStatement _begin_transaction_read_write_statement;
+	private String _movie_by_id_sql = "SELECT * FROM movie WHERE id = ?";
+	private PreparedStatement _movie_by_id_statement;
 
-	private String _commit_transaction_sql = "COMMIT TRANSACTION";
-	private PreparedStatement _commit_transaction_statement;
+	/* the first page of a customer's finished rentals, newest first */
+	private String _history_first_sql = "SELECT rental_id, movie_id, dateout, datein FROM rental_history "
+			+ "WHERE cust_id = ? ORDER BY datein DESC, rental_id DESC LIMIT ?";
+	private PreparedStatement _history_first_statement;
 
-	private String _rollback_transaction_sql = "ROLLBACK TRANSACTION";
-	private PreparedStatement _rollback_transaction_statement;
+	/* the next page, after the keyset where the previous one stopped */
+	private String _history_sql = "SELECT rental_id, movie_id, dateout, datein FROM rental_history "
+			+ "WHERE cust_id = ? AND (datein, rental_id) < (?, ?) "
+			+ "ORDER BY datein DESC, rental_id DESC LIMIT ?";
+	private PreparedStatement _history_statement;
 
-	private String _movie_by_id_sql = "SELECT * FROM movie WHERE id = ?";
-	private PreparedStatement _movie_by_id_statement;
+	private String _movie_ids_sql = "SELECT id FROM movie WHERE id = ANY (?)";
+	private PreparedStatement _movie_ids_statement;
 
-	private ArrayList<PreparedStatement> openStatements;
+	private String _movies_by_ids_sql = "SELECT * FROM movie WHERE id = ANY (?) ORDER BY id";
+	private PreparedStatement _movies_by_ids_statement;
 
 	public Query() {
-		openStatements = new ArrayList<PreparedStatement>(10);
+	}
+
+	/**
+	 * send what the transactions print (results to out, complaints such as
+	 * "Movie out of stock" to err) somewhere other than the console, e.g. to
+	 * a buffer that becomes the response of a server request
+	 */
+	public void setOutput(PrintStream out, PrintStream err) {
+		_out = out;
+		_err = err;
+		_rows = new RowWriter(out, _rows.getFormat());
+	}
+
+	/**
+	 * print result rows as console text, TSV or JSON lines, see RowWriter.
+	 * messages such as "Not found." are only printed with TEXT. call after
+	 * openConnection(), which sets the outputFormat of dbconn.config
+	 */
+	public void setOutputFormat(RowWriter.Format format) {
+		_rows = new RowWriter(_out, format);
 	}
 
 	/**********************************************************/
 	/* Connections to postgres databases */
 
+	/**
+	 * the pools are shared by every Query in this JVM, so many customer
+	 * sessions share a small set of backends. users counts the sessions that
+	 * have opened a connection; the last one to close shuts the pools down
+	 */
+	private static ConnectionPool imdbPool;
+	private static ConnectionPool customerPool;
+	private static int users = 0;
+
+	/* milliseconds a session trusts its customer state without a check */
+	private static long customerStateTtl = 30000;
+
+	/**
+	 * optional in memory index of movie titles (titleIndex = true in
+	 * dbconn.config), rebuilt every titleIndexRefresh seconds if that is set
+	 */
+	private static volatile TitleIndex titleIndex;
+
+	/**
+	 * optional memory mapped copy of the catalog (catalogSnapshot = file
+	 * written by CatalogSnapshot). when set, movies, titles, directors and
+	 * cast are read from it instead of imdb
+	 */
+	private static volatile CatalogSnapshot catalogSnapshot;
+	private static Timer titleIndexTimer;
+
+	/**
+	 * moves returned rentals from rental_return_queue into the history
+	 * partitions every historyArchiveInterval seconds (0 turns it off)
+	 */
+	private static Timer historyArchiveTimer;
+
+	/**
+	 * compares customer.active_rentals with activerental every
+	 * rentalCountCheckInterval seconds (0 turns it off) and fixes and
+	 * reports any customer whose counter drifted
+	 */
+	private static Timer rentalCountTimer;
+
+	/**
+	 * optional "customers also rented" index for the similar command
+	 * (coRentals = true), saved to and loaded from coRentalsFile if set.
+	 * rentals made by other processes are added every coRentalsRefresh
+	 * seconds
+	 */
+	private static volatile CoRentalIndex coRentals;
+	private static boolean coRentalsEnabled;
+	private static File coRentalsFile;
+	private static Timer coRentalsTimer;
+
+	/**
+	 * optional in memory copy of activerental (rentalCache = true), used for
+	 * the availability shown by searches
+	 */
+	private static RentalCache rentalCache;
+
+	/**
+	 * optional cache of the directors and cast of movies (catalogCache =
+	 * true), bounded to catalogCacheBytes of encoded records
+	 */
+	private static CatalogCache catalogCache;
+
+	/**
+	 * optional cache of search results by title (searchCache = true), see
+	 * helper_cached_search()
+	 */
+	private static SearchCache searchCache;
+
+	/**
+	 * runs the three fast search queries side by side on separate
+	 * connections when parallelFastSearch = true
+	 */
+	private static ExecutorService fastSearchExecutor;
+
+	/**
+	 * latency and round trips of every statement and transaction
+	 * (statementStats = true), also published over JMX
+	 */
+	private static StatementStats statementStats;
+
+	/**
+	 * rental transactions retried after a serialization failure, see
+	 * helper_in_transaction(). backoff times are in milliseconds
+	 */
+	private static int txMaxAttempts = 5;
+	private static long txBackoffBase = 5;
+	private static long txBackoffMax = 250;
+	private static final AtomicLong txCommits = new AtomicLong();
+	private static final AtomicLong txRetries = new AtomicLong();
+	private static final AtomicLong txAborts = new AtomicLong();
+
+	/* how result rows are printed unless setOutputFormat() says otherwise */
+	private static RowWriter.Format outputFormat = RowWriter.Format.TEXT;
+
+	/* tables helper_verify_plans() expects the statements not to scan */
+	private static long verifyPlansMinRows = 10000;
+
+	/**
+	 * fastStartup = true: openConnection() only connects to the customer
+	 * database, which login needs; the migrations, the first imdb connection
+	 * and the title index are done by a background thread, and statements
+	 * are prepared when a transaction first needs them
+	 */
+	private static boolean fastStartup = false;
+
+	/* ms each startup step took, in the order they finished */
+	private static final LinkedHashMap<String, Long> startupTimes = new LinkedHashMap<String, Long>();
+	private static boolean startupTiming = false;
+
 	public void openConnection() throws Exception {
-		configProps.load(new FileInputStream("dbconn.config"));
+		synchronized (Query.class) {
+			if (users++ > 0) {
+				_rows = new RowWriter(_out, outputFormat);
+				return;
+			}
+			try {
+				long step = System.nanoTime();
+				configProps.load(new FileInputStream("dbconn.config"));
+
+				imdbUrl = configProps.getProperty("imdbUrl");
+				customerUrl = configProps.getProperty("customerUrl");
+				postgreSQLDriver = configProps.getProperty("postgreSQLDriver");
+				postgreSQLUser = configProps.getProperty("postgreSQLUser");
+				postgreSQLPassword = configProps.getProperty("postgreSQLPassword");
+
+				/* load jdbc drivers */
+				Class.forName(postgreSQLDriver).newInstance();
+
+				fastStartup = Boolean.parseBoolean(configProps.getProperty(
+						"fastStartup", "false"));
+				startupTiming = Boolean.parseBoolean(configProps.getProperty(
+						"startupTiming", "false"));
+				startupStep("config", step);
+
+				customerStateTtl = Long.parseLong(configProps.getProperty(
+						"customerStateTtl", "30")) * 1000;
+
+				txMaxAttempts = Integer.parseInt(configProps.getProperty(
+						"txMaxAttempts", "5"));
+				txBackoffBase = Long.parseLong(configProps.getProperty(
+						"txBackoffBase", "5"));
+				txBackoffMax = Long.parseLong(configProps.getProperty(
+						"txBackoffMax", "250"));
+
+				final boolean migrate = Boolean.parseBoolean(configProps
+						.getProperty("migrate", "true"));
+				if (migrate) {
+					/*
+					 * the customer statements need the customer migrations
+					 * (active_rentals), so those run before login even with
+					 * fastStartup; only the imdb indexes can wait
+					 */
+					step = System.nanoTime();
+					helper_migrate(customerUrl, Migrations.CUSTOMER);
+					if (!fastStartup) {
+						helper_migrate(imdbUrl, Migrations.IMDB);
+					}
+					startupStep("migrations", step);
+				}
+				verifyPlansMinRows = Long.parseLong(configProps.getProperty(
+						"verifyPlansMinRows", "10000"));
+				outputFormat = RowWriter.Format.valueOf(configProps
+						.getProperty("outputFormat", "text").trim()
+						.toUpperCase());
+
+				/* pools for TWO databases: imdb and the customer database */
+				int poolSize = Integer.parseInt(configProps.getProperty(
+						"poolSize", "8"));
+				long idleTimeout = Long.parseLong(configProps.getProperty(
+						"poolIdleTimeout", "300000"));
+				long borrowTimeout = Long.parseLong(configProps.getProperty(
+						"poolBorrowTimeout", "30000"));
+				imdbPool = new ConnectionPool(imdbUrl, postgreSQLUser,
+						postgreSQLPassword, poolSize, idleTimeout, borrowTimeout, 64);
+				customerPool = new ConnectionPool(customerUrl, postgreSQLUser,
+						postgreSQLPassword, poolSize, idleTimeout, borrowTimeout, 64);
+				/* rentals must not pass the plan limit or share a copy */
+				customerPool.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+				if (Boolean.parseBoolean(configProps.getProperty(
+						"statementStats", "false"))) {
+					statementStats = new StatementStats();
+					imdbPool.setStatementStats(statementStats);
+					customerPool.setStatementStats(statementStats);
+				}
+				step = System.nanoTime();
+				customerPool.warmUp(1);
+				startupStep("customer connection", step);
+				if (!fastStartup) {
+					step = System.nanoTime();
+					imdbPool.warmUp(1);
+					startupStep("imdb connection", step);
+				}
+
+				if (Boolean.parseBoolean(configProps.getProperty("verifyPlans",
+						"false"))) {
+					List<String> problems = helper_verify_plans();
+					if (!problems.isEmpty()) {
+						throw new SQLException("Statement plans need indexes: "
+								+ problems);
+					}
+				}
+
+				if (Boolean.parseBoolean(configProps.getProperty("rentalCache",
+						"false"))) {
+					rentalCache = new RentalCache(customerUrl, postgreSQLUser,
+							postgreSQLPassword, Long.parseLong(configProps
+									.getProperty("rentalCachePoll", "500")));
+					rentalCache.start();
+				}
+
+				if (Boolean.parseBoolean(configProps.getProperty("catalogCache",
+						"false"))) {
+					catalogCache = new CatalogCache(Long.parseLong(configProps
+							.getProperty("catalogCacheBytes", "67108864")));
+				}
+
+				if (Boolean.parseBoolean(configProps.getProperty("searchCache",
+						"false"))) {
+					searchCache = new SearchCache(Long.parseLong(configProps
+							.getProperty("searchCacheTtl", "300")) * 1000,
+							Long.parseLong(configProps.getProperty(
+									"searchCacheBytes", "33554432")),
+							Integer.parseInt(configProps.getProperty(
+									"searchCacheMaxResults", "2000")));
+				}
+
+				if (Boolean.parseBoolean(configProps.getProperty(
+						"parallelFastSearch", "false"))) {
+					fastSearchExecutor = Executors.newCachedThreadPool(
+							new ThreadFactory() {
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "fast-search");
+									t.setDaemon(true);
+									return t;
+								}
+							});
+				}
+
+				String snapshot = configProps.getProperty("catalogSnapshot", "")
+						.trim();
+				if (snapshot.length() > 0) {
+					catalogSnapshot = CatalogSnapshot.open(new java.io.File(snapshot));
+				}
+
+				long archive = Long.parseLong(configProps.getProperty(
+						"historyArchiveInterval", "60")) * 1000;
+				if (archive > 0) {
+					historyArchiveTimer = new Timer("history-archive", true);
+					historyArchiveTimer.schedule(new TimerTask() {
+						public void run() {
+							try {
+								archiveRentals();
+							} catch (SQLException e) {
+								/* they stay queued until the next run */
+								System.err.println("Archiving rentals failed: "
+										+ e.getMessage());
+							}
+						}
+					}, archive, archive);
+				}
 
-		imdbUrl = configProps.getProperty("imdbUrl");
-		customerUrl = configProps.getProperty("customerUrl");
-		postgreSQLDriver = configProps.getProperty("postgreSQLDriver");
-		postgreSQLUser = configProps.getProperty("postgreSQLUser");
-		postgreSQLPassword = configProps.getProperty("postgreSQLPassword");
+				long countCheck = Long.parseLong(configProps.getProperty(
+						"rentalCountCheckInterval", "3600")) * 1000;
+				if (countCheck > 0) {
+					rentalCountTimer = new Timer("rental-count-check", true);
+					rentalCountTimer.schedule(new TimerTask() {
+						public void run() {
+							try {
+								reconcileRentalCounts();
+							} catch (SQLException e) {
+								System.err.println("Checking rental counts failed: "
+										+ e.getMessage());
+							}
+						}
+					}, countCheck, countCheck);
+				}
 
-		/* load jdbc drivers */
-		Class.forName(postgreSQLDriver).newInstance();
+				final boolean titleIndexOn = Boolean.parseBoolean(configProps
+						.getProperty("titleIndex", "false"));
+				if (titleIndexOn) {
+					if (!fastStartup) {
+						step = System.nanoTime();
+						refreshTitleIndex();
+						startupStep("title index", step);
+					}
+					long refresh = Long.parseLong(configProps.getProperty(
+							"titleIndexRefresh", "0")) * 1000;
+					if (refresh > 0) {
+						titleIndexTimer = new Timer("title-index", true);
+						titleIndexTimer.schedule(new TimerTask() {
+							public void run() {
+								try {
+									refreshTitleIndex();
+								} catch (SQLException e) {
+									/* keep serving from the old index */
+									System.err.println("Title index refresh failed: "
+											+ e.getMessage());
+								}
+							}
+						}, refresh, refresh);
+					}
+				}
 
-		/* open connections to TWO databases: imdb and the customer database */
-		_imdb = DriverManager.getConnection(imdbUrl, // database
-				postgreSQLUser, // user
-				postgreSQLPassword); // password
+				final boolean coRentalsOn = Boolean.parseBoolean(configProps
+						.getProperty("coRentals", "false"));
+				coRentalsEnabled = coRentalsOn;
+				if (coRentalsOn) {
+					String file = configProps.getProperty("coRentalsFile", "")
+							.trim();
+					coRentalsFile = file.length() > 0 ? new File(file) : null;
+					if (!fastStartup) {
+						step = System.nanoTime();
+						loadCoRentals();
+						startupStep("co-rental index", step);
+					}
+					long refresh = Long.parseLong(configProps.getProperty(
+							"coRentalsRefresh", "60")) * 1000;
+					if (refresh > 0) {
+						coRentalsTimer = new Timer("co-rentals", true);
+						coRentalsTimer.schedule(new TimerTask() {
+							public void run() {
+								try {
+									catchUpCoRentals();
+								} catch (SQLException e) {
+									/* the next run looks back as far */
+									System.err.println("Co-rental index refresh failed: "
+											+ e.getMessage());
+								}
+							}
+						}, refresh, refresh);
+					}
+				}
 
-		_customer_db = DriverManager.getConnection(customerUrl, // database
-				postgreSQLUser, // user
-				postgreSQLPassword); // password
+				if (fastStartup) {
+					Thread background = new Thread(new Runnable() {
+						public void run() {
+							helper_background_startup(migrate, titleIndexOn,
+									coRentalsOn);
+						}
+					}, "startup");
+					background.setDaemon(true);
+					background.start();
+				}
+			} catch (Exception e) {
+				/* the next caller starts over, not from half a setup */
+				users--;
+				helper_shut_down();
+				throw e;
+			}
+			_rows = new RowWriter(_out, outputFormat);
+		}
 	}
 
 	public void closeConnection() throws Exception {
-		for (PreparedStatement stm : openStatements) {
-			stm.close();
+		synchronized (Query.class) {
+			if (--users > 0) {
+				return;
+			}
+			helper_shut_down();
 		}
-		_imdb.close();
-		_customer_db.close();
 	}
 
-	/**********************************************************/
 	/**
-	 * keep track of opens statements so we can close them before closing
-	 * connection
-	 *
-	 * @throws SQLException
+	 * stops the timers and threads and closes the pools openConnection()
+	 * started, when the last user closes or when opening failed part way.
+	 * whatever was not started yet is skipped. caller holds the Query.class
+	 * lock
 	 */
-	private PreparedStatement openStatement(Connection conn, String sql)
+	private static void helper_shut_down() {
+		if (titleIndexTimer != null) {
+			titleIndexTimer.cancel();
+			titleIndexTimer = null;
+		}
+		if (historyArchiveTimer != null) {
+			historyArchiveTimer.cancel();
+			historyArchiveTimer = null;
+		}
+		if (rentalCountTimer != null) {
+			rentalCountTimer.cancel();
+			rentalCountTimer = null;
+		}
+		if (coRentalsTimer != null) {
+			coRentalsTimer.cancel();
+			coRentalsTimer = null;
+		}
+		CoRentalIndex index = coRentals;
+		coRentals = null;
+		if (index != null && coRentalsFile != null) {
+			try {
+				index.save(coRentalsFile);
+			} catch (IOException e) {
+				/* the next start builds it again */
+				System.err.println("Saving the co-rental index failed: "
+						+ e.getMessage());
+			}
+		}
+		coRentalsFile = null;
+		titleIndex = null;
+		catalogSnapshot = null;
+		if (rentalCache != null) {
+			rentalCache.stop();
+			rentalCache = null;
+		}
+		catalogCache = null;
+		searchCache = null;
+		if (fastSearchExecutor != null) {
+			fastSearchExecutor.shutdownNow();
+			fastSearchExecutor = null;
+		}
+		/* closing twice is fine, they are only null before the first open */
+		if (imdbPool != null) {
+			imdbPool.close();
+		}
+		if (customerPool != null) {
+			customerPool.close();
+		}
+		if (statementStats != null) {
+			statementStats.unregister();
+			statementStats = null;
+		}
+	}
+
+	private static void helper_migrate(String url, String database)
 			throws SQLException {
-		PreparedStatement stm = conn.prepareStatement(sql);
-		openStatements.add(stm);
-		return stm;
+		Connection conn = DriverManager.getConnection(url, postgreSQLUser,
+				postgreSQLPassword);
+		int applied;
+		try {
+			applied = Migrations.migrate(conn, database);
+		} finally {
+			conn.close();
+		}
+		if (applied > 0) {
+			System.err.println("Applied " + applied + " " + database
+					+ " schema migrations");
+		}
 	}
 
 	/**
-	 * prepare all the SQL statements in this method. "preparing" a statement is
-	 * almost like compiling it. Note that the parameters (with ?) are still not
-	 * filled in
+	 * the part of openConnection() fastStartup leaves for later. until it is
+	 * done the first search opens the imdb connection itself, and searches
+	 * use the ILIKE queries instead of the title index
 	 */
-	public void prepareStatements() throws Exception {
+	private static void helper_background_startup(boolean migrate,
+			boolean titleIndexOn, boolean coRentalsOn) {
+		long step = System.nanoTime();
+		if (migrate) {
+			try {
+				helper_migrate(imdbUrl, Migrations.IMDB);
+				startupStep("imdb migrations (background)", step);
+			} catch (SQLException e) {
+				System.err.println("Schema migrations failed: " + e.getMessage());
+			}
+		}
+		step = System.nanoTime();
+		try {
+			imdbPool.warmUp(1);
+			startupStep("imdb connection (background)", step);
+		} catch (SQLException e) {
+			/* closed already, or the first search will report it */
+			return;
+		}
+		if (titleIndexOn) {
+			step = System.nanoTime();
+			try {
+				refreshTitleIndex();
+				startupStep("title index (background)", step);
+			} catch (SQLException e) {
+				System.err.println("Title index build failed: " + e.getMessage());
+			}
+		}
+		if (coRentalsOn) {
+			step = System.nanoTime();
+			try {
+				loadCoRentals();
+				startupStep("co-rental index (background)", step);
+			} catch (SQLException e) {
+				System.err.println("Co-rental index build failed: "
+						+ e.getMessage());
+			}
+		}
+	}
 
-		_search_statement = openStatement(_imdb, _search_sql);
-		_director_mid_statement = openStatement(_imdb, _director_mid_sql);
-		/* custom statements */
-		_actor_mid_statement = openStatement(_imdb, _actor_mid_sql);
-		_customer_name_statement = openStatement(_customer_db,
-				_customer_name_sql);
-		_remaining_rental_statement = openStatement(_customer_db,
-				_remaining_rental_sql);
-		_who_has_this_movie_statement = openStatement(_customer_db,
-				_who_has_this_movie_sql);
-		_rental_plans_statement = openStatement(_customer_db, _rental_plans_sql);
-		_rentals_for_plan_statement = openStatement(_customer_db,
-				_rentals_for_plan_sql);
-		_update_rental_plan_statement = openStatement(_customer_db,
-				_update_rental_plan_sql);
-		_movie_by_id_statement = openStatement(_imdb, _movie_by_id_sql);
-		_rent_mid_to_cid_statement = openStatement(_customer_db,
-				_rent_mid_to_cid_sql);
-		_activerentals_by_cid_statement = openStatement(_customer_db,
-				_activerentals_by_cid_sql);
-		_activerentals_count_statement = openStatement(_customer_db,
-				_activerentals_count_sql);
-		_return_by_mid_statement = openStatement(_customer_db,
-				_return_by_mid_sql);
-		_movie_join_dir_statement = openStatement(_imdb, _movie_join_dir_sql);
-		_movie_join_actor_statement = openStatement(_imdb,
-				_movie_join_actor_sql);
-		_customer_login_statement = openStatement(_customer_db,
-				_customer_login_sql);
-		_begin_transaction_read_write_statement = openStatement(_customer_db,
-				_begin_transaction_read_write_sql);
-		_commit_transaction_statement = openStatement(_customer_db,
-				_commit_transaction_sql);
-		_rollback_transaction_statement = openStatement(_customer_db,
-				_rollback_transaction_sql);
+	private static void startupStep(String name, long since) {
+		synchronized (startupTimes) {
+			startupTimes.put(name, (System.nanoTime() - since) / 1000000);
+		}
 	}
 
-	/**********************************************************/
-	/* suggested helper functions */
 	/**
-	 * how many movies can she/he still rent ? you have to compute and return
-	 * the difference between the customer's plan and the count of outstanding
-	 * rentals
-	 *
-	 * @param cid
-	 * @return
-	 * @throws Exception
+	 * with startupTiming = true, prints how long each startup step took and
+	 * how long after the JVM started this is called, e.g. at the first prompt
 	 */
-	public int helper_compute_remaining_rentals(int cid) throws Exception {
-
-		_remaining_rental_statement.clearParameters();
-		_remaining_rental_statement.setInt(1, cid);
-		_remaining_rental_statement.setInt(2, cid);
+	public void helper_print_startup() {
+		if (!startupTiming) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder("Startup:");
+		synchronized (startupTimes) {
+			for (Map.Entry<String, Long> e : startupTimes.entrySet()) {
+				sb.append(' ').append(e.getKey()).append(' ')
+						.append(e.getValue()).append(" ms,");
+			}
+		}
+		sb.append(" ready ")
+				.append(ManagementFactory.getRuntimeMXBean().getUptime())
+				.append(" ms after JVM start");
+		_err.println(sb);
+	}
 
-		ResultSet remainingNum = _remaining_rental_statement.executeQuery();
-		remainingNum.next();
+	/**
+	 * { committed, retried, given up } rental transactions since startup,
+	 * see helper_in_transaction()
+	 */
+	public static long[] helper_tx_counts() {
+		return new long[] { txCommits.get(), txRetries.get(), txAborts.get() };
+	}
 
-		return remainingNum.getInt(1);
+	/**
+	 * prints the retry counts, and the statement and transaction statistics
+	 * if they are kept
+	 */
+	public void helper_print_stats() {
+		_out.println("Rental transactions: " + txCommits.get() + " committed, "
+				+ txRetries.get() + " retries after serialization failures, "
+				+ txAborts.get() + " gave up");
+		SearchCache cache = searchCache;
+		if (cache != null) {
+			_out.println(cache);
+		}
+		CoRentalIndex index = coRentals;
+		if (index != null) {
+			_out.println(index);
+		}
+		if (statementStats == null) {
+			_out.println("Statistics are off, set statementStats = true in dbconn.config");
+		} else {
+			_out.print(statementStats.report());
+		}
 	}
 
 	/**
-	 * you find the first + last name of the current customer
+	 * rebuild the title index from the current movie table, for when the
+	 * catalog changed. searches keep using the old index until the new one
+	 * is complete
 	 *
-	 * @param cid
-	 * @return
-	 * @throws Exception
+	 * @throws SQLException
 	 */
-	public String helper_compute_customer_name(int cid) throws Exception {
-		_customer_name_statement.clearParameters();
-		_customer_name_statement.setInt(1, cid);
-		ResultSet name_set = _customer_name_statement.executeQuery();
-		name_set.next();
-		String name = name_set.getString(2) + " " + name_set.getString(1);
-		return name;
+	public static void refreshTitleIndex() throws SQLException {
+		SearchCache cache = searchCache;
+		if (cache != null) {
+			cache.clear();
+		}
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null) {
+			titleIndex = TitleIndex.build(snapshot);
+			return;
+		}
+		ConnectionPool.PooledConnection lease = imdbPool.borrow();
+		boolean ok = false;
+		try {
+			titleIndex = TitleIndex.build(lease.getConnection());
+			ok = true;
+		} finally {
+			imdbPool.release(lease, ok);
+		}
 	}
 
 	/**
-	 * is plan_id a valid plan id ? you have to figure out
+	 * load the co-rental index from coRentalsFile and add the rentals made
+	 * since it was saved, or build it from the whole rental history if there
+	 * is no usable file. the similar command answers that it is not ready
+	 * until this is done
 	 *
-	 * @param plan_id
-	 * @return
-	 * @throws Exception
+	 * @throws SQLException
 	 */
-	public boolean helper_check_plan(int plan_id) throws Exception {
-		ResultSet rp = null;
+	public static void loadCoRentals() throws SQLException {
+		Connection conn = DriverManager.getConnection(customerUrl,
+				postgreSQLUser, postgreSQLPassword);
 		try {
-			_rentals_for_plan_statement.clearParameters();
-			_rentals_for_plan_statement.setInt(1, plan_id);
-			rp = _rentals_for_plan_statement.executeQuery();
-			return rp.next();
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			CoRentalIndex index = null;
+			if (coRentalsFile != null && coRentalsFile.exists()) {
+				try {
+					index = CoRentalIndex.load(coRentalsFile);
+					index.catchUp(conn);
+				} catch (IOException e) {
+					System.err.println("Co-rental index not loaded, rebuilding: "
+							+ e.getMessage());
+					index = null;
+				}
+			}
+			if (index == null) {
+				index = CoRentalIndex.build(conn);
+			}
+			coRentals = index;
 		} finally {
-			rp.close();
+			conn.close();
 		}
 	}
 
 	/**
-	 * is mid a valid movie id ? you have to figure out
+	 * add the rentals other processes made since the last catch up to the
+	 * co-rental index, see CoRentalIndex.catchUp()
 	 *
-	 * @param mid
-	 * @return
-	 * @throws Exception
+	 * @throws SQLException
 	 */
-	public boolean helper_check_movie(int mid) throws Exception {
-		ResultSet movie = null;
+	public static void catchUpCoRentals() throws SQLException {
+		CoRentalIndex index = coRentals;
+		if (index == null) {
+			return;
+		}
+		Connection conn = DriverManager.getConnection(customerUrl,
+				postgreSQLUser, postgreSQLPassword);
 		try {
-			_movie_by_id_statement.clearParameters();
-			_movie_by_id_statement.setInt(1, mid);
-			movie = _movie_by_id_statement.executeQuery();
-			return movie.next();
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			index.catchUp(conn);
 		} finally {
-			movie.close();
+			conn.close();
 		}
 	}
 
 	/**
-	 * find the customer id (cid) of whoever currently rents the movie mid;
-	 * return -1 if none
+	 * move the returns queued by the end_rental trigger into the monthly
+	 * history partitions, all in one archive_rentals() call. runs on its
+	 * own connection in read committed mode, so the serializable rental
+	 * transactions inserting into the queue don't conflict with it. returns
+	 * how many rentals were moved, -1 if another process was archiving
 	 *
-	 * @param mid
-	 * @return
-	 * @throws Exception
+	 * @throws SQLException
 	 */
-	private int helper_who_has_this_movie(int mid) throws Exception {
-		_who_has_this_movie_statement.clearParameters();
-		_who_has_this_movie_statement.setInt(1, mid);
-		ResultSet cid = _who_has_this_movie_statement.executeQuery();
-		if (cid.next()) {
-			return cid.getInt(1);
-		} else {
-			return -1;
+	public static int archiveRentals() throws SQLException {
+		Connection conn = DriverManager.getConnection(customerUrl,
+				postgreSQLUser, postgreSQLPassword);
+		try {
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			Statement stm = conn.createStatement();
+			ResultSet moved = stm.executeQuery("SELECT archive_rentals()");
+			moved.next();
+			int n = moved.getInt(1);
+			stm.close();
+			return n;
+		} finally {
+			conn.close();
 		}
 	}
 
-	/**********************************************************/
 	/**
-	 * login transaction: invoked only once, when the app is started
-	 * authenticates the user, and returns the user id, or -1 if authentication
-	 * fails
+	 * recount the active rentals of every customer whose active_rentals
+	 * counter disagrees with activerental and fix the counter, with
+	 * reconcile_rental_counts(). the triggers keep the two equal, so any
+	 * drift means something bypassed them and is logged. runs on its own
+	 * read committed connection like archiveRentals(); returns how many
+	 * customers were fixed
+	 *
+	 * @throws SQLException
+	 */
+	public static int reconcileRentalCounts() throws SQLException {
+		Connection conn = DriverManager.getConnection(customerUrl,
+				postgreSQLUser, postgreSQLPassword);
+		try {
+			conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+			Statement stm = conn.createStatement();
+			ResultSet drifted = stm
+					.executeQuery("SELECT cust, counter, rentals FROM reconcile_rental_counts()");
+			int n = 0;
+			while (drifted.next()) {
+				System.err.println("Rental count of customer "
+						+ drifted.getInt(1) + " was " + drifted.getInt(2)
+						+ ", fixed to " + drifted.getInt(3));
+				n++;
+			}
+			stm.close();
+			return n;
+		} finally {
+			conn.close();
+		}
+	}
+
+	/**
+	 * borrow one connection from each pool for the duration of a transaction
+	 * and point the statement fields at that connection's statements. calls
+	 * nest, only the outermost acquire() actually borrows, and the
+	 * transaction is recorded in statementStats under its name
+	 *
+	 * @throws SQLException
+	 */
+	private void acquire(String name) throws SQLException {
+		acquire(name, true, true);
+	}
+
+	/**
+	 * like acquire(), for transactions that only touch the customer
+	 * database: no imdb connection is borrowed, so login and the plan
+	 * commands don't wait for one while fastStartup is still opening it
+	 *
+	 * @throws SQLException
+	 */
+	private void acquireCustomer(String name) throws SQLException {
+		acquire(name, false, true);
+	}
+
+	/**
+	 * like acquire(), for transactions that only read the catalog
+	 *
+	 * @throws SQLException
+	 */
+	private void acquireImdb(String name) throws SQLException {
+		acquire(name, true, false);
+	}
+
+	private void acquire(String name, boolean imdb, boolean customer)
+			throws SQLException {
+		if (_lease_depth++ > 0) {
+			try {
+				if (customer && _customer_lease == null) {
+					helper_borrow_customer();
+				}
+				if (imdb && _imdb_lease == null) {
+					helper_borrow_imdb();
+				}
+			} catch (SQLException e) {
+				_lease_depth--;
+				throw e;
+			}
+			return;
+		}
+		try {
+			_tx_trips = 0;
+			if (customer) {
+				helper_borrow_customer();
+			}
+			if (imdb) {
+				helper_borrow_imdb();
+			}
+			_tx_name = name;
+			_tx_start = System.nanoTime();
+		} catch (SQLException e) {
+			_lease_depth--;
+			releaseLeases(false);
+			throw e;
+		}
+	}
+
+	/* the customer half of acquire(), possibly in the middle of a transaction */
+	private void helper_borrow_customer() throws SQLException {
+		_customer_lease = customerPool.borrow();
+		_customer_db = _customer_lease.getConnection();
+		bindCustomerStatements();
+		_tx_trips += _customer_lease.getRoundTrips();
+	}
+
+	/* the imdb half of acquire(), possibly in the middle of a transaction */
+	private void helper_borrow_imdb() throws SQLException {
+		_imdb_lease = imdbPool.borrow();
+		_imdb = _imdb_lease.getConnection();
+		bindImdbStatements();
+		_tx_trips += _imdb_lease.getRoundTrips();
+	}
+
+	/**
+	 * hand the connections back once the outermost transaction is done. if
+	 * the transaction threw (_lease_ok is false) the connections are
+	 * discarded since they may be stuck inside an open transaction
+	 */
+	private void release() {
+		if (--_lease_depth > 0) {
+			return;
+		}
+		if (statementStats != null) {
+			long trips = 0;
+			if (_customer_lease != null) {
+				trips += _customer_lease.getRoundTrips();
+			}
+			if (_imdb_lease != null) {
+				trips += _imdb_lease.getRoundTrips();
+			}
+			statementStats.transaction(_tx_name).record(
+					System.nanoTime() - _tx_start, trips - _tx_trips, _lease_ok);
+		}
+		releaseLeases(_lease_ok);
+		_lease_ok = true;
+	}
+
+	private void releaseLeases(boolean healthy) {
+		if (_imdb_lease != null) {
+			imdbPool.release(_imdb_lease, healthy);
+		}
+		if (_customer_lease != null) {
+			customerPool.release(_customer_lease, healthy);
+		}
+		_imdb_lease = null;
+		_customer_lease = null;
+		_imdb = null;
+		_customer_db = null;
+	}
+
+	/**
+	 * a unit of work on the customer database that may be run more than once
+	 */
+	private interface Work<T> {
+		T run() throws Exception;
+	}
+
+	/**
+	 * runs work as one serializable transaction on the customer database and
+	 * commits it. if postgres gives up on it because of a concurrent
+	 * transaction (serialization failure or deadlock) it is rolled back and
+	 * run again after a random backoff, up to txMaxAttempts times. work must
+	 * not have effects outside the database, those belong after this returns
+	 *
+	 * @throws Exception
+	 *             the last failure, once the attempts are used up
+	 */
+	private <T> T helper_in_transaction(Work<T> work) throws Exception {
+		return helper_execute(work, true);
+	}
+
+	/**
+	 * like helper_in_transaction, for work that is a single statement and so
+	 * can run in autocommit mode without the extra round trip for COMMIT
+	 *
+	 * @throws Exception
+	 */
+	private <T> T helper_with_retry(Work<T> work) throws Exception {
+		return helper_execute(work, false);
+	}
+
+	private <T> T helper_execute(Work<T> work, boolean explicit)
+			throws Exception {
+		for (int attempt = 1;; attempt++) {
+			SQLException failure;
+			boolean done = false;
+			if (explicit) {
+				_customer_db.setAutoCommit(false);
+			}
+			try {
+				T result = work.run();
+				if (explicit) {
+					_customer_db.commit();
+				}
+				done = true;
+				txCommits.incrementAndGet();
+				return result;
+			} catch (SQLException e) {
+				failure = e;
+			} finally {
+				if (explicit) {
+					if (!done) {
+						_customer_db.rollback();
+					}
+					_customer_db.setAutoCommit(true);
+				}
+			}
+			if (!helper_is_retryable(failure)) {
+				throw failure;
+			}
+			if (attempt >= txMaxAttempts) {
+				txAborts.incrementAndGet();
+				if (statementStats != null) {
+					statementStats.transaction(_tx_name).aborted();
+				}
+				throw failure;
+			}
+			txRetries.incrementAndGet();
+			if (statementStats != null) {
+				statementStats.transaction(_tx_name).retried();
+			}
+			/* full jitter, so the transactions that collided spread out */
+			long cap = Math.min(txBackoffMax,
+					txBackoffBase << Math.min(attempt - 1, 20));
+			Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+		}
+	}
+
+	/**
+	 * serialization_failure and deadlock_detected are safe to retry, the
+	 * transaction was rolled back as a whole
+	 */
+	private static boolean helper_is_retryable(SQLException e) {
+		for (SQLException x = e; x != null; x = x.getNextException()) {
+			String state = x.getSQLState();
+			if ("40001".equals(state) || "40P01".equals(state)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * what to tell the customer about a transaction that failed with e. the
+	 * message of e can show SQL and server details, so it only goes to the
+	 * log
+	 */
+	private static String helper_failure_reason(SQLException e) {
+		if (helper_is_retryable(e)) {
+			return "The store is busy, try again.";
+		}
+		for (SQLException x = e; x != null; x = x.getNextException()) {
+			String state = x.getSQLState();
+			if ("23514".equals(state)) { // customer_rental_limit_check
+				return "Rental limit already reached.";
+			}
+			if ("23505".equals(state)) { // someone else rented the copy
+				return "Movie out of stock, try again.";
+			}
+		}
+		return "Something went wrong, try again later.";
+	}
+
+	/**********************************************************/
+	/**
+	 * statements are owned and cached by the pooled connection they were
+	 * prepared on, so this is a map lookup after the first use
+	 *
+	 * @throws SQLException
+	 */
+	private PreparedStatement openStatement(Connection conn, String sql)
+			throws SQLException {
+		if (_canned_imdb != null) {
+			(conn == _imdb ? _canned_imdb : _canned_customer).add(sql);
+		}
+		if (conn == _imdb) {
+			return _imdb_lease.prepare(sql);
+		}
+		return _customer_lease.prepare(sql);
+	}
+
+	/**
+	 * EXPLAINs every statement bindStatements() prepares, on the database
+	 * it runs against, and returns one complaint for each sequential scan of
+	 * a table with at least verifyPlansMinRows rows, see
+	 * Migrations.explain()
+	 *
+	 * @throws SQLException
+	 */
+	public List<String> helper_verify_plans() throws SQLException {
+		_canned_imdb = new ArrayList<String>();
+		_canned_customer = new ArrayList<String>();
+		List<String> problems = new ArrayList<String>();
+		try {
+			acquire("helper_verify_plans");
+			try {
+				problems.addAll(Migrations.explain(_imdb, _canned_imdb,
+						verifyPlansMinRows));
+				problems.addAll(Migrations.explain(_customer_db,
+						_canned_customer, verifyPlansMinRows));
+			} catch (SQLException e) {
+				_lease_ok = false;
+				throw e;
+			} finally {
+				release();
+			}
+		} finally {
+			_canned_imdb = null;
+			_canned_customer = null;
+		}
+		return problems;
+	}
+
+	/**
+	 * warm up: prepares every statement on one connection of each pool.
+	 * skipped with fastStartup, where each transaction prepares what it
+	 * uses
+	 */
+	public void prepareStatements() throws Exception {
+		if (fastStartup) {
+			return;
+		}
+		acquire("prepareStatements");
+		release();
+	}
+
+	/**
+	 * prepare all the SQL statements in these methods, one per database.
+	 * "preparing" a statement is almost like compiling it. Note that the
+	 * parameters (with ?) are still not filled in
+	 */
+	private void bindImdbStatements() throws SQLException {
+		_search_statement = openStatement(_imdb, _search_sql);
+		_search_page_statement = openStatement(_imdb, _search_page_sql);
+		_director_mid_statement = openStatement(_imdb, _director_mid_sql);
+		/* custom statements */
+		_actor_mid_statement = openStatement(_imdb, _actor_mid_sql);
+		_director_mids_statement = openStatement(_imdb, _director_mids_sql);
+		_actor_mids_statement = openStatement(_imdb, _actor_mids_sql);
+		_movie_by_id_statement = openStatement(_imdb, _movie_by_id_sql);
+		_movies_by_ids_statement = openStatement(_imdb, _movies_by_ids_sql);
+		_movie_ids_statement = openStatement(_imdb, _movie_ids_sql);
+		_movie_join_dir_statement = openStatement(_imdb, _movie_join_dir_sql);
+		_movie_join_actor_statement = openStatement(_imdb,
+				_movie_join_actor_sql);
+	}
+
+	private void bindCustomerStatements() throws SQLException {
+		_customer_name_statement = openStatement(_customer_db,
+				_customer_name_sql);
+		_remaining_rental_statement = openStatement(_customer_db,
+				_remaining_rental_sql);
+		_customer_state_statement = openStatement(_customer_db,
+				_customer_state_sql);
+		_customer_version_statement = openStatement(_customer_db,
+				_customer_version_sql);
+		_who_has_this_movie_statement = openStatement(_customer_db,
+				_who_has_this_movie_sql);
+		_who_has_these_movies_statement = openStatement(_customer_db,
+				_who_has_these_movies_sql);
+		_rental_plans_statement = openStatement(_customer_db, _rental_plans_sql);
+		_rentals_for_plan_statement = openStatement(_customer_db,
+				_rentals_for_plan_sql);
+		_update_rental_plan_statement = openStatement(_customer_db,
+				_update_rental_plan_sql);
+		_history_first_statement = openStatement(_customer_db,
+				_history_first_sql);
+		_history_statement = openStatement(_customer_db, _history_sql);
+		_rent_mid_to_cid_statement = openStatement(_customer_db,
+				_rent_mid_to_cid_sql);
+		_rent_movie_statement = openStatement(_customer_db, _rent_movie_sql);
+		_return_movie_statement = openStatement(_customer_db,
+				_return_movie_sql);
+		_lock_customer_statement = openStatement(_customer_db,
+				_lock_customer_sql);
+		_return_by_mid_cid_statement = openStatement(_customer_db,
+				_return_by_mid_cid_sql);
+		_activerentals_by_cid_statement = openStatement(_customer_db,
+				_activerentals_by_cid_sql);
+		_activerentals_count_statement = openStatement(_customer_db,
+				_activerentals_count_sql);
+		_return_by_mid_statement = openStatement(_customer_db,
+				_return_by_mid_sql);
+		_customer_login_statement = openStatement(_customer_db,
+				_customer_login_sql);
+	}
+
+	/**********************************************************/
+	/* suggested helper functions */
+	/**
+	 * how many movies can she/he still rent ? you have to compute and return
+	 * the difference between the customer's plan and the count of outstanding
+	 * rentals
+	 *
+	 * @param cid
+	 * @return
+	 * @throws Exception
+	 */
+	public int helper_compute_remaining_rentals(int cid) throws Exception {
+		acquireCustomer("helper_compute_remaining_rentals");
+		try {
+			return helper_query_remaining_rentals(cid);
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * helper_compute_remaining_rentals() on the connection already leased,
+	 * for use inside a transaction. a customer without a plan has no
+	 * rentals left, as in rent_movie()
+	 *
+	 * @throws SQLException
+	 */
+	private int helper_query_remaining_rentals(int cid) throws SQLException {
+		_remaining_rental_statement.clearParameters();
+		_remaining_rental_statement.setInt(1, cid);
+		ResultSet remainingNum = _remaining_rental_statement.executeQuery();
+		try {
+			return remainingNum.next() ? remainingNum.getInt(1) : 0;
+		} finally {
+			remainingNum.close();
+		}
+	}
+
+	/**
+	 * you find the first + last name of the current customer
+	 *
+	 * @param cid
+	 * @return
+	 * @throws Exception
+	 */
+	public String helper_compute_customer_name(int cid) throws Exception {
+		acquireCustomer("helper_compute_customer_name");
+		try {
+			_customer_name_statement.clearParameters();
+			_customer_name_statement.setInt(1, cid);
+			ResultSet name_set = _customer_name_statement.executeQuery();
+			name_set.next();
+			String name = name_set.getString(2) + " " + name_set.getString(1);
+			return name;
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * is plan_id a valid plan id ? you have to figure out
+	 *
+	 * @param plan_id
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean helper_check_plan(int plan_id) throws Exception {
+		acquireCustomer("helper_check_plan");
+		try {
+			ResultSet rp = null;
+			try {
+				_rentals_for_plan_statement.clearParameters();
+				_rentals_for_plan_statement.setInt(1, plan_id);
+				rp = _rentals_for_plan_statement.executeQuery();
+				return rp.next();
+			} finally {
+				rp.close();
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * is mid a valid movie id ? you have to figure out
+	 *
+	 * @param mid
+	 * @return
+	 * @throws Exception
+	 */
+	public boolean helper_check_movie(int mid) throws Exception {
+		TitleIndex index = titleIndex;
+		if (index != null) {
+			/* the title index has every movie id, no need to ask imdb */
+			return index.hasMovie(mid);
+		}
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null) {
+			return snapshot.hasMovie(mid);
+		}
+		acquire("helper_check_movie");
+		try {
+			ResultSet movie = null;
+			try {
+				_movie_by_id_statement.clearParameters();
+				_movie_by_id_statement.setInt(1, mid);
+				movie = _movie_by_id_statement.executeQuery();
+				return movie.next();
+			} finally {
+				movie.close();
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * find the customer id (cid) of whoever currently rents the movie mid;
+	 * return -1 if none
+	 *
+	 * @param mid
+	 * @return
+	 * @throws Exception
+	 */
+	private int helper_who_has_this_movie(int mid) throws Exception {
+		_who_has_this_movie_statement.clearParameters();
+		_who_has_this_movie_statement.setInt(1, mid);
+		ResultSet cid = _who_has_this_movie_statement.executeQuery();
+		if (cid.next()) {
+			return cid.getInt(1);
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * the customer state of cid. the session's copy is used as long as it is
+	 * younger than customerStateTtl; after that one query compares versions
+	 * and the state is only reloaded if someone else changed the customer
+	 *
+	 * @param cid
+	 * @return
+	 * @throws Exception
+	 */
+	public CustomerState helper_customer_state(int cid) throws Exception {
+		CustomerState state = _customer_state;
+		if (state != null && state.getCid() == cid && !state.isStale()
+				&& state.age() < customerStateTtl) {
+			return state;
+		}
+		acquireCustomer("helper_customer_state");
+		try {
+			if (state != null && state.getCid() == cid && !state.isStale()) {
+				_customer_version_statement.clearParameters();
+				_customer_version_statement.setInt(1, cid);
+				ResultSet version_set = _customer_version_statement.executeQuery();
+				boolean same = version_set.next()
+						&& version_set.getInt(1) == state.getVersion();
+				version_set.close();
+				if (same) {
+					state.revalidated();
+					return state;
+				}
+			}
+			_customer_state = helper_load_customer_state(cid);
+			return _customer_state;
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * rentals cid can still make, from the session's customer state. for
+	 * display only; rent and return check the limit in the database
+	 *
+	 * @throws Exception
+	 */
+	private int helper_remaining_rentals(int cid) throws Exception {
+		return helper_customer_state(cid).getRemainingRentals();
+	}
+
+	/**
+	 * the session's customer state if it belongs to cid, else null
+	 */
+	private CustomerState helper_loaded_state(int cid) {
+		CustomerState state = _customer_state;
+		return state != null && state.getCid() == cid ? state : null;
+	}
+
+	private CustomerState helper_load_customer_state(int cid) throws Exception {
+		_customer_state_statement.clearParameters();
+		_customer_state_statement.setInt(1, cid);
+		ResultSet state_set = _customer_state_statement.executeQuery();
+		try {
+			if (!state_set.next()) {
+				throw new SQLException("no customer " + cid);
+			}
+			return new CustomerState(cid, state_set.getString(1) + " "
+					+ state_set.getString(2), state_set.getInt(3),
+					state_set.getInt(4), state_set.getInt(5), state_set.getInt(6));
+		} finally {
+			state_set.close();
+		}
+	}
+
+	/**********************************************************/
+	/**
+	 * login transaction: invoked only once, when the app is started
+	 * authenticates the user, and returns the user id, or -1 if authentication
+	 * fails
+	 *
+	 * @param name
+	 * @param password
+	 * @return
+	 * @throws Exception
+	 */
+	public int transaction_login(String name, String password) throws Exception {
+		acquireCustomer("transaction_login");
+		try {
+			int cid;
+
+			_customer_login_statement.clearParameters();
+			_customer_login_statement.setString(1, name);
+			_customer_login_statement.setString(2, password);
+			ResultSet cid_set = _customer_login_statement.executeQuery();
+			if (cid_set.next())
+				cid = cid_set.getInt(1);
+			else
+				cid = -1;
+			cid_set.close();
+			if (cid >= 0) {
+				_customer_state = helper_load_customer_state(cid);
+			}
+			return (cid);
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * println the customer's personal data: name, and plan number
+	 *
+	 * @param cid
+	 * @throws Exception
+	 */
+	public void transaction_personal_data(int cid) throws Exception {
+		/* served from the session's customer state, usually without a query */
+		CustomerState state = helper_customer_state(cid);
+		_out.println("Name: " + state.getName());
+		_out.println("You can rent " + state.getRemainingRentals()
+				+ " additional movies");
+	}
+
+	/**********************************************************/
+	/* main functions in this project: */
+
+	/**
+	 * searches for movies with matching titles: SELECT * FROM movie WHERE name
+	 * LIKE movie_title prints the movies, directors, actors, and the
+	 * availability status: AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT
+	 * set the first (and single) '?' parameter
+	 *
+	 * @param cid
+	 * @param movie_title
+	 * @throws Exception
+	 */
+	public void transaction_search(int cid, String movie_title)
+			throws Exception {
+		if (helper_search(cid, movie_title, Integer.MIN_VALUE, Integer.MAX_VALUE) == 0) {
+			_rows.text("Not found.");
+		}
+		_rows.text("\n");
+		_rows.flush();
+	}
+
+	/**
+	 * like transaction_search, but prints only the first page_size movies and
+	 * remembers where it stopped, so transaction_search_next() can print the
+	 * next page. pages are found by keyset: the movies after the last id shown
+	 *
+	 * @param cid
+	 * @param movie_title
+	 * @param page_size
+	 * @throws Exception
+	 */
+	public void transaction_search_page(int cid, String movie_title,
+			int page_size) throws Exception {
+		_page_title = movie_title;
+		_page_size = page_size;
+		_page_last_id = Integer.MIN_VALUE;
+		_page_has_more = false;
+		if (helper_search(cid, movie_title, _page_last_id, page_size) == 0) {
+			_rows.text("Not found.");
+		}
+		helper_page_footer();
+	}
+
+	/**
+	 * the next page of the last transaction_search_page()
+	 *
+	 * @param cid
+	 * @throws Exception
+	 */
+	public void transaction_search_next(int cid) throws Exception {
+		if (_page_title == null || !_page_has_more) {
+			_out.println("No more results.");
+			return;
+		}
+		helper_search(cid, _page_title, _page_last_id, _page_size);
+		helper_page_footer();
+	}
+
+	private void helper_page_footer() {
+		_rows.text("\n");
+		if (_page_has_more) {
+			_rows.text("More results: type 'next' for the next " + _page_size
+					+ "\n");
+		}
+		_rows.flush();
+	}
+
+	/**
+	 * prints up to max movies whose title matches movie_title and whose id
+	 * is greater than after, in id order, and returns how many were printed.
+	 * rows come through a cursor and are printed a batch at a time, so
+	 * neither the driver nor we hold the whole result. leaves the last id
+	 * printed in _page_last_id and whether there is more in _page_has_more
+	 *
+	 * @throws Exception
+	 */
+	private int helper_search(int cid, String movie_title, int after, int max)
+			throws Exception {
+		acquire("transaction_search");
+		try {
+			int printed = 0;
+			SearchCache.Entry cached = helper_cached_search(movie_title);
+			if (cached != null) {
+				int from = Arrays.binarySearch(cached.ids, after);
+				from = from >= 0 ? from + 1 : -from - 1;
+				int to = (int) Math.min((long) from + max, cached.ids.length);
+				int remaining = to > from ? helper_remaining_rentals(cid) : 0;
+				for (int i = from; i < to; i += SEARCH_BATCH_SIZE) {
+					int end = Math.min(to, i + SEARCH_BATCH_SIZE);
+					helper_search_batch(cid, remaining,
+							Arrays.copyOfRange(cached.ids, i, end),
+							Arrays.copyOfRange(cached.names, i, end),
+							Arrays.copyOfRange(cached.years, i, end),
+							Arrays.copyOfRange(cached.people, i, end), end - i);
+					printed += end - i;
+					_page_last_id = cached.ids[end - 1];
+				}
+				_page_has_more = to < cached.ids.length;
+				return printed;
+			}
+			int[] candidates = helper_title_candidates(movie_title);
+			if (candidates == null) {
+				String pattern = "%" + movie_title + "%";
+				ResultSet movie_set;
+				/* the driver only fetches through a cursor inside a transaction */
+				_imdb.setAutoCommit(false);
+				try {
+					if (max == Integer.MAX_VALUE) {
+						_search_statement.clearParameters();
+						_search_statement.setString(1, pattern);
+						_search_statement.setFetchSize(CURSOR_FETCH_SIZE);
+						movie_set = _search_statement.executeQuery();
+					} else {
+						/* one row past the page tells whether there is more */
+						_search_page_statement.clearParameters();
+						_search_page_statement.setString(1, pattern);
+						_search_page_statement.setInt(2, after);
+						_search_page_statement.setInt(3, max + 1);
+						_search_page_statement.setFetchSize(CURSOR_FETCH_SIZE);
+						movie_set = _search_page_statement.executeQuery();
+					}
+					try {
+						printed = helper_search_movies(cid, movie_set, max);
+					} finally {
+						movie_set.close();
+					}
+				} finally {
+					_imdb.setAutoCommit(true);
+				}
+			} else {
+				/* the title index already knows the ids, fetch only those */
+				int from = Arrays.binarySearch(candidates, after);
+				from = from >= 0 ? from + 1 : -from - 1;
+				int to = (int) Math.min((long) from + max, candidates.length);
+				for (int i = from; i < to; i += SEARCH_BATCH_SIZE) {
+					if (catalogSnapshot != null) {
+						printed += helper_search_snapshot(cid, candidates, i,
+								Math.min(to, i + SEARCH_BATCH_SIZE));
+						continue;
+					}
+					ResultSet movie_set = helper_movies_by_ids(candidates, i,
+							Math.min(to, i + SEARCH_BATCH_SIZE));
+					try {
+						printed += helper_search_movies(cid, movie_set,
+								Integer.MAX_VALUE);
+					} finally {
+						movie_set.close();
+					}
+				}
+				_page_has_more = to < candidates.length;
+			}
+			return printed;
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			_rows.flush();
+			release();
+		}
+	}
+
+	/**
+	 * the cached results of movie_title, loading them if needed, or null if
+	 * there is no search cache or the title matches too many movies to cache.
+	 * only the catalog side is cached, rental status is always looked up
+	 * when the results are printed
+	 *
+	 * @throws Exception
+	 */
+	private SearchCache.Entry helper_cached_search(String movie_title)
+			throws Exception {
+		SearchCache cache = searchCache;
+		if (cache == null) {
+			return null;
+		}
+		SearchCache.Entry e = cache.get(movie_title, new SearchCache.Loader() {
+			public SearchCache.Entry load(String term) throws Exception {
+				return helper_load_search(term, searchCache.getMaxResults());
+			}
+		});
+		return e.isTooLarge() ? null : e;
+	}
+
+	/**
+	 * every movie matching title with its directors and cast, for the search
+	 * cache, or SearchCache.tooLarge() once more than max movies match
+	 *
+	 * @throws Exception
+	 */
+	private SearchCache.Entry helper_load_search(String title, int max)
+			throws Exception {
+		int[] candidates = helper_title_candidates(title);
+		int[] ids;
+		String[] names;
+		String[] years;
+		int n = 0;
+		if (candidates == null) {
+			ids = new int[64];
+			names = new String[64];
+			years = new String[64];
+			_imdb.setAutoCommit(false);
+			try {
+				_search_page_statement.clearParameters();
+				_search_page_statement.setString(1, "%" + title + "%");
+				_search_page_statement.setInt(2, Integer.MIN_VALUE);
+				_search_page_statement.setInt(3, max + 1);
+				_search_page_statement.setFetchSize(CURSOR_FETCH_SIZE);
+				ResultSet movie_set = _search_page_statement.executeQuery();
+				try {
+					while (movie_set.next()) {
+						if (n == max) {
+							return SearchCache.tooLarge();
+						}
+						if (n == ids.length) {
+							ids = Arrays.copyOf(ids, n * 2);
+							names = Arrays.copyOf(names, n * 2);
+							years = Arrays.copyOf(years, n * 2);
+						}
+						ids[n] = movie_set.getInt(1);
+						names[n] = movie_set.getString(2);
+						years[n] = movie_set.getString(3);
+						n++;
+					}
+				} finally {
+					movie_set.close();
+				}
+			} finally {
+				_imdb.setAutoCommit(true);
+			}
+		} else {
+			if (candidates.length > max) {
+				return SearchCache.tooLarge();
+			}
+			ids = new int[candidates.length];
+			names = new String[candidates.length];
+			years = new String[candidates.length];
+			CatalogSnapshot snapshot = catalogSnapshot;
+			for (int i = 0; i < candidates.length; i += SEARCH_BATCH_SIZE) {
+				int to = Math.min(candidates.length, i + SEARCH_BATCH_SIZE);
+				if (snapshot != null) {
+					for (int j = i; j < to; j++) {
+						int at = snapshot.find(candidates[j]);
+						ids[n] = candidates[j];
+						names[n] = snapshot.name(at);
+						years[n] = snapshot.year(at);
+						n++;
+					}
+					continue;
+				}
+				ResultSet movie_set = helper_movies_by_ids(candidates, i, to);
+				try {
+					while (movie_set.next()) {
+						ids[n] = movie_set.getInt(1);
+						names[n] = movie_set.getString(2);
+						years[n] = movie_set.getString(3);
+						n++;
+					}
+				} finally {
+					movie_set.close();
+				}
+			}
+		}
+		ids = Arrays.copyOf(ids, n);
+		CatalogCache.Entry[] people = new CatalogCache.Entry[n];
+		for (int i = 0; i < n; i += SEARCH_BATCH_SIZE) {
+			int to = Math.min(n, i + SEARCH_BATCH_SIZE);
+			CatalogCache.Entry[] batch = helper_movie_details(
+					Arrays.copyOfRange(ids, i, to), to - i);
+			System.arraycopy(batch, 0, people, i, to - i);
+		}
+		return new SearchCache.Entry(ids, Arrays.copyOf(names, n),
+				Arrays.copyOf(years, n), people);
+	}
+
+	/**
+	 * fast search output of cached results, with the rental status looked
+	 * up a window at a time
+	 *
+	 * @throws Exception
+	 */
+	private void helper_fast_search_from(int cid, SearchCache.Entry cached)
+			throws Exception {
+		try {
+			if (cached.ids.length == 0) {
+				_rows.text("Not found.\n");
+				return;
+			}
+			int remaining = helper_remaining_rentals(cid);
+			int[] mids = new int[FAST_SEARCH_WINDOW];
+			for (int from = 0; from < cached.ids.length; from += FAST_SEARCH_WINDOW) {
+				int n = Math.min(FAST_SEARCH_WINDOW, cached.ids.length - from);
+				System.arraycopy(cached.ids, from, mids, 0, n);
+				int[] has = helper_who_has_these_movies(mids, n);
+				for (int i = 0; i < n; i++) {
+					helper_fast_search_row(cid, remaining, mids[i],
+							cached.names[from + i], cached.years[from + i],
+							cached.people[from + i], has[i]);
+				}
+			}
+		} finally {
+			_rows.flush();
+		}
+	}
+
+	/**
+	 * ids of the movies matching movie_title according to the title index,
+	 * or null if there is no index or it can't answer this term and the
+	 * ILIKE queries have to be used
+	 */
+	private int[] helper_title_candidates(String movie_title) {
+		TitleIndex index = titleIndex;
+		if (index != null) {
+			return index.search(movie_title);
+		}
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null) {
+			return snapshot.search(movie_title);
+		}
+		return null;
+	}
+
+	/**
+	 * the movie rows for ids[from .. to), sorted by id
+	 *
+	 * @throws Exception
+	 */
+	private ResultSet helper_movies_by_ids(int[] ids, int from, int to)
+			throws Exception {
+		_movies_by_ids_statement.clearParameters();
+		_movies_by_ids_statement.setArray(1, helper_id_array(_imdb, ids, from, to));
+		return _movies_by_ids_statement.executeQuery();
+	}
+
+
+	private java.sql.Array helper_id_array(Connection conn, int[] ids,
+			int from, int to) throws SQLException {
+		Integer[] boxed = new Integer[to - from];
+		for (int i = from; i < to; i++) {
+			boxed[i - from] = ids[i];
+		}
+		return conn.createArrayOf("int4", boxed);
+	}
+
+	/**
+	 * prints the search output of up to max movies of movie_set, which is
+	 * sorted by id, and returns how many were printed. movies are collected
+	 * in batches of ids, and the directors, actors and rental status of a
+	 * whole batch are fetched with one query each instead of one per movie
+	 *
+	 * @throws Exception
+	 */
+	private int helper_search_movies(int cid, ResultSet movie_set, int max)
+			throws Exception {
+		int[] mids = new int[SEARCH_BATCH_SIZE];
+		String[] names = new String[SEARCH_BATCH_SIZE];
+		String[] years = new String[SEARCH_BATCH_SIZE];
+		int remaining = 0;
+		int n = 0;
+		int printed = 0;
+		boolean more = movie_set.next();
+		if (more) {
+			remaining = helper_remaining_rentals(cid);
+		}
+		while (more && printed + n < max) {
+			mids[n] = movie_set.getInt(1);
+			names[n] = movie_set.getString(2);
+			years[n] = movie_set.getString(3);
+			n++;
+			more = movie_set.next();
+			if (n == SEARCH_BATCH_SIZE || !more || printed + n == max) {
+				helper_search_batch(cid, remaining, mids, names, years, null, n);
+				printed += n;
+				_page_last_id = mids[n - 1];
+				n = 0;
+			}
+		}
+		_page_has_more = more;
+		return printed;
+	}
+	/**
+	 * like helper_search_movies, for the movies ids[from .. to) read from
+	 * the catalog snapshot instead of a result set
 	 *
-	 * @param name
-	 * @param password
-	 * @return
 	 * @throws Exception
 	 */
-	public int transaction_login(String name, String password) throws Exception {
-		int cid;
-
-		_customer_login_statement.clearParameters();
-		_customer_login_statement.setString(1, name);
-		_customer_login_statement.setString(2, password);
-		ResultSet cid_set = _customer_login_statement.executeQuery();
-		if (cid_set.next())
-			cid = cid_set.getInt(1);
-		else
-			cid = -1;
-		return (cid);
+	private int helper_search_snapshot(int cid, int[] ids, int from, int to)
+			throws Exception {
+		CatalogSnapshot snapshot = catalogSnapshot;
+		int n = to - from;
+		int[] mids = new int[n];
+		String[] names = new String[n];
+		String[] years = new String[n];
+		for (int i = 0; i < n; i++) {
+			mids[i] = ids[from + i];
+			int at = snapshot.find(mids[i]);
+			names[i] = snapshot.name(at);
+			years[i] = snapshot.year(at);
+		}
+		helper_search_batch(cid, helper_remaining_rentals(cid), mids, names,
+				years, null, n);
+		_page_last_id = mids[n - 1];
+		return n;
 	}
 
+
 	/**
-	 * println the customer's personal data: name, and plan number
+	 * writes the search output for the first n movies of mids (sorted by id)
+	 * to _rows. directors and actors are taken from details if it is given;
+	 * otherwise they, like the current renters, take one query each for the
+	 * whole batch
 	 *
 	 * @param cid
+	 * @param remaining
+	 *            rentals the customer has left, fetched once per search
 	 * @throws Exception
 	 */
-	public void transaction_personal_data(int cid) throws Exception {
-		System.out.println("Name: " + helper_compute_customer_name(cid));
-		System.out.println("You can rent "
-				+ helper_compute_remaining_rentals(cid) + " additional movies");
+	private void helper_search_batch(int cid, int remaining, int[] mids,
+			String[] names, String[] years, CatalogCache.Entry[] details, int n)
+			throws Exception {
+		if (details == null) {
+			details = helper_movie_details(mids, n);
+		}
+		int[] has = helper_who_has_these_movies(mids, n);
+		for (int i = 0; i < n; i++) {
+			CatalogCache.Entry people = details[i];
+			_rows.begin(SEARCH_MOVIE_ROW).field(mids[i]).field(names[i])
+					.field(years[i]).end();
+			for (int j = 0; j < people.directorFirst.length; j++) {
+				_rows.begin(SEARCH_DIRECTOR_ROW).field(people.directorLast[j])
+						.field(people.directorFirst[j]).end();
+			}
+			for (int j = 0; j < people.actorFirst.length; j++) {
+				_rows.begin(SEARCH_ACTOR_ROW).field(people.actorLast[j])
+						.field(people.actorFirst[j])
+						.field(people.actorGender[j]).end();
+			}
+			_rows.begin(SEARCH_STATUS_ROW)
+					.field(helper_status(cid, remaining, has[i])).end();
+		}
 	}
 
-	/**********************************************************/
-	/* main functions in this project: */
+	/**
+	 * directors and cast of the first n movies of mids (sorted by id). movies
+	 * found in the catalog cache come from there; the rest take one director
+	 * query and one actor query for all of them, and are then cached
+	 *
+	 * @throws Exception
+	 */
+	private CatalogCache.Entry[] helper_movie_details(int[] mids, int n)
+			throws Exception {
+		CatalogCache.Entry[] details = new CatalogCache.Entry[n];
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null) {
+			for (int i = 0; i < n; i++) {
+				int at = snapshot.find(mids[i]);
+				details[i] = at >= 0 ? snapshot.people(at)
+						: new CatalogCache.Builder().build();
+			}
+			return details;
+		}
+		int[] missing = new int[n];
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if (catalogCache != null) {
+				details[i] = catalogCache.get(mids[i]);
+			}
+			if (details[i] == null) {
+				missing[m++] = mids[i];
+			}
+		}
+		if (m == 0) {
+			return details;
+		}
+		CatalogCache.Builder[] people = new CatalogCache.Builder[m];
+		for (int i = 0; i < m; i++) {
+			people[i] = new CatalogCache.Builder();
+		}
+		java.sql.Array ids = helper_id_array(_imdb, missing, 0, m);
+		/* directors of every movie in the batch */
+		_director_mids_statement.clearParameters();
+		_director_mids_statement.setArray(1, ids);
+		ResultSet director_set = _director_mids_statement.executeQuery();
+		while (director_set.next()) {
+			int i = Arrays.binarySearch(missing, 0, m, director_set.getInt(1));
+			people[i].director(director_set.getString(3),
+					director_set.getString(4));
+		}
+		director_set.close();
+		/* now the actors, in the same manner */
+		_actor_mids_statement.clearParameters();
+		_actor_mids_statement.setArray(1, ids);
+		ResultSet actor_set = _actor_mids_statement.executeQuery();
+		while (actor_set.next()) {
+			int i = Arrays.binarySearch(missing, 0, m, actor_set.getInt(1));
+			people[i].actor(actor_set.getString(3), actor_set.getString(4),
+					actor_set.getString(5));
+		}
+		actor_set.close();
+		for (int i = 0, j = 0; i < n; i++) {
+			if (details[i] == null) {
+				details[i] = people[j++].build();
+				if (catalogCache != null) {
+					catalogCache.put(mids[i], details[i]);
+				}
+			}
+		}
+		return details;
+	}
 
 	/**
-	 * searches for movies with matching titles: SELECT * FROM movie WHERE name
-	 * LIKE movie_title prints the movies, directors, actors, and the
-	 * availability status: AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT
-	 * set the first (and single) '?' parameter
+	 * who currently rents each of the first n movies of mids (sorted by id),
+	 * -1 where nobody does. one query for all of them, or none if the rental
+	 * cache is on
 	 *
-	 * @param cid
-	 * @param movie_title
 	 * @throws Exception
 	 */
-	public void transaction_search(int cid, String movie_title)
+	private int[] helper_who_has_these_movies(int[] mids, int n)
 			throws Exception {
-		_search_statement.clearParameters();
-		_search_statement.setString(1, "%" + movie_title + "%");
-		ResultSet movie_set = null;
-		StringBuilder sb = new StringBuilder();
-		try {
-			movie_set = _search_statement.executeQuery();
-			boolean empty = true;
-			while (movie_set.next()) {
-				empty = false;
-				int mid = movie_set.getInt(1);
-				sb.append(String.format("ID: %d\nName: %s\nYear: %s\n", mid,
-						movie_set.getString(2), movie_set.getString(3)));
-				/* do a dependent join with directors */
-				_director_mid_statement.clearParameters();
-				_director_mid_statement.setInt(1, mid);
-				ResultSet director_set = _director_mid_statement.executeQuery();
-				while (director_set.next()) {
-					sb.append(String.format("Director: %s %s\n",
-							director_set.getString(3),
-							director_set.getString(2)));
-				}
-				director_set.close();
-				/* now you need to retrieve the actors, in the same manner */
-				_actor_mid_statement.clearParameters();
-				_actor_mid_statement.setInt(1, mid);
-				ResultSet actor_set = _actor_mid_statement.executeQuery();
-				while (actor_set.next()) {
-					sb.append(String.format("Actor: %s %s %s\n",
-							actor_set.getString(3), actor_set.getString(2),
-							actor_set.getString(4)));
-				}
-				actor_set.close();
-				/*
-				 * then you have to find the status: of "AVAILABLE"
-				 * "YOU HAVE IT", "UNAVAILABLE"
-				 */
-				int has = helper_who_has_this_movie(mid);
-				if (has == cid) {
-					sb.append("YOU HAVE IT\n");
-				} else if (helper_compute_remaining_rentals(cid) == 0
-						|| has != -1) {
-					sb.append("UNAVAILABLE\n");
-				} else if (has == -1) {
-					sb.append("AVAILABLE\n");
-				}
-			}
-			if (empty) {
-				sb.append("Not found.");
+		if (rentalCache != null) {
+			return rentalCache.renters(mids, n);
+		}
+		return helper_query_who_has(mids, n);
+	}
+
+	/**
+	 * like helper_who_has_these_movies but always asks the database, for
+	 * checks that have to be exact
+	 *
+	 * @throws Exception
+	 */
+	private int[] helper_query_who_has(int[] mids, int n) throws Exception {
+		int[] has = new int[n];
+		Arrays.fill(has, -1);
+		_who_has_these_movies_statement.clearParameters();
+		_who_has_these_movies_statement.setArray(1,
+				helper_id_array(_customer_db, mids, 0, n));
+		ResultSet rental_set = _who_has_these_movies_statement.executeQuery();
+		while (rental_set.next()) {
+			int i = Arrays.binarySearch(mids, 0, n, rental_set.getInt(1));
+			if (i >= 0) {
+				has[i] = rental_set.getInt(2);
 			}
-		} finally {
-			movie_set.close();
 		}
-		System.out.println(sb);
+		rental_set.close();
+		return has;
+	}
+
+	/**
+	 * the status line of a movie: "AVAILABLE", "YOU HAVE IT", "UNAVAILABLE"
+	 *
+	 * @param has
+	 *            who rents the movie, -1 if nobody
+	 */
+	private String helper_status(int cid, int remaining, int has) {
+		if (has == cid) {
+			return "YOU HAVE IT";
+		} else if (remaining == 0 || has != -1) {
+			return "UNAVAILABLE";
+		} else {
+			return "AVAILABLE";
+		}
 	}
 
 	/**
@@ -410,61 +2151,239 @@ public class Query {
 	 * @param pid
 	 * @throws Exception
 	 */
-	public void transaction_choose_plan(int cid, int pid) throws Exception {
-		_activerentals_count_statement.clearParameters();
-		_activerentals_count_statement.setInt(1, cid);
-		_rentals_for_plan_statement.clearParameters();
-		_rentals_for_plan_statement.setInt(1, pid);
-		_begin_transaction_read_write_statement.executeUpdate();
-		_update_rental_plan_statement.clearParameters();
-		_update_rental_plan_statement.setInt(1, pid);
-		_update_rental_plan_statement.setInt(2, cid);
-		ResultSet count_set = null;
-		ResultSet maxRental_set = null;
+	public void transaction_choose_plan(final int cid, final int pid)
+			throws Exception {
+		acquireCustomer("transaction_choose_plan");
 		try {
-			// retrieve the number of active rentals for that user
-			count_set = _activerentals_count_statement.executeQuery();
-			count_set.next();
-			int activeRentals = count_set.getInt(1);
-			// retrieve max allowed rentals for indicated plan
-			maxRental_set = _rentals_for_plan_statement
-					.executeQuery();
-			maxRental_set.next();
-			int maxRentals = maxRental_set.getInt(1);
-
-			// compare active rentals with allowed rentals
-			if (activeRentals <= maxRentals) {
-				_update_rental_plan_statement.executeUpdate();
-				_commit_transaction_statement.executeUpdate();
+			/* { active rentals, max rentals of the plan, 1 if switched } */
+			int[] outcome = helper_in_transaction(new Work<int[]>() {
+				public int[] run() throws SQLException {
+					// retrieve the number of active rentals for that user
+					_activerentals_count_statement.clearParameters();
+					_activerentals_count_statement.setInt(1, cid);
+					ResultSet count_set = _activerentals_count_statement
+							.executeQuery();
+					count_set.next();
+					int activeRentals = count_set.getInt(1);
+					count_set.close();
+					// retrieve max allowed rentals for indicated plan
+					_rentals_for_plan_statement.clearParameters();
+					_rentals_for_plan_statement.setInt(1, pid);
+					ResultSet maxRental_set = _rentals_for_plan_statement
+							.executeQuery();
+					maxRental_set.next();
+					int maxRentals = maxRental_set.getInt(1);
+					maxRental_set.close();
+
+					// compare active rentals with allowed rentals
+					if (activeRentals > maxRentals) {
+						return new int[] { activeRentals, maxRentals, 0 };
+					}
+					_update_rental_plan_statement.clearParameters();
+					_update_rental_plan_statement.setInt(1, pid);
+					_update_rental_plan_statement.setInt(2, cid);
+					_update_rental_plan_statement.executeUpdate();
+					return new int[] { activeRentals, maxRentals, 1 };
+				}
+			});
+			CustomerState state = helper_loaded_state(cid);
+			if (state != null && state.getActiveRentals() != outcome[0]) {
+				state.markStale();
+			}
+			if (outcome[2] == 1) {
+				if (state != null) {
+					state.planChanged(pid, outcome[1]);
+				}
 			} else {
-				_rollback_transaction_statement.executeUpdate();
-				System.err.println("Plan not changed! You have "
-						+ activeRentals + " active rentals. "
-						+ "The new plan allows for " + maxRentals
-						+ " active rentals. "
+				_err.println("Plan not changed! You have " + outcome[0]
+						+ " active rentals. " + "The new plan allows for "
+						+ outcome[1] + " active rentals. "
 						+ "Please return some rentals first.");
 			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
 		} finally {
-			count_set.close();
-			maxRental_set.close();
+			release();
 		}
 	}
 
+
 	/**
 	 * println all available plans: SELECT * FROM plan
 	 *
 	 * @throws Exception
 	 */
 	public void transaction_list_plans() throws Exception {
-		_rental_plans_statement.clearParameters();
-		ResultSet plan_set = _rental_plans_statement.executeQuery();
+		acquireCustomer("transaction_list_plans");
+		try {
+			_rental_plans_statement.clearParameters();
+			ResultSet plan_set = _rental_plans_statement.executeQuery();
+
+			while (plan_set.next()) {
+				_out.print("Plan ID: " + plan_set.getInt(1) + ", ");
+				_out.print("Name: " + plan_set.getString(2) + ", ");
+				_out.print("Max Rentals: " + plan_set.getInt(3) + ", ");
+				_out.print("Monthly Fee: " + plan_set.getDouble(4) + "\n");
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * prints a page of the customer's past rentals, newest first. more
+	 * continues after the last rental printed by the previous call. the page
+	 * is found by keyset on (datein, rental_id), which the per customer index
+	 * of every history partition answers directly, however long the history
+	 *
+	 * @param cid
+	 * @param page_size
+	 * @param more
+	 * @throws Exception
+	 */
+	public void transaction_history(int cid, int page_size, boolean more)
+			throws Exception {
+		if (more && !_history_has_more) {
+			_out.println("No more rentals.");
+			return;
+		}
+		acquire("transaction_history");
+		try {
+			/* one row past the page tells whether there is more */
+			PreparedStatement history;
+			if (more) {
+				history = _history_statement;
+				history.clearParameters();
+				history.setInt(1, cid);
+				history.setTimestamp(2, _history_datein);
+				history.setInt(3, _history_rental_id);
+				history.setInt(4, page_size + 1);
+			} else {
+				history = _history_first_statement;
+				history.clearParameters();
+				history.setInt(1, cid);
+				history.setInt(2, page_size + 1);
+			}
+			ResultSet history_set = history.executeQuery();
+			int[] mids = new int[page_size];
+			String[] dateouts = new String[page_size];
+			String[] dateins = new String[page_size];
+			int n = 0;
+			boolean has_more = false;
+			try {
+				while (history_set.next()) {
+					if (n == page_size) {
+						has_more = true;
+						break;
+					}
+					mids[n] = history_set.getInt(2);
+					dateouts[n] = String.valueOf(history_set.getTimestamp(3));
+					dateins[n] = String.valueOf(history_set.getTimestamp(4));
+					_history_rental_id = history_set.getInt(1);
+					_history_datein = history_set.getTimestamp(4);
+					n++;
+				}
+			} finally {
+				history_set.close();
+			}
+			_history_has_more = has_more;
+			if (n == 0) {
+				_rows.text(more ? "No more rentals.\n" : "No past rentals.\n");
+				_rows.flush();
+				return;
+			}
+			String[] names = helper_movie_names(mids, n);
+			for (int i = 0; i < n; i++) {
+				_rows.begin(HISTORY_ROW).field(dateouts[i]).field(dateins[i])
+						.field(mids[i]).field(names[i]).end();
+			}
+			if (has_more) {
+				_rows.text("More: type 'history more'\n");
+			}
+			_rows.flush();
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * the k movies most often rented by the customers who rented mid, from
+	 * the co-rental index
+	 *
+	 * @param mid
+	 * @param k
+	 * @throws Exception
+	 */
+	public void transaction_similar(int mid, int k) throws Exception {
+		CoRentalIndex index = coRentals;
+		if (index == null) {
+			_out.println(coRentalsEnabled ? "Recommendations are not ready yet."
+					: "Recommendations are off, set coRentals = true in dbconn.config");
+			return;
+		}
+		int[] mids = new int[k];
+		int[] customers = new int[k];
+		int n = index.similar(mid, k, mids, customers);
+		if (n == 0) {
+			_out.println("No other movies rented by customers who rented "
+					+ mid + ".");
+			return;
+		}
+		acquireImdb("transaction_similar");
+		try {
+			String[] names = helper_movie_names(mids, n);
+			for (int i = 0; i < n; i++) {
+				_rows.begin(SIMILAR_ROW).field(mids[i]).field(names[i])
+						.field(customers[i]).end();
+			}
+			_rows.flush();
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
 
-		while (plan_set.next()) {
-			System.out.print("Plan ID: " + plan_set.getInt(1) + ", ");
-			System.out.print("Name: " + plan_set.getString(2) + ", ");
-			System.out.print("Max Rentals: " + plan_set.getInt(3) + ", ");
-			System.out.print("Monthly Fee: " + plan_set.getDouble(4) + "\n");
+	/**
+	 * titles of the first n movies of mids, from the catalog snapshot if
+	 * there is one, otherwise with one imdb query
+	 *
+	 * @throws Exception
+	 */
+	private String[] helper_movie_names(int[] mids, int n) throws Exception {
+		String[] names = new String[n];
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (snapshot != null) {
+			for (int i = 0; i < n; i++) {
+				int at = snapshot.find(mids[i]);
+				names[i] = at >= 0 ? snapshot.name(at) : "Unknown";
+			}
+			return names;
+		}
+		int[] sorted = helper_distinct_sorted(Arrays.copyOf(mids, n));
+		String[] sorted_names = new String[sorted.length];
+		ResultSet movie_set = helper_movies_by_ids(sorted, 0, sorted.length);
+		try {
+			while (movie_set.next()) {
+				int k = Arrays.binarySearch(sorted, movie_set.getInt(1));
+				sorted_names[k] = movie_set.getString(2);
+			}
+		} finally {
+			movie_set.close();
 		}
+		for (int i = 0; i < n; i++) {
+			String name = sorted_names[Arrays.binarySearch(sorted, mids[i])];
+			names[i] = name == null ? "Unknown" : name; // imdb movie somehow disappeared
+		}
+		return names;
 	}
 
 	/**
@@ -474,38 +2393,47 @@ public class Query {
 	 * @throws Exception
 	 */
 	public void transaction_list_user_rentals(int cid) throws Exception {
-		ResultSet mids = null;
-		ResultSet names = null;
-		StringBuilder sb = new StringBuilder();
-		sb.append("Your rentals:\n");
+		acquire("transaction_list_user_rentals");
 		try {
-			_activerentals_by_cid_statement.clearParameters();
-			_activerentals_by_cid_statement.setInt(1, cid);
-			mids = _activerentals_by_cid_statement.executeQuery();
-			while (mids.next()) {
-				_movie_by_id_statement.clearParameters();
-				// rental_id serial, movie_id integer, cust_id integer, dateout
-				// timestamp
-				_movie_by_id_statement.setInt(1, mids.getInt(2));
-				names = _movie_by_id_statement.executeQuery();
-				// id integer, name text, year integer
-				if (names.next()) {
-					sb.append(String.format("ID : %s\nName : %s\n",
-							names.getString(1),
-							names.getString(2)));
-				} else {
-					sb.append("Unknown\n"); // imdb movie somehow disappeared
+			ResultSet mids = null;
+			ResultSet names = null;
+			int rentals = 0;
+			_rows.text("Your rentals:\n");
+			try {
+				_activerentals_by_cid_statement.clearParameters();
+				_activerentals_by_cid_statement.setInt(1, cid);
+				mids = _activerentals_by_cid_statement.executeQuery();
+				while (mids.next()) {
+					_movie_by_id_statement.clearParameters();
+					// rental_id serial, movie_id integer, cust_id integer, dateout
+					// timestamp
+					_movie_by_id_statement.setInt(1, mids.getInt(2));
+					names = _movie_by_id_statement.executeQuery();
+					// id integer, name text, year integer
+					if (names.next()) {
+						_rows.begin(RENTAL_ROW).field(names.getInt(1))
+								.field(names.getString(2)).end();
+					} else {
+						_rows.text("Unknown\n"); // imdb movie somehow disappeared
+					}
+					rentals++;
 				}
+			} finally {
+				mids.close();
+				if (names != null)
+					names.close();
+			}
+			if (rentals == 0) {
+				_rows.text("None\n");
 			}
+			_rows.text("\n");
+			_rows.flush();
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
 		} finally {
-			mids.close();
-			if (names != null)
-				names.close();
+			release();
 		}
-		if (sb.length() <= 1) {
-			sb.append("None\n");
-		}
-		System.out.println(sb);
 	}
 
 	/**
@@ -515,25 +2443,52 @@ public class Query {
 	 * @param mid
 	 * @throws Exception
 	 */
-	public void transaction_rent(int cid, int mid) throws Exception {
-		if (helper_check_movie(mid)) {
-			_rent_mid_to_cid_statement.clearParameters();
-			_rent_mid_to_cid_statement.setInt(1, mid);
-			_rent_mid_to_cid_statement.setInt(2, cid);
-			_begin_transaction_read_write_statement.executeUpdate();
-			if (helper_compute_remaining_rentals(cid) <= 0) {
-				_rollback_transaction_statement.executeUpdate();
-				System.err.println("Rental limit already reached.");
-			} else if (helper_who_has_this_movie(mid) != -1) { // store only has
-				// one copy
-				_rollback_transaction_statement.executeUpdate();
-				System.err.println("Movie out of stock");
+	public void transaction_rent(final int cid, final int mid) throws Exception {
+		acquire("transaction_rent");
+		try {
+			if (helper_check_movie(mid)) {
+				/* limit check, stock check and insert in one server call */
+				int status = helper_with_retry(new Work<Integer>() {
+					public Integer run() throws SQLException {
+						_rent_movie_statement.clearParameters();
+						_rent_movie_statement.setInt(1, mid);
+						_rent_movie_statement.setInt(2, cid);
+						ResultSet status_set = _rent_movie_statement.executeQuery();
+						status_set.next();
+						int status = status_set.getInt(1);
+						status_set.close();
+						return status;
+					}
+				});
+				CustomerState state = helper_loaded_state(cid);
+				if (status == RENT_LIMIT_REACHED) {
+					_err.println("Rental limit already reached.");
+					if (state != null) {
+						/* we thought there was room, reload */
+						state.markStale();
+					}
+				} else if (status == RENT_OUT_OF_STOCK) { // store only has one copy
+					_err.println("Movie out of stock");
+				} else if (status == RENT_OK) {
+					if (rentalCache != null) {
+						rentalCache.rented(mid, cid);
+					}
+					CoRentalIndex index = coRentals;
+					if (index != null) {
+						index.rented(cid, mid);
+					}
+					if (state != null) {
+						state.rented(1);
+					}
+				}
 			} else {
-				_rent_mid_to_cid_statement.executeUpdate();
-				_commit_transaction_statement.executeUpdate();
+				_err.println("Invalid movie ID.");
 			}
-		} else {
-			System.err.println("Invalid movie ID.");
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
 		}
 	}
 
@@ -544,31 +2499,263 @@ public class Query {
 	 * @param mid
 	 * @throws Exception
 	 */
-	public void transaction_return(int cid, int mid) throws Exception {
-		if (helper_check_movie(mid)) {
-			_return_by_mid_statement.clearParameters();
-			_return_by_mid_statement.setInt(1, mid);
-			_begin_transaction_read_write_statement.executeUpdate();
-			// store only has one copy, don't let other users return movies for
-			// others
-			if (helper_who_has_this_movie(mid) != cid) {
-				_rollback_transaction_statement.executeUpdate();
-				System.err
-						.println("Can only return movies you have checked out.");
+	public void transaction_return(final int cid, final int mid) throws Exception {
+		acquire("transaction_return");
+		try {
+			if (helper_check_movie(mid)) {
+				/* deletes only if cid is the one renting it */
+				int status = helper_with_retry(new Work<Integer>() {
+					public Integer run() throws SQLException {
+						_return_movie_statement.clearParameters();
+						_return_movie_statement.setInt(1, mid);
+						_return_movie_statement.setInt(2, cid);
+						ResultSet status_set = _return_movie_statement
+								.executeQuery();
+						status_set.next();
+						int status = status_set.getInt(1);
+						status_set.close();
+						return status;
+					}
+				});
+				// store only has one copy, don't let other users return movies for
+				// others
+				CustomerState state = helper_loaded_state(cid);
+				if (status == RETURN_NOT_RENTED) {
+					_err
+							.println("Can only return movies you have checked out.");
+				} else if (status == RETURN_OK) {
+					/* the co-rental index keeps counting it, it is history now */
+					if (rentalCache != null) {
+						rentalCache.returned(mid);
+					}
+					if (state != null) {
+						state.returned(1);
+					}
+				}
 			} else {
-				_return_by_mid_statement.executeUpdate();
-				_commit_transaction_statement.executeUpdate();
+				_err.println("Invalid movie ID.");
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * rent all of mids to the customer cid in one transaction, with the
+	 * inserts sent as one batch. the plan limit applies to the whole request:
+	 * movies are rented in the order given until the limit is reached. prints
+	 * what happened to each id
+	 *
+	 * @param cid
+	 * @param mids
+	 * @throws Exception
+	 */
+	public void transaction_rent_batch(final int cid, final int[] mids)
+			throws Exception {
+		acquire("transaction_rent_batch");
+		try {
+			final int[] valid = helper_check_movies(mids);
+			final int[] sorted = helper_distinct_sorted(mids);
+			String[] result;
+			try {
+				result = helper_in_transaction(new Work<String[]>() {
+					public String[] run() throws Exception {
+						String[] result = new String[mids.length];
+						/* lock the customer so concurrent requests can't pass the limit */
+						_lock_customer_statement.clearParameters();
+						_lock_customer_statement.setInt(1, cid);
+						_lock_customer_statement.executeQuery().close();
+						/* no lease of its own, a retried conflict must not fail the lease */
+						int remaining = helper_query_remaining_rentals(cid);
+						int[] has = helper_query_who_has(sorted, sorted.length);
+						boolean[] seen = new boolean[sorted.length];
+						_rent_mid_to_cid_statement.clearBatch();
+						for (int i = 0; i < mids.length; i++) {
+							int k = Arrays.binarySearch(sorted, mids[i]);
+							if (Arrays.binarySearch(valid, mids[i]) < 0) {
+								result[i] = "Invalid movie ID.";
+							} else if (seen[k]) {
+								result[i] = "Listed more than once";
+							} else if (has[k] == cid) {
+								result[i] = "You already have it";
+							} else if (has[k] != -1) { // store only has one copy
+								result[i] = "Movie out of stock";
+							} else if (remaining <= 0) {
+								result[i] = "Rental limit already reached.";
+							} else {
+								_rent_mid_to_cid_statement.clearParameters();
+								_rent_mid_to_cid_statement.setInt(1, mids[i]);
+								_rent_mid_to_cid_statement.setInt(2, cid);
+								_rent_mid_to_cid_statement.addBatch();
+								remaining--;
+								result[i] = "Rented";
+							}
+							seen[k] = true;
+						}
+						_rent_mid_to_cid_statement.executeBatch();
+						return result;
+					}
+				});
+			} catch (SQLException e) {
+				System.err.println("transaction_rent_batch failed: " + e);
+				_err.println("Nothing was rented: " + helper_failure_reason(e));
+				return;
+			}
+			int count = 0;
+			CoRentalIndex index = coRentals;
+			for (int i = 0; i < mids.length; i++) {
+				if (result[i].equals("Rented")) {
+					count++;
+					if (rentalCache != null) {
+						rentalCache.rented(mids[i], cid);
+					}
+					if (index != null) {
+						index.rented(cid, mids[i]);
+					}
+				}
+				_out.println("Movie " + mids[i] + ": " + result[i]);
+			}
+			CustomerState state = helper_loaded_state(cid);
+			if (state != null) {
+				state.rented(count);
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * return all of mids for the customer cid in one transaction, with the
+	 * deletes sent as one batch. only movies cid is renting are returned.
+	 * prints what happened to each id
+	 *
+	 * @param cid
+	 * @param mids
+	 * @throws Exception
+	 */
+	public void transaction_return_batch(final int cid, final int[] mids)
+			throws Exception {
+		acquire("transaction_return_batch");
+		try {
+			final int[] valid = helper_check_movies(mids);
+			String[] result;
+			try {
+				result = helper_in_transaction(new Work<String[]>() {
+					public String[] run() throws SQLException {
+						String[] result = new String[mids.length];
+						_return_by_mid_cid_statement.clearBatch();
+						for (int i = 0; i < mids.length; i++) {
+							if (Arrays.binarySearch(valid, mids[i]) < 0) {
+								result[i] = "Invalid movie ID.";
+								continue;
+							}
+							_return_by_mid_cid_statement.clearParameters();
+							_return_by_mid_cid_statement.setInt(1, mids[i]);
+							_return_by_mid_cid_statement.setInt(2, cid);
+							_return_by_mid_cid_statement.addBatch();
+						}
+						/* a delete that hit no row means cid wasn't renting it */
+						int[] counts = _return_by_mid_cid_statement.executeBatch();
+						for (int i = 0, j = 0; i < mids.length; i++) {
+							if (result[i] == null) {
+								result[i] = counts[j++] > 0 ? "Returned"
+										: "Can only return movies you have checked out.";
+							}
+						}
+						return result;
+					}
+				});
+			} catch (SQLException e) {
+				System.err.println("transaction_return_batch failed: " + e);
+				_err.println("Nothing was returned: " + helper_failure_reason(e));
+				return;
+			}
+			int count = 0;
+			for (int i = 0; i < mids.length; i++) {
+				if (result[i].equals("Returned")) {
+					count++;
+					if (rentalCache != null) {
+						rentalCache.returned(mids[i]);
+					}
+				}
+				_out.println("Movie " + mids[i] + ": " + result[i]);
+			}
+			CustomerState state = helper_loaded_state(cid);
+			if (state != null) {
+				state.returned(count);
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+
+	/**
+	 * which of mids are valid movie ids, sorted. one query for all of them,
+	 * or none if the title index is loaded
+	 *
+	 * @throws Exception
+	 */
+	private int[] helper_check_movies(int[] mids) throws Exception {
+		int[] sorted = helper_distinct_sorted(mids);
+		int[] valid = new int[sorted.length];
+		int n = 0;
+		TitleIndex index = titleIndex;
+		CatalogSnapshot snapshot = catalogSnapshot;
+		if (index != null) {
+			for (int mid : sorted) {
+				if (index.hasMovie(mid)) {
+					valid[n++] = mid;
+				}
+			}
+		} else if (snapshot != null) {
+			for (int mid : sorted) {
+				if (snapshot.hasMovie(mid)) {
+					valid[n++] = mid;
+				}
 			}
 		} else {
-			System.err.println("Invalid movie ID.");
+			_movie_ids_statement.clearParameters();
+			_movie_ids_statement.setArray(1,
+					helper_id_array(_imdb, sorted, 0, sorted.length));
+			ResultSet id_set = _movie_ids_statement.executeQuery();
+			while (id_set.next()) {
+				valid[n++] = id_set.getInt(1);
+			}
+			id_set.close();
+		}
+		return Arrays.copyOf(valid, n);
+	}
+
+	private int[] helper_distinct_sorted(int[] mids) {
+		int[] sorted = mids.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[n++] = sorted[i];
+			}
 		}
+		return Arrays.copyOf(sorted, n);
 	}
 
 	/**
 	 * like transaction_search, but uses joins instead of independent joins
 	 * Needs to run three SQL queries: (a) movies, (b) movies join directors,
 	 * (c) movies join actors Answers are sorted by mid. Then merge-joins the
-	 * three answer sets
+	 * three answer sets. The three result sets are read through cursors and
+	 * each movie is printed once all three have moved past its id, so memory
+	 * use does not depend on how many movies match
 	 *
 	 * @param cid
 	 * @param movie_title
@@ -576,70 +2763,351 @@ public class Query {
 	 */
 	public void transaction_fast_search(int cid, String movie_title)
 			throws Exception {
-		HashMap<String, StringBuilder> results = new HashMap<String, StringBuilder>();
-		// cid is not required as a parameter.
-		// fast search is not required to return rental status
-		StringBuilder current;
-		ResultSet qResults = null;
-		String id;
-		_search_statement.clearParameters();
-		_search_statement.setString(1, "%" + movie_title + "%");
-		boolean empty = true;
-		while ((qResults == null ? (qResults = _search_statement
-				.executeQuery()) : qResults).next()) {
-			empty = false;
-			current = new StringBuilder();
-			id = qResults.getString("id");
-			current.append(String.format("ID : %s\nName : %s\nYear : %s\n", id,
-					qResults.getString("name"), qResults.getString("year")));
-			results.put(id, current);
-		}
+		acquire("transaction_fast_search");
 		try {
-			if (empty) {
-				System.out.println("Not found.");
+			SearchCache.Entry cached = helper_cached_search(movie_title);
+			if (cached != null) {
+				helper_fast_search_from(cid, cached);
 				return;
 			}
+			int[] candidates = helper_title_candidates(movie_title);
+			int remaining = helper_remaining_rentals(cid);
+			int printed = 0;
+			ResultSet movies = null;
+			ResultSet directors = null;
+			ResultSet actors = null;
+			/* the driver only fetches through a cursor inside a transaction */
+			_imdb.setAutoCommit(false);
+			try {
+				if (candidates == null) {
+					String pattern = "%" + movie_title + "%";
+					_fast_search_pattern = pattern;
+					_search_statement.clearParameters();
+					_search_statement.setString(1, pattern);
+					_search_statement.setFetchSize(CURSOR_FETCH_SIZE);
+					_movie_join_dir_statement.clearParameters();
+					_movie_join_dir_statement.setString(1, pattern);
+					_movie_join_dir_statement.setFetchSize(CURSOR_FETCH_SIZE);
+					_movie_join_actor_statement.clearParameters();
+					_movie_join_actor_statement.setString(1, pattern);
+					_movie_join_actor_statement.setFetchSize(CURSOR_FETCH_SIZE);
+					if (catalogCache != null) {
+						/* people come from the cache, skip the join scans */
+						movies = _search_statement.executeQuery();
+						printed += helper_fast_search_cached(cid, remaining, movies);
+					} else if (fastSearchExecutor != null) {
+						printed += helper_parallel_fast_search(cid, remaining);
+					} else {
+						movies = _search_statement.executeQuery();
+						directors = _movie_join_dir_statement.executeQuery();
+						actors = _movie_join_actor_statement.executeQuery();
+						printed += helper_merge_search(cid, remaining, movies,
+								directors, actors);
+					}
+				} else if (catalogSnapshot != null) {
+					printed += helper_fast_search_snapshot(cid, remaining,
+							candidates);
+				} else if (catalogCache != null) {
+					for (int from = 0; from < candidates.length; from += SEARCH_BATCH_SIZE) {
+						movies = helper_movies_by_ids(candidates, from,
+								Math.min(candidates.length, from + SEARCH_BATCH_SIZE));
+						printed += helper_fast_search_cached(cid, remaining, movies);
+						movies.close();
+					}
+				} else {
+					/* the title index already knows the ids, fetch only those */
+					for (int from = 0; from < candidates.length; from += SEARCH_BATCH_SIZE) {
+						int to = Math.min(candidates.length, from + SEARCH_BATCH_SIZE);
+						java.sql.Array ids = helper_id_array(_imdb, candidates, from, to);
+						_director_mids_statement.clearParameters();
+						_director_mids_statement.setArray(1, ids);
+						_actor_mids_statement.clearParameters();
+						_actor_mids_statement.setArray(1, ids);
+						movies = helper_movies_by_ids(candidates, from,
+								Math.min(candidates.length, from + SEARCH_BATCH_SIZE));
+						directors = _director_mids_statement.executeQuery();
+						actors = _actor_mids_statement.executeQuery();
+						printed += helper_merge_search(cid, remaining, movies,
+								directors, actors);
+						movies.close();
+						directors.close();
+						actors.close();
+					}
+				}
+				if (printed == 0) {
+					_rows.text("Not found.\n");
+				}
+			} finally {
+				_rows.flush();
+				if (movies != null)
+					movies.close();
+				if (directors != null)
+					directors.close();
+				if (actors != null)
+					actors.close();
+				/* ends the read only transaction */
+				_imdb.setAutoCommit(true);
+			}
+		} catch (Exception e) {
+			_lease_ok = false;
+			throw e;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * runs the three fast search queries, whose parameters are already set,
+	 * at the same time on three connections and merge-joins the results.
+	 * falls back to running them one after another on _imdb if the pool has
+	 * no spare connections. if one query fails or the wait is interrupted the
+	 * others are cancelled. returns the number of movies printed
+	 *
+	 * @throws Exception
+	 */
+	private int helper_parallel_fast_search(int cid, int remaining)
+			throws Exception {
+		ConnectionPool.PooledConnection[] leases = new ConnectionPool.PooledConnection[2];
+		final PreparedStatement[] stms = new PreparedStatement[3];
+		ResultSet[] results = new ResultSet[3];
+		ArrayList<Future<ResultSet>> futures = new ArrayList<Future<ResultSet>>(3);
+		boolean ok = false;
+		try {
+			leases[0] = imdbPool.tryBorrow();
+			leases[1] = leases[0] == null ? null : imdbPool.tryBorrow();
+			stms[0] = _search_statement;
+			stms[1] = _movie_join_dir_statement;
+			stms[2] = _movie_join_actor_statement;
+			if (leases[1] != null) {
+				stms[1] = helper_copy_statement(leases[0], _movie_join_dir_sql,
+						_movie_join_dir_statement);
+				stms[2] = helper_copy_statement(leases[1], _movie_join_actor_sql,
+						_movie_join_actor_statement);
+			}
+			for (int i = 0; i < 3; i++) {
+				final PreparedStatement stm = stms[i];
+				if (leases[1] == null) {
+					results[i] = stm.executeQuery();
+					continue;
+				}
+				futures.add(fastSearchExecutor.submit(new Callable<ResultSet>() {
+					public ResultSet call() throws SQLException {
+						return stm.executeQuery();
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				results[i] = futures.get(i).get();
+			}
+			int printed = helper_merge_search(cid, remaining, results[0],
+					results[1], results[2]);
+			ok = true;
+			return printed;
+		} catch (ExecutionException e) {
+			helper_cancel(stms, futures);
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} catch (InterruptedException e) {
+			helper_cancel(stms, futures);
+			Thread.currentThread().interrupt();
+			throw new SQLException("fast search interrupted");
 		} finally {
-			qResults.close();
-			qResults = null;
-		}
-		_movie_join_dir_statement.clearParameters();
-		_movie_join_dir_statement.setString(1, "%" + movie_title + "%");
-		while ((qResults == null ? (qResults = _movie_join_dir_statement
-				.executeQuery()) : qResults).next()) {
-			current = results.get(qResults.getString("id"));
-			current.append(String.format("Director : %s %s\n",
-					qResults.getString("fname"), qResults.getString("lname")));
-		}
-
-		_movie_join_actor_statement.clearParameters();
-		_movie_join_actor_statement.setString(1, "%" + movie_title + "%");
-		qResults.close();
-		qResults = null;
-		while ((qResults == null ? (qResults = _movie_join_actor_statement
-				.executeQuery()) : qResults).next()) {
-			current = results.get(qResults.getString("id"));
-			current.append(String.format("Actor : %s %s\n",
-					qResults.getString("fname"), qResults.getString("lname")));
-		}
-		qResults.close();
-		qResults = null;
-		for (String mid : results.keySet()) {
-			/*
-			 * then you have to find the status: of "AVAILABLE"
-			 * "YOU HAVE IT", "UNAVAILABLE"
-			 */
-			int has = helper_who_has_this_movie(Integer.parseInt(mid));
-			if (has == cid) {
-				results.get(mid).append("YOU HAVE IT\n");
-			} else if (helper_compute_remaining_rentals(cid) == 0
-					|| has != -1) {
-				results.get(mid).append("UNAVAILABLE\n");
-			} else if (has == -1) {
-				results.get(mid).append("AVAILABLE\n");
-			}
-		}
-		for (StringBuilder sb : results.values())
-			System.out.println(sb.toString());
-	}
-}
\ No newline at end of file
+			for (ResultSet rs : results) {
+				if (rs != null) {
+					rs.close();
+				}
+			}
+			/* results of queries that finished after another one failed */
+			for (Future<ResultSet> f : futures) {
+				if (f.isDone() && !f.isCancelled()) {
+					try {
+						f.get().close();
+					} catch (Exception e) {
+						// failed or already closed
+					}
+				}
+			}
+			for (ConnectionPool.PooledConnection lease : leases) {
+				if (lease != null) {
+					try {
+						lease.getConnection().setAutoCommit(true);
+					} catch (SQLException e) {
+						ok = false;
+					}
+					imdbPool.release(lease, ok);
+				}
+			}
+		}
+	}
+
+	/**
+	 * the statement for sql on another pooled connection, with the parameter
+	 * and fetch size of like. that connection is put in a transaction so the
+	 * driver uses a cursor
+	 *
+	 * @throws SQLException
+	 */
+	private PreparedStatement helper_copy_statement(
+			ConnectionPool.PooledConnection lease, String sql,
+			PreparedStatement like) throws SQLException {
+		lease.getConnection().setAutoCommit(false);
+		PreparedStatement stm = lease.prepare(sql);
+		stm.clearParameters();
+		stm.setString(1, _fast_search_pattern);
+		stm.setFetchSize(like.getFetchSize());
+		return stm;
+	}
+
+	private void helper_cancel(PreparedStatement[] stms,
+			ArrayList<Future<ResultSet>> futures) {
+		for (Future<ResultSet> f : futures) {
+			f.cancel(true);
+		}
+		for (PreparedStatement stm : stms) {
+			try {
+				if (stm != null) {
+					stm.cancel();
+				}
+			} catch (SQLException e) {
+				// nothing more we can do
+			}
+		}
+	}
+
+	/**
+	 * fast search output for every movie in movies (sorted by id) when the
+	 * catalog cache is on: directors and actors are looked up per window of
+	 * movies, from the cache where possible. returns the number printed
+	 *
+	 * @throws Exception
+	 */
+	private int helper_fast_search_cached(int cid, int remaining,
+			ResultSet movies) throws Exception {
+		int[] mids = new int[FAST_SEARCH_WINDOW];
+		String[] names = new String[FAST_SEARCH_WINDOW];
+		String[] years = new String[FAST_SEARCH_WINDOW];
+		int n = 0;
+		int printed = 0;
+		boolean more = movies.next();
+		while (more) {
+			mids[n] = movies.getInt(1);
+			names[n] = movies.getString("name");
+			years[n] = movies.getString("year");
+			n++;
+			more = movies.next();
+			if (n == FAST_SEARCH_WINDOW || !more) {
+				CatalogCache.Entry[] details = helper_movie_details(mids, n);
+				int[] has = helper_who_has_these_movies(mids, n);
+				for (int i = 0; i < n; i++) {
+					helper_fast_search_row(cid, remaining, mids[i], names[i],
+							years[i], details[i], has[i]);
+				}
+				printed += n;
+				n = 0;
+			}
+		}
+		return printed;
+	}
+	/**
+	 * one movie of the fast search output, with its directors and cast
+	 */
+	private void helper_fast_search_row(int cid, int remaining, int mid,
+			String name, String year, CatalogCache.Entry people, int has) {
+		_rows.begin(FAST_MOVIE_ROW).field(mid).field(name).field(year).end();
+		for (int j = 0; j < people.directorFirst.length; j++) {
+			_rows.begin(FAST_DIRECTOR_ROW).field(people.directorFirst[j])
+					.field(people.directorLast[j]).end();
+		}
+		for (int j = 0; j < people.actorFirst.length; j++) {
+			_rows.begin(FAST_ACTOR_ROW).field(people.actorFirst[j])
+					.field(people.actorLast[j]).end();
+		}
+		_rows.begin(FAST_STATUS_ROW).field(helper_status(cid, remaining, has))
+				.end();
+	}
+
+	/**
+	 * fast search output for the movies ids, everything but their rental
+	 * status read from the catalog snapshot
+	 *
+	 * @throws Exception
+	 */
+	private int helper_fast_search_snapshot(int cid, int remaining, int[] ids)
+			throws Exception {
+		CatalogSnapshot snapshot = catalogSnapshot;
+		int[] mids = new int[FAST_SEARCH_WINDOW];
+		for (int from = 0; from < ids.length; from += FAST_SEARCH_WINDOW) {
+			int n = Math.min(FAST_SEARCH_WINDOW, ids.length - from);
+			System.arraycopy(ids, from, mids, 0, n);
+			int[] has = helper_who_has_these_movies(mids, n);
+			for (int i = 0; i < n; i++) {
+				int at = snapshot.find(mids[i]);
+				helper_fast_search_row(cid, remaining, mids[i],
+						snapshot.name(at), snapshot.year(at),
+						snapshot.people(at), has[i]);
+			}
+		}
+		return ids.length;
+	}
+
+
+	/**
+	 * merge-joins three result sets sorted by movie id: the movies (id, name,
+	 * year), and their directors and actors (mid first, then fname, lname).
+	 * movies are read a small fixed window at a time so the rental status of
+	 * the whole window takes one query, then printed while the director and
+	 * actor cursors are advanced past them. returns the number of movies
+	 * printed
+	 *
+	 * @throws Exception
+	 */
+	private int helper_merge_search(int cid, int remaining, ResultSet movies,
+			ResultSet directors, ResultSet actors) throws Exception {
+		boolean more = movies.next();
+		boolean hasDirector = directors.next();
+		boolean hasActor = actors.next();
+		int[] mids = new int[FAST_SEARCH_WINDOW];
+		String[] names = new String[FAST_SEARCH_WINDOW];
+		String[] years = new String[FAST_SEARCH_WINDOW];
+		int printed = 0;
+		while (more) {
+			int n = 0;
+			while (more && n < FAST_SEARCH_WINDOW) {
+				mids[n] = movies.getInt(1);
+				names[n] = movies.getString("name");
+				years[n] = movies.getString("year");
+				n++;
+				more = movies.next();
+			}
+			int[] has = helper_who_has_these_movies(mids, n);
+			for (int i = 0; i < n; i++) {
+				int mid = mids[i];
+				_rows.begin(FAST_MOVIE_ROW).field(mid).field(names[i])
+						.field(years[i]).end();
+				while (hasDirector && directors.getInt(1) < mid) {
+					hasDirector = directors.next();
+				}
+				while (hasDirector && directors.getInt(1) == mid) {
+					_rows.begin(FAST_DIRECTOR_ROW)
+							.field(directors.getString("fname"))
+							.field(directors.getString("lname")).end();
+					hasDirector = directors.next();
+				}
+				while (hasActor && actors.getInt(1) < mid) {
+					hasActor = actors.next();
+				}
+				while (hasActor && actors.getInt(1) == mid) {
+					_rows.begin(FAST_ACTOR_ROW).field(actors.getString("fname"))
+							.field(actors.getString("lname")).end();
+					hasActor = actors.next();
+				}
+				_rows.begin(FAST_STATUS_ROW)
+						.field(helper_status(cid, remaining, has[i])).end();
+			}
+			printed += n;
+		}
+		return printed;
+	}
+}
@@ -0,0 +1,202 @@
+/* Group E CS390DB Fall 2013 */
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * In memory copy of who rents which movie (activerental: movie_id ->
+ * cust_id), so a search can show availability without a query per movie.
+ *
+ * The map is loaded from activerental and then kept up to date two ways:
+ * Query reports the rentals and returns it commits itself, and a listener
+ * thread LISTENs on the "activerental" channel, which the rental_changed
+ * trigger in setup.sql notifies on every insert and delete, to pick up
+ * changes made by other processes. If the listener loses its connection it
+ * reconnects and reloads the whole table, since notifications sent in
+ * between are lost.
+ */
+public class RentalCache {
+	public static final String CHANNEL = "activerental";
+
+	private static final String _all_rentals_sql = "SELECT movie_id, cust_id FROM activerental";
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final long pollInterval;
+
+	/* movie id -> renting customer, guarded by this */
+	private final IntIntMap renters = new IntIntMap(1024);
+	/* set and cleared by start()/stop() and the listener thread */
+	private volatile Connection listener;
+	private volatile Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * @param pollInterval
+	 *            milliseconds between checks for notifications
+	 */
+	public RentalCache(String url, String user, String password,
+			long pollInterval) {
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.pollInterval = pollInterval;
+	}
+
+	/**
+	 * start listening, load the table, and start the listener thread. LISTEN
+	 * comes first so nothing committed after the load can be missed
+	 *
+	 * @throws SQLException
+	 */
+	public void start() throws SQLException {
+		connect();
+		running = true;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				listen();
+			}
+		}, "rental-cache");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		running = false;
+		Thread t = thread;
+		if (t != null) {
+			t.interrupt();
+		}
+		disconnect();
+	}
+
+	/**
+	 * customer renting mid, or -1 if it is available
+	 */
+	public synchronized int renter(int mid) {
+		return renters.get(mid, -1);
+	}
+
+	/**
+	 * renters of the first n movies of mids, -1 where available
+	 */
+	public synchronized int[] renters(int[] mids, int n) {
+		int[] has = new int[n];
+		for (int i = 0; i < n; i++) {
+			has[i] = renters.get(mids[i], -1);
+		}
+		return has;
+	}
+
+	/**
+	 * record a committed rental
+	 */
+	public synchronized void rented(int mid, int cid) {
+		renters.put(mid, cid);
+	}
+
+	/**
+	 * record a committed return
+	 */
+	public synchronized void returned(int mid) {
+		renters.remove(mid, -1);
+	}
+
+	public synchronized int size() {
+		return renters.size();
+	}
+
+	private void connect() throws SQLException {
+		Connection conn = DriverManager.getConnection(url, user, password);
+		try {
+			Statement stm = conn.createStatement();
+			stm.execute("LISTEN " + CHANNEL);
+			ResultSet rentals = stm.executeQuery(_all_rentals_sql);
+			synchronized (this) {
+				renters.clear();
+				while (rentals.next()) {
+					renters.put(rentals.getInt(1), rentals.getInt(2));
+				}
+			}
+			rentals.close();
+			stm.close();
+		} catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+		listener = conn;
+	}
+
+	private void disconnect() {
+		Connection conn = listener;
+		listener = null;
+		if (conn != null) {
+			try {
+				conn.close();
+			} catch (SQLException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * listener thread: poll for notifications, reconnect and reload on error
+	 */
+	private void listen() {
+		try {
+			while (running) {
+				try {
+					Connection conn = listener;
+					if (conn == null) {
+						connect();
+						conn = listener;
+					}
+					/* the driver only reads notifications while running a query */
+					Statement stm = conn.createStatement();
+					stm.execute("SELECT 1");
+					stm.close();
+					PGNotification[] notes = ((PGConnection) conn)
+							.getNotifications();
+					if (notes != null) {
+						for (PGNotification note : notes) {
+							apply(note.getParameter());
+						}
+					}
+				} catch (SQLException e) {
+					disconnect();
+				}
+				try {
+					Thread.sleep(pollInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		} finally {
+			/* a reconnect can race with stop(), don't leave it open */
+			disconnect();
+		}
+	}
+
+	/**
+	 * payloads are "rent <movie_id> <cust_id>" and "return <movie_id>"
+	 */
+	private void apply(String payload) {
+		String[] parts = payload.split(" ");
+		try {
+			if (parts[0].equals("rent") && parts.length == 3) {
+				rented(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+			} else if (parts[0].equals("return") && parts.length == 2) {
+				returned(Integer.parseInt(parts[1]));
+			}
+		} catch (NumberFormatException e) {
+			System.err.println("Ignoring bad " + CHANNEL + " notification: "
+					+ payload);
+		}
+	}
+}
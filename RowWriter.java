@@ -0,0 +1,362 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Writes result rows straight into a reusable byte buffer, encoding as it
+ * goes, and hands the buffer to the output stream in large writes. A row is
+ * laid out by a Template, parsed once, instead of a format string parsed on
+ * every String.format call, and numbers are written digit by digit, so
+ * printing a row allocates nothing beyond the strings JDBC already gave us.
+ *
+ * Rows come out as the console text (TEXT), or for other programs as tab
+ * separated values (TSV) or one JSON object per line (JSON). In the last
+ * two every row starts with its type ("movie", "director", ...), and rows
+ * describing a movie follow the movie row they belong to.
+ *
+ * Like PrintStream, write errors are remembered rather than thrown, see
+ * checkError().
+ */
+public class RowWriter {
+	public enum Format {
+		TEXT, TSV, JSON
+	}
+
+	/**
+	 * the text of a row with {name} where each field goes, e.g.
+	 * "ID: {id}\nName: {name}\n". fields are then written in that order
+	 */
+	public static class Template {
+		final String type;
+		final byte[][] names;
+		/* literals[i] comes before field i, the last one ends the row */
+		final byte[][] literals;
+
+		Template(String type, String text) {
+			this.type = type;
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<String> literals = new ArrayList<String>();
+			int from = 0;
+			int open;
+			while ((open = text.indexOf('{', from)) >= 0) {
+				int close = text.indexOf('}', open);
+				if (close < 0) {
+					throw new IllegalArgumentException("unclosed field in "
+							+ text);
+				}
+				literals.add(text.substring(from, open));
+				names.add(text.substring(open + 1, close));
+				from = close + 1;
+			}
+			literals.add(text.substring(from));
+			this.names = new byte[names.size()][];
+			for (int i = 0; i < this.names.length; i++) {
+				this.names[i] = ascii(",\"" + names.get(i) + "\":");
+			}
+			this.literals = new byte[literals.size()][];
+			for (int i = 0; i < this.literals.length; i++) {
+				this.literals[i] = utf8(literals.get(i));
+			}
+		}
+	}
+
+	public static Template template(String type, String text) {
+		return new Template(type, text);
+	}
+
+	/* rows are handed on once the buffer holds this much */
+	private static final int FLUSH_AT = 8192;
+
+	private final OutputStream out;
+	private final Format format;
+	private byte[] buf = new byte[FLUSH_AT * 2];
+	private int pos = 0;
+	private Template row;
+	private int field;
+	private boolean error = false;
+
+	public RowWriter(OutputStream out, Format format) {
+		this.out = out;
+		this.format = format;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * starts a row laid out by t; its fields follow, then end()
+	 */
+	public RowWriter begin(Template t) {
+		row = t;
+		field = 0;
+		switch (format) {
+		case TEXT:
+			write(t.literals[0]);
+			break;
+		case TSV:
+			writeAscii(t.type);
+			break;
+		case JSON:
+			writeAscii("{\"type\":\"");
+			writeAscii(t.type);
+			write((byte) '"');
+			break;
+		}
+		return this;
+	}
+
+	public RowWriter field(String value) {
+		switch (format) {
+		case TEXT:
+			/* same as %s */
+			writeChars(value == null ? "null" : value, false);
+			break;
+		case TSV:
+			write((byte) '\t');
+			if (value == null) {
+				/* as postgres COPY writes it */
+				writeAscii("\\N");
+			} else {
+				writeChars(value, true);
+			}
+			break;
+		case JSON:
+			write(row.names[field]);
+			if (value == null) {
+				writeAscii("null");
+			} else {
+				write((byte) '"');
+				writeChars(value, true);
+				write((byte) '"');
+			}
+			break;
+		}
+		return next();
+	}
+
+	public RowWriter field(int value) {
+		switch (format) {
+		case TSV:
+			write((byte) '\t');
+			break;
+		case JSON:
+			write(row.names[field]);
+			break;
+		default:
+			break;
+		}
+		writeInt(value);
+		return next();
+	}
+
+	public void end() {
+		switch (format) {
+		case TSV:
+			write((byte) '\n');
+			break;
+		case JSON:
+			writeAscii("}\n");
+			break;
+		default:
+			break;
+		}
+		row = null;
+		if (pos >= FLUSH_AT) {
+			flush();
+		}
+	}
+
+	/**
+	 * console only text around the rows, such as headers and "Not found.";
+	 * TSV and JSON output leave it out
+	 */
+	public void text(String s) {
+		if (format == Format.TEXT) {
+			writeChars(s, false);
+		}
+	}
+
+	/**
+	 * hands what is buffered to the output stream. call before anything
+	 * else writes to that stream
+	 */
+	public void flush() {
+		try {
+			if (pos > 0) {
+				out.write(buf, 0, pos);
+			}
+			out.flush();
+		} catch (IOException e) {
+			error = true;
+		}
+		pos = 0;
+	}
+
+	public boolean checkError() {
+		return error;
+	}
+
+	private RowWriter next() {
+		field++;
+		if (format == Format.TEXT) {
+			write(row.literals[field]);
+		}
+		return this;
+	}
+
+	private void ensure(int n) {
+		if (pos + n > buf.length) {
+			flush();
+			if (n > buf.length) {
+				buf = new byte[n];
+			}
+		}
+	}
+
+	private void write(byte b) {
+		ensure(1);
+		buf[pos++] = b;
+	}
+
+	private void write(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+
+	private void writeAscii(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[pos++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeInt(int v) {
+		ensure(11);
+		if (v == Integer.MIN_VALUE) {
+			writeAscii("-2147483648");
+			return;
+		}
+		if (v < 0) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (int t = v; t >= 10; t /= 10) {
+			digits++;
+		}
+		for (int i = pos + digits - 1; i >= pos; i--) {
+			buf[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		pos += digits;
+	}
+
+	/*
+	 * UTF-8, a character at a time. escape is for TSV and JSON, where tabs,
+	 * newlines, backslashes and (in JSON) quotes in values would end the
+	 * field. other control characters are written as postgres COPY reads
+	 * them in TSV and as a four digit unicode escape in JSON
+	 */
+	private void writeChars(String s, boolean escape) {
+		/* at most 6 bytes per char, when a control character is escaped */
+		ensure(s.length() * 6);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (escape
+					&& (c < 0x20 || c == '\\' || c == '"' && format == Format.JSON)) {
+				escape(c);
+			} else if (c < 0x80) {
+				buf[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				buf[pos++] = (byte) (0xc0 | c >> 6);
+				buf[pos++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte) (0xf0 | cp >> 18);
+				buf[pos++] = (byte) (0x80 | cp >> 12 & 0x3f);
+				buf[pos++] = (byte) (0x80 | cp >> 6 & 0x3f);
+				buf[pos++] = (byte) (0x80 | cp & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				buf[pos++] = '?';
+			} else {
+				buf[pos++] = (byte) (0xe0 | c >> 12);
+				buf[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buf[pos++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+	}
+
+	private void escape(char c) {
+		buf[pos++] = '\\';
+		switch (c) {
+		case '\t':
+			buf[pos++] = 't';
+			break;
+		case '\n':
+			buf[pos++] = 'n';
+			break;
+		case '\r':
+			buf[pos++] = 'r';
+			break;
+		case '\\':
+			buf[pos++] = '\\';
+			break;
+		case '"':
+			buf[pos++] = '"';
+			break;
+		case '\b':
+			buf[pos++] = 'b';
+			break;
+		case '\f':
+			buf[pos++] = 'f';
+			break;
+		case 0x0b:
+			/* JSON has no \v */
+			if (format == Format.TSV) {
+				buf[pos++] = 'v';
+			} else {
+				hexEscape(c);
+			}
+			break;
+		default:
+			hexEscape(c);
+			break;
+		}
+	}
+
+	/* the rest of an escape of a control character by its code */
+	private void hexEscape(char c) {
+		if (format == Format.JSON) {
+			buf[pos++] = 'u';
+			buf[pos++] = '0';
+			buf[pos++] = '0';
+		} else {
+			/* COPY reads \x and one or two hex digits */
+			buf[pos++] = 'x';
+		}
+		buf[pos++] = (byte) HEX[c >> 4];
+		buf[pos++] = (byte) HEX[c & 0xf];
+	}
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static byte[] ascii(String s) {
+		byte[] b = new byte[s.length()];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) s.charAt(i);
+		}
+		return b;
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+}
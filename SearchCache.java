@@ -0,0 +1,219 @@
+/* Group E CS390DB Fall 2013 */
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Results of recent title searches, keyed by the normalized search term: the
+ * matching movie ids in id order with their names, years, directors and
+ * cast. Only catalog data is kept; who has which movie changes all the time
+ * and is looked up every time the results are shown.
+ *
+ * Entries expire after ttl ms and the least recently used ones are evicted
+ * once the estimated size of all entries passes the byte budget. When
+ * several sessions search for the same uncached term at once, one of them
+ * runs the query and the others wait for its result. Thread safe.
+ */
+public class SearchCache {
+
+	/**
+	 * the results of one search term. ids is null when the term matched more
+	 * than maxResults movies; that is cached too, so the next search for it
+	 * goes straight to the database
+	 */
+	public static class Entry {
+		public final int[] ids;
+		public final String[] names;
+		public final String[] years;
+		public final CatalogCache.Entry[] people;
+		final long created = System.currentTimeMillis();
+		final long bytes;
+
+		public Entry(int[] ids, String[] names, String[] years,
+				CatalogCache.Entry[] people) {
+			this.ids = ids;
+			this.names = names;
+			this.years = years;
+			this.people = people;
+			this.bytes = estimate(this);
+		}
+
+		public boolean isTooLarge() {
+			return ids == null;
+		}
+	}
+
+	/**
+	 * runs the search for a normalized term
+	 */
+	public interface Loader {
+		Entry load(String term) throws Exception;
+	}
+
+	private final long ttl;
+	private final long budget;
+	private final int maxResults;
+
+	/* access ordered, so iteration starts at the least recently used */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			64, 0.75f, true);
+	private final ConcurrentHashMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * @param ttl
+	 *            ms an entry is used for
+	 * @param budget
+	 *            rough bytes all entries may take
+	 * @param maxResults
+	 *            searches matching more movies are not cached
+	 */
+	public SearchCache(long ttl, long budget, int maxResults) {
+		this.ttl = ttl;
+		this.budget = budget;
+		this.maxResults = maxResults;
+	}
+
+	public int getMaxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * what the search cache is keyed by. ILIKE ignores case, so the term
+	 * does too
+	 */
+	public static String normalize(String term) {
+		return term.trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * the entry loaded for term, for the result of matching more than
+	 * maxResults movies pass tooLarge()
+	 */
+	public static Entry tooLarge() {
+		return new Entry(null, null, null, null);
+	}
+
+	/**
+	 * the cached results of term, loading them with loader if they are
+	 * missing or expired. only one load per term runs at a time; the other
+	 * callers get its result, or its exception
+	 *
+	 * @throws Exception
+	 */
+	public Entry get(String term, final Loader loader) throws Exception {
+		final String key = normalize(term);
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e != null) {
+				if (System.currentTimeMillis() - e.created < ttl) {
+					hits++;
+					return e;
+				}
+				remove(key);
+			}
+			misses++;
+		}
+		FutureTask<Entry> task = new FutureTask<Entry>(
+				new Callable<Entry>() {
+					public Entry call() throws Exception {
+						return loader.load(key);
+					}
+				});
+		FutureTask<Entry> running = loading.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+				put(key, task.get());
+			} catch (ExecutionException e) {
+				/* not cached, the next search tries again */
+			} finally {
+				loading.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	private synchronized void put(String key, Entry e) {
+		if (e.bytes > budget) {
+			return;
+		}
+		remove(key);
+		entries.put(key, e);
+		bytes += e.bytes;
+		Iterator<Map.Entry<String, Entry>> lru = entries.entrySet().iterator();
+		while (bytes > budget && lru.hasNext()) {
+			bytes -= lru.next().getValue().bytes;
+			lru.remove();
+			evictions++;
+		}
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+	}
+
+	/**
+	 * forgets every search, for when the catalog changed
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized String toString() {
+		return "search cache: " + entries.size() + " terms, " + bytes + "/"
+				+ budget + " bytes, " + hits + " hits, " + misses + " misses, "
+				+ evictions + " evictions";
+	}
+
+	/* object headers, references and two bytes a char, roughly */
+	private static long estimate(Entry e) {
+		long size = 64;
+		if (e.ids == null) {
+			return size;
+		}
+		size += 4L * e.ids.length;
+		for (int i = 0; i < e.ids.length; i++) {
+			size += 24 + chars(e.names[i]) + chars(e.years[i]);
+			CatalogCache.Entry p = e.people[i];
+			size += 32;
+			for (int j = 0; j < p.directorFirst.length; j++) {
+				size += chars(p.directorFirst[j]) + chars(p.directorLast[j]);
+			}
+			for (int j = 0; j < p.actorFirst.length; j++) {
+				size += chars(p.actorFirst[j]) + chars(p.actorLast[j])
+						+ chars(p.actorGender[j]);
+			}
+		}
+		return size;
+	}
+
+	private static long chars(String s) {
+		return s == null ? 8 : 48 + 2L * s.length();
+	}
+}
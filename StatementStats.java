@@ -0,0 +1,461 @@
+/* Group E CS390DB Fall 2013 */
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Execution counts, rows and latency histograms of every prepared statement,
+ * and statement round trips and latency of every transaction. Statements
+ * are wrapped once, when ConnectionPool first prepares them, so the cost per
+ * execution is a proxy call, two clock reads and a few atomic increments.
+ *
+ * Every statement and transaction is registered as an MBean under
+ * "VideoStore:type=Statement" and "VideoStore:type=Transaction", for
+ * jconsole or any other JMX client.
+ */
+public class StatementStats {
+	public static final String DOMAIN = "VideoStore";
+
+	public interface StatementMetricMBean {
+		String getSql();
+
+		long getExecutions();
+
+		long getErrors();
+
+		long getRows();
+
+		double getMeanRows();
+
+		double getMeanMicros();
+
+		long getP50Micros();
+
+		long getP99Micros();
+
+		long getP999Micros();
+
+		long getMaxMicros();
+
+		void reset();
+	}
+
+	public interface TransactionMetricMBean {
+		String getName();
+
+		long getCount();
+
+		long getErrors();
+
+		long getRetries();
+
+		long getAborts();
+
+		double getMeanRoundTrips();
+
+		long getP99RoundTrips();
+
+		long getMaxRoundTrips();
+
+		double getMeanMicros();
+
+		long getP50Micros();
+
+		long getP99Micros();
+
+		long getP999Micros();
+
+		long getMaxMicros();
+
+		void reset();
+	}
+
+	/**
+	 * one prepared statement, over every connection it was prepared on.
+	 * latency is the time executeQuery() takes, which for a cursor is the
+	 * time to the first batch of rows
+	 */
+	public static class StatementMetric implements StatementMetricMBean {
+		private final String sql;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LatencyHistogram rows = new LatencyHistogram();
+		private final AtomicLong errors = new AtomicLong();
+
+		StatementMetric(String sql) {
+			this.sql = sql;
+		}
+
+		public String getSql() {
+			return sql;
+		}
+
+		public long getExecutions() {
+			return latency.getCount();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public long getRows() {
+			return rows.getSum();
+		}
+
+		public double getMeanRows() {
+			return rows.getMean();
+		}
+
+		public double getMeanMicros() {
+			return latency.getMean();
+		}
+
+		public long getP50Micros() {
+			return latency.percentile(0.5);
+		}
+
+		public long getP99Micros() {
+			return latency.percentile(0.99);
+		}
+
+		public long getP999Micros() {
+			return latency.percentile(0.999);
+		}
+
+		public long getMaxMicros() {
+			return latency.getMax();
+		}
+
+		public void reset() {
+			latency.reset();
+			rows.reset();
+			errors.set(0);
+		}
+	}
+
+	/**
+	 * one Query transaction method, from acquire() to release()
+	 */
+	public static class TransactionMetric implements TransactionMetricMBean {
+		private final String name;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LatencyHistogram roundTrips = new LatencyHistogram();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong retries = new AtomicLong();
+		private final AtomicLong aborts = new AtomicLong();
+
+		TransactionMetric(String name) {
+			this.name = name;
+		}
+
+		public void record(long nanos, long trips, boolean ok) {
+			latency.record(nanos / 1000);
+			roundTrips.record(trips);
+			if (!ok) {
+				errors.incrementAndGet();
+			}
+		}
+
+		/* a serialization failure made it start over */
+		public void retried() {
+			retries.incrementAndGet();
+		}
+
+		/* it kept failing and was given up */
+		public void aborted() {
+			aborts.incrementAndGet();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public long getRetries() {
+			return retries.get();
+		}
+
+		public long getAborts() {
+			return aborts.get();
+		}
+
+		public double getMeanRoundTrips() {
+			return roundTrips.getMean();
+		}
+
+		public long getP99RoundTrips() {
+			return roundTrips.percentile(0.99);
+		}
+
+		public long getMaxRoundTrips() {
+			return roundTrips.getMax();
+		}
+
+		public double getMeanMicros() {
+			return latency.getMean();
+		}
+
+		public long getP50Micros() {
+			return latency.percentile(0.5);
+		}
+
+		public long getP99Micros() {
+			return latency.percentile(0.99);
+		}
+
+		public long getP999Micros() {
+			return latency.percentile(0.999);
+		}
+
+		public long getMaxMicros() {
+			return latency.getMax();
+		}
+
+		public void reset() {
+			latency.reset();
+			roundTrips.reset();
+			errors.set(0);
+			retries.set(0);
+			aborts.set(0);
+		}
+	}
+
+	/**
+	 * what a wrapped statement counts its round trips on, the pooled
+	 * connection it belongs to
+	 */
+	public interface RoundTripCounter {
+		void roundTrip();
+	}
+
+	private final ConcurrentHashMap<String, StatementMetric> statements = new ConcurrentHashMap<String, StatementMetric>();
+	private final ConcurrentHashMap<String, TransactionMetric> transactions = new ConcurrentHashMap<String, TransactionMetric>();
+	private final List<ObjectName> registered = Collections
+			.synchronizedList(new ArrayList<ObjectName>());
+
+	/**
+	 * a statement that does what stm does and records its executions
+	 */
+	public PreparedStatement wrap(String sql, PreparedStatement stm,
+			RoundTripCounter trips) {
+		return (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new StatementHandler(
+						statement(sql), stm, trips));
+	}
+
+	public StatementMetric statement(String sql) {
+		StatementMetric m = statements.get(sql);
+		if (m == null) {
+			StatementMetric fresh = new StatementMetric(sql);
+			m = statements.putIfAbsent(sql, fresh);
+			if (m == null) {
+				m = fresh;
+				register("Statement", sql, m);
+			}
+		}
+		return m;
+	}
+
+	public TransactionMetric transaction(String name) {
+		TransactionMetric m = transactions.get(name);
+		if (m == null) {
+			TransactionMetric fresh = new TransactionMetric(name);
+			m = transactions.putIfAbsent(name, fresh);
+			if (m == null) {
+				m = fresh;
+				register("Transaction", name, m);
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * a table of every transaction and statement, slowest total time first
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		ArrayList<TransactionMetric> tx = new ArrayList<TransactionMetric>(
+				transactions.values());
+		Collections.sort(tx, new Comparator<TransactionMetric>() {
+			public int compare(TransactionMetric a, TransactionMetric b) {
+				return Double.compare(b.getMeanMicros() * b.getCount(),
+						a.getMeanMicros() * a.getCount());
+			}
+		});
+		sb.append(String.format("%-34s %8s %6s %7s %8s %9s %9s %9s %9s%n",
+				"transaction", "count", "errors", "retries", "trips", "p50 us",
+				"p99 us", "p999 us", "max us"));
+		for (TransactionMetric m : tx) {
+			sb.append(String.format("%-34s %8d %6d %7d %8.1f %9d %9d %9d %9d%n",
+					m.getName(), m.getCount(), m.getErrors(), m.getRetries(),
+					m.getMeanRoundTrips(), m.getP50Micros(), m.getP99Micros(),
+					m.getP999Micros(), m.getMaxMicros()));
+		}
+		ArrayList<StatementMetric> stm = new ArrayList<StatementMetric>(
+				statements.values());
+		Collections.sort(stm, new Comparator<StatementMetric>() {
+			public int compare(StatementMetric a, StatementMetric b) {
+				return Double.compare(b.getMeanMicros() * b.getExecutions(),
+						a.getMeanMicros() * a.getExecutions());
+			}
+		});
+		sb.append(String.format("%n%-34s %8s %6s %8s %9s %9s %9s %9s%n",
+				"statement", "count", "errors", "rows", "p50 us", "p99 us",
+				"p999 us", "max us"));
+		for (StatementMetric m : stm) {
+			if (m.getExecutions() == 0) {
+				continue;
+			}
+			String sql = m.getSql();
+			sb.append(String.format("%-34s %8d %6d %8.1f %9d %9d %9d %9d%n",
+					sql.length() > 34 ? sql.substring(0, 31) + "..." : sql,
+					m.getExecutions(), m.getErrors(), m.getMeanRows(),
+					m.getP50Micros(), m.getP99Micros(), m.getP999Micros(),
+					m.getMaxMicros()));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * removes the MBeans, for when the pools are closed
+	 */
+	public void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		synchronized (registered) {
+			for (ObjectName name : registered) {
+				try {
+					server.unregisterMBean(name);
+				} catch (Exception e) {
+					// already gone
+				}
+			}
+			registered.clear();
+		}
+	}
+
+	private void register(String type, String name, Object mbean) {
+		try {
+			ObjectName on = new ObjectName(DOMAIN + ":type=" + type + ",name="
+					+ ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, on);
+			registered.add(on);
+		} catch (Exception e) {
+			/* statistics still work without JMX */
+		}
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private static class StatementHandler implements InvocationHandler {
+		private final StatementMetric metric;
+		private final PreparedStatement stm;
+		private final RoundTripCounter trips;
+
+		StatementHandler(StatementMetric metric, PreparedStatement stm,
+				RoundTripCounter trips) {
+			this.metric = metric;
+			this.stm = stm;
+			this.trips = trips;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if (!method.getName().startsWith("execute")) {
+				return StatementStats.invoke(stm, method, args);
+			}
+			long start = System.nanoTime();
+			Object result;
+			try {
+				result = StatementStats.invoke(stm, method, args);
+			} catch (Throwable t) {
+				metric.errors.incrementAndGet();
+				throw t;
+			} finally {
+				metric.latency.record((System.nanoTime() - start) / 1000);
+				trips.roundTrip();
+			}
+			if (result instanceof ResultSet) {
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+						new Class<?>[] { ResultSet.class }, new ResultSetHandler(
+								metric, (ResultSet) result));
+			}
+			if (result instanceof Integer) {
+				metric.rows.record((Integer) result);
+			} else if (result instanceof int[]) {
+				long rows = 0;
+				for (int n : (int[]) result) {
+					rows += Math.max(0, n);
+				}
+				metric.rows.record(rows);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * counts the rows read until the result set runs out or is closed
+	 */
+	private static class ResultSetHandler implements InvocationHandler {
+		private final StatementMetric metric;
+		private final ResultSet rs;
+		private long rows = 0;
+		private boolean done = false;
+
+		ResultSetHandler(StatementMetric metric, ResultSet rs) {
+			this.metric = metric;
+			this.rs = rs;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			String name = method.getName();
+			if (name.equals("next")) {
+				boolean more = rs.next();
+				if (more) {
+					rows++;
+				} else {
+					finish();
+				}
+				return more;
+			}
+			if (name.equals("close")) {
+				finish();
+			}
+			return StatementStats.invoke(rs, method, args);
+		}
+
+		private void finish() {
+			if (!done) {
+				done = true;
+				metric.rows.record(rows);
+			}
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/* Group E CS390DB Fall 2013 */
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+/**
+ * In memory trigram index over movie titles, used to answer
+ * "name ILIKE '%term%'" without scanning the movie table. Everything is kept
+ * in primitive arrays: the lower-cased titles are concatenated in one char
+ * array, and for every trigram there is a sorted posting list of title
+ * positions. A lookup intersects the posting lists of the term's trigrams and
+ * then checks the remaining candidates against the actual title.
+ *
+ * An index is immutable once built; refreshing means building a new one.
+ */
+public class TitleIndex {
+
+	private static final String _titles_sql = "SELECT id, name FROM movie ORDER BY id";
+
+	/* movie id of every title, ascending; a title's position is its doc number */
+	private final int[] ids;
+	/* title of doc d is text[offsets[d] .. offsets[d + 1]) */
+	private final char[] text;
+	private final int[] offsets;
+	/* trigram keys, ascending; postings of keys[k] are postings[starts[k] .. starts[k + 1]) */
+	private final int[] keys;
+	private final int[] starts;
+	private final int[] postings;
+	private final long builtAt;
+
+	private TitleIndex(int[] ids, char[] text, int[] offsets, int[] keys,
+			int[] starts, int[] postings) {
+		this.ids = ids;
+		this.text = text;
+		this.offsets = offsets;
+		this.keys = keys;
+		this.starts = starts;
+		this.postings = postings;
+		this.builtAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * reads every title of the movie table through a cursor and indexes it
+	 *
+	 * @throws SQLException
+	 */
+	public static TitleIndex build(Connection imdb) throws SQLException {
+		int n = 0;
+		int[] ids = new int[1 << 16];
+		int[] offsets = new int[(1 << 16) + 1];
+		char[] text = new char[1 << 20];
+		int length = 0;
+
+		boolean autoCommit = imdb.getAutoCommit();
+		imdb.setAutoCommit(false);
+		Statement stm = imdb.createStatement();
+		try {
+			stm.setFetchSize(10000);
+			ResultSet titles = stm.executeQuery(_titles_sql);
+			while (titles.next()) {
+				if (n == ids.length) {
+					ids = Arrays.copyOf(ids, n * 2);
+					offsets = Arrays.copyOf(offsets, n * 2 + 1);
+				}
+				String name = titles.getString(2);
+				if (name == null) {
+					name = "";
+				}
+				while (length + name.length() > text.length) {
+					text = Arrays.copyOf(text, text.length * 2);
+				}
+				for (int i = 0; i < name.length(); i++) {
+					text[length++] = Character.toLowerCase(name.charAt(i));
+				}
+				ids[n] = titles.getInt(1);
+				offsets[++n] = length;
+			}
+			titles.close();
+		} finally {
+			stm.close();
+			imdb.setAutoCommit(autoCommit);
+		}
+		return index(Arrays.copyOf(ids, n), Arrays.copyOf(text, length),
+				Arrays.copyOf(offsets, n + 1));
+	}
+
+	/**
+	 * indexes the titles of a catalog snapshot, without the database
+	 */
+	public static TitleIndex build(CatalogSnapshot snapshot) {
+		int n = snapshot.size();
+		int[] ids = new int[n];
+		int[] offsets = new int[n + 1];
+		char[] text = new char[1 << 20];
+		int length = 0;
+		for (int d = 0; d < n; d++) {
+			String name = snapshot.name(d);
+			if (name == null) {
+				name = "";
+			}
+			while (length + name.length() > text.length) {
+				text = Arrays.copyOf(text, text.length * 2);
+			}
+			for (int i = 0; i < name.length(); i++) {
+				text[length++] = Character.toLowerCase(name.charAt(i));
+			}
+			ids[d] = snapshot.id(d);
+			offsets[d + 1] = length;
+		}
+		return index(ids, Arrays.copyOf(text, length), offsets);
+	}
+
+	/**
+	 * indexes the given titles, ids ascending; for tests
+	 */
+	static TitleIndex build(int[] ids, String[] names) {
+		int[] offsets = new int[ids.length + 1];
+		StringBuilder text = new StringBuilder();
+		for (int d = 0; d < ids.length; d++) {
+			String name = names[d] == null ? "" : names[d];
+			for (int i = 0; i < name.length(); i++) {
+				text.append(Character.toLowerCase(name.charAt(i)));
+			}
+			offsets[d + 1] = text.length();
+		}
+		char[] chars = new char[text.length()];
+		text.getChars(0, chars.length, chars, 0);
+		return index(ids.clone(), chars, offsets);
+	}
+
+	/**
+	 * builds the posting lists. every (trigram, doc) pair is packed into one
+	 * long with the trigram in the high half, so a single sort groups the
+	 * pairs by trigram with docs ascending inside each group
+	 */
+	private static TitleIndex index(int[] ids, char[] text, int[] offsets) {
+		int n = ids.length;
+		long[] pairs = new long[Math.max(16, text.length)];
+		int count = 0;
+		int[] doc_keys = new int[64];
+		for (int d = 0; d < n; d++) {
+			int from = offsets[d];
+			int grams = offsets[d + 1] - from - 2;
+			if (grams <= 0) {
+				continue;
+			}
+			if (grams > doc_keys.length) {
+				doc_keys = new int[grams];
+			}
+			for (int i = 0; i < grams; i++) {
+				doc_keys[i] = key(text, from + i);
+			}
+			/* a doc is listed once per trigram even if it repeats */
+			Arrays.sort(doc_keys, 0, grams);
+			for (int i = 0; i < grams; i++) {
+				if (i > 0 && doc_keys[i] == doc_keys[i - 1]) {
+					continue;
+				}
+				if (count == pairs.length) {
+					pairs = Arrays.copyOf(pairs, count * 2);
+				}
+				pairs[count++] = ((long) doc_keys[i] << 32) | d;
+			}
+		}
+		Arrays.sort(pairs, 0, count);
+
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (i == 0 || (int) (pairs[i] >> 32) != (int) (pairs[i - 1] >> 32)) {
+				distinct++;
+			}
+		}
+		int[] keys = new int[distinct];
+		int[] starts = new int[distinct + 1];
+		int[] postings = new int[count];
+		int k = -1;
+		for (int i = 0; i < count; i++) {
+			int key = (int) (pairs[i] >> 32);
+			if (k < 0 || keys[k] != key) {
+				keys[++k] = key;
+				starts[k] = i;
+			}
+			postings[i] = (int) pairs[i];
+		}
+		starts[distinct] = count;
+		return new TitleIndex(ids, text, offsets, keys, starts, postings);
+	}
+
+	/**
+	 * the key of the trigram starting at text[i]. characters below 1024 are
+	 * packed exactly, anything else is hashed; a collision only adds
+	 * candidates that the final title check throws out
+	 */
+	private static int key(char[] text, int i) {
+		char a = text[i], b = text[i + 1], c = text[i + 2];
+		if (a < 1024 && b < 1024 && c < 1024) {
+			return (a << 20) | (b << 10) | c;
+		}
+		int h = (a * 31 + b) * 31 + c;
+		h *= 0x9E3779B1;
+		return h | 0x80000000;
+	}
+
+	/**
+	 * ids of the movies whose title contains term, ignoring case, ascending.
+	 * returns null if term uses LIKE wildcards, which this index can't answer
+	 */
+	public int[] search(String term) {
+		if (term.indexOf('%') >= 0 || term.indexOf('_') >= 0
+				|| term.indexOf('\\') >= 0) {
+			return null;
+		}
+		char[] t = new char[term.length()];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = Character.toLowerCase(term.charAt(i));
+		}
+		int[] candidates;
+		int size;
+		if (t.length < 3) {
+			/* no trigram to look up, check every title */
+			candidates = null;
+			size = ids.length;
+		} else {
+			candidates = candidates(t);
+			if (candidates == null) {
+				return new int[0];
+			}
+			size = candidates.length;
+		}
+		int[] result = new int[size];
+		int found = 0;
+		for (int i = 0; i < size; i++) {
+			int d = candidates == null ? i : candidates[i];
+			if (contains(d, t)) {
+				result[found++] = ids[d];
+			}
+		}
+		return Arrays.copyOf(result, found);
+	}
+
+	/**
+	 * intersection of the posting lists of every trigram in t, starting from
+	 * the shortest list. null if some trigram occurs in no title
+	 */
+	private int[] candidates(char[] t) {
+		int grams = t.length - 2;
+		int[] from = new int[grams];
+		int[] to = new int[grams];
+		for (int i = 0; i < grams; i++) {
+			int k = Arrays.binarySearch(keys, key(t, i));
+			if (k < 0) {
+				return null;
+			}
+			from[i] = starts[k];
+			to[i] = starts[k + 1];
+		}
+		int shortest = 0;
+		for (int i = 1; i < grams; i++) {
+			if (to[i] - from[i] < to[shortest] - from[shortest]) {
+				shortest = i;
+			}
+		}
+		int[] result = Arrays.copyOfRange(postings, from[shortest], to[shortest]);
+		int size = result.length;
+		for (int i = 0; i < grams && size > 0; i++) {
+			if (i == shortest) {
+				continue;
+			}
+			int kept = 0;
+			int p = from[i];
+			for (int j = 0; j < size; j++) {
+				int d = result[j];
+				/* postings are sorted: gallop forward in list i to d */
+				int step = 1;
+				while (p + step < to[i] && postings[p + step] < d) {
+					p += step;
+					step <<= 1;
+				}
+				if (p < to[i] && postings[p] < d) {
+					int at = Arrays.binarySearch(postings, p + 1,
+							Math.min(p + step + 1, to[i]), d);
+					p = at >= 0 ? at : -at - 1;
+				}
+				if (p == to[i]) {
+					break;
+				}
+				if (postings[p] == d) {
+					result[kept++] = d;
+				}
+			}
+			size = kept;
+		}
+		return Arrays.copyOf(result, size);
+	}
+
+	private boolean contains(int d, char[] t) {
+		int from = offsets[d];
+		int last = offsets[d + 1] - t.length;
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while (j < t.length && text[i + j] == t[j]) {
+				j++;
+			}
+			if (j == t.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * is mid the id of a movie in the index
+	 */
+	public boolean hasMovie(int mid) {
+		return Arrays.binarySearch(ids, mid) >= 0;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	public long builtAt() {
+		return builtAt;
+	}
+}
@@ -0,0 +1,517 @@
+/* Group E CS390DB Fall 2013 */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The video store as an HTTP service, so one JVM and one pair of connection
+ * pools serve every customer instead of a VideoStore process per customer.
+ *
+ * <pre>
+ * POST /login       username, password    -> {"token": ..., "cid": ...}
+ * POST /logout
+ * GET  /me                                 name and rentals left
+ * GET  /search      title [, page_size]
+ * GET  /next                               next page of the last search
+ * GET  /fastsearch  title
+ * POST /plan        [id]                   list plans, or switch to plan id
+ * POST /rent        id [, id ...]
+ * POST /return      [id, ...]              return movies, or list rentals
+ * </pre>
+ *
+ * Parameters come from the query string or a form encoded body. Every call
+ * but login needs the token, either as "Authorization: Bearer token" or as
+ * a token parameter. The transactions are the ones of Query, whose console
+ * output is captured and returned as {"output": ..., "errors": ...}.
+ *
+ * Each session owns a Query, which only holds database connections while a
+ * transaction runs, so the number of sessions is not limited by poolSize.
+ * Requests of one session run one at a time.
+ */
+public class VideoServer {
+
+	/**
+	 * a logged in customer
+	 */
+	private static class Session {
+		final Query query;
+		final int cid;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		Session(Query query, int cid) {
+			this.query = query;
+			this.cid = cid;
+		}
+	}
+
+	/**
+	 * what an endpoint does once the session is known
+	 */
+	private interface Action {
+		void run(Session s, Map<String, List<String>> params) throws Exception;
+	}
+
+	/**
+	 * a bad request, answered with status and message instead of a 500
+	 */
+	private static class RequestException extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		RequestException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private int port = 8390;
+	private int threads = 200;
+	private long sessionTimeout = 30 * 60 * 1000L;
+
+	private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+	private final SecureRandom random = new SecureRandom();
+	private HttpServer server;
+	private ExecutorService executor;
+	private Query anchor;
+
+	public static void main(String[] args) throws Exception {
+		VideoServer vs = new VideoServer();
+		for (int i = 0; i < args.length; i++) {
+			String a = args[i];
+			if (i + 1 < args.length && a.equals("--port")) {
+				vs.port = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--threads")) {
+				vs.threads = Integer.parseInt(args[++i]);
+			} else if (i + 1 < args.length && a.equals("--session-timeout")) {
+				vs.sessionTimeout = Long.parseLong(args[++i]) * 1000;
+			} else {
+				usage();
+				System.exit(1);
+			}
+		}
+		vs.start();
+		System.out.println("VideoStore server listening on port " + vs.port);
+	}
+
+	public static void usage() {
+		System.out.println("Usage: java VideoServer [--port N] [--threads N] "
+				+ "[--session-timeout SECONDS]");
+	}
+
+	/**
+	 * opens the pools and starts serving
+	 *
+	 * @throws Exception
+	 */
+	public void start() throws Exception {
+		/* keeps the shared pools open while no customer is logged in */
+		anchor = new Query();
+		anchor.openConnection();
+		anchor.prepareStatements();
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/login", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				login(ex);
+			}
+		});
+		server.createContext("/logout", handler(true, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				logout(s);
+			}
+		}));
+		server.createContext("/me", handler(false, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				s.query.transaction_personal_data(s.cid);
+			}
+		}));
+		server.createContext("/search", handler(false, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				String title = required(params, "title");
+				String page_size = param(params, "page_size");
+				if (page_size != null) {
+					s.query.transaction_search_page(s.cid, title,
+							positive(page_size, "page_size"));
+				} else {
+					s.query.transaction_search(s.cid, title);
+				}
+			}
+		}));
+		server.createContext("/next", handler(false, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				s.query.transaction_search_next(s.cid);
+			}
+		}));
+		server.createContext("/fastsearch", handler(false, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				s.query.transaction_fast_search(s.cid, required(params, "title"));
+			}
+		}));
+		server.createContext("/plan", handler(true, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				String id = param(params, "id");
+				if (id == null) {
+					s.query.transaction_list_plans();
+					return;
+				}
+				int plan_id = positive(id, "id");
+				if (!s.query.helper_check_plan(plan_id)) {
+					throw new RequestException(400, "Incorrect plan id " + plan_id);
+				}
+				s.query.transaction_choose_plan(s.cid, plan_id);
+			}
+		}));
+		server.createContext("/rent", handler(true, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				int[] mids = movieIds(params);
+				if (mids.length == 0) {
+					throw new RequestException(400, "need to give a movie ID");
+				} else if (mids.length == 1) {
+					s.query.transaction_rent(s.cid, mids[0]);
+				} else {
+					s.query.transaction_rent_batch(s.cid, mids);
+				}
+			}
+		}));
+		server.createContext("/return", handler(true, new Action() {
+			public void run(Session s, Map<String, List<String>> params)
+					throws Exception {
+				int[] mids = movieIds(params);
+				if (mids.length == 0) {
+					s.query.transaction_list_user_rentals(s.cid);
+				} else if (mids.length == 1) {
+					s.query.transaction_return(s.cid, mids[0]);
+				} else {
+					s.query.transaction_return_batch(s.cid, mids);
+				}
+			}
+		}));
+
+		/*
+		 * requests mostly wait on the database, so threads are cheap compared
+		 * to connections; poolSize in dbconn.config bounds the backends
+		 */
+		final AtomicInteger n = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "http-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * stops accepting requests, logs everyone out and closes the pools
+	 *
+	 * @throws Exception
+	 */
+	public void stop() throws Exception {
+		server.stop(1);
+		executor.shutdown();
+		for (Session s : sessions.values()) {
+			logout(s);
+		}
+		anchor.closeConnection();
+	}
+
+	private void login(HttpExchange ex) throws IOException {
+		try {
+			if (!ex.getRequestMethod().equals("POST")) {
+				throw new RequestException(405, "use POST");
+			}
+			expireSessions();
+			Map<String, List<String>> params = params(ex);
+			Query q = new Query();
+			q.openConnection();
+			int cid;
+			try {
+				cid = q.transaction_login(required(params, "username"),
+						required(params, "password"));
+			} catch (Exception e) {
+				q.closeConnection();
+				throw e;
+			}
+			if (cid < 0) {
+				q.closeConnection();
+				throw new RequestException(401, "login failed");
+			}
+			String token = newToken();
+			sessions.put(token, new Session(q, cid));
+			respond(ex, 200, "{\"token\": " + json(token) + ", \"cid\": " + cid
+					+ "}");
+		} catch (RequestException e) {
+			respond(ex, e.status, "{\"error\": " + json(e.getMessage()) + "}");
+		} catch (Exception e) {
+			/* details stay in the server log, not with the client */
+			System.err.println("/login failed: " + e);
+			respond(ex, 500, "{\"error\": \"internal error\"}");
+		}
+	}
+
+	/**
+	 * ends the session s. /logout and expireSessions() can both get here for
+	 * the same session; only the one that removes it closes its connection,
+	 * so each openConnection() is closed exactly once
+	 */
+	private void logout(Session s) throws Exception {
+		boolean removed = false;
+		for (Map.Entry<String, Session> e : sessions.entrySet()) {
+			if (e.getValue() == s && sessions.remove(e.getKey(), s)) {
+				removed = true;
+			}
+		}
+		if (!removed) {
+			return;
+		}
+		synchronized (s) {
+			s.query.closeConnection();
+		}
+	}
+
+	/**
+	 * looks up the session of the request, runs the action with the Query
+	 * output captured and sends that output back as JSON. post is for the
+	 * actions that change something, which link prefetchers and crawlers
+	 * must not trigger with a GET
+	 */
+	private HttpHandler handler(final boolean post, final Action action) {
+		return new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				try {
+					if (post && !ex.getRequestMethod().equals("POST")) {
+						throw new RequestException(405, "use POST");
+					}
+					Map<String, List<String>> params = params(ex);
+					Session s = session(ex, params);
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					ByteArrayOutputStream err = new ByteArrayOutputStream();
+					synchronized (s) {
+						s.lastUsed = System.currentTimeMillis();
+						s.query.setOutput(new PrintStream(out, false, "UTF-8"),
+								new PrintStream(err, false, "UTF-8"));
+						try {
+							action.run(s, params);
+						} finally {
+							s.query.setOutput(System.out, System.err);
+						}
+					}
+					respond(ex, 200, "{\"output\": " + json(out.toString("UTF-8"))
+							+ ", \"errors\": " + json(err.toString("UTF-8")) + "}");
+				} catch (RequestException e) {
+					respond(ex, e.status, "{\"error\": " + json(e.getMessage()) + "}");
+				} catch (Exception e) {
+					System.err.println(ex.getRequestURI().getPath() + " failed: "
+							+ e);
+					respond(ex, 500, "{\"error\": \"internal error\"}");
+				}
+			}
+		};
+	}
+
+	private Session session(HttpExchange ex, Map<String, List<String>> params)
+			throws RequestException {
+		String token = param(params, "token");
+		String auth = ex.getRequestHeaders().getFirst("Authorization");
+		if (auth != null && auth.startsWith("Bearer ")) {
+			token = auth.substring("Bearer ".length()).trim();
+		}
+		Session s = token == null ? null : sessions.get(token);
+		if (s == null) {
+			throw new RequestException(401, "not logged in");
+		}
+		return s;
+	}
+
+	/**
+	 * logs out sessions nobody used for sessionTimeout. checked on login,
+	 * which is when the number of sessions grows
+	 */
+	private void expireSessions() throws Exception {
+		long cutoff = System.currentTimeMillis() - sessionTimeout;
+		for (Session s : sessions.values()) {
+			if (s.lastUsed < cutoff) {
+				logout(s);
+			}
+		}
+	}
+
+	private String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * the query string and, for a form post, the body
+	 */
+	private static Map<String, List<String>> params(HttpExchange ex)
+			throws IOException {
+		Map<String, List<String>> params = new HashMap<String, List<String>>();
+		decode(ex.getRequestURI().getRawQuery(), params);
+		String type = ex.getRequestHeaders().getFirst("Content-Type");
+		if (type != null && type.startsWith("application/x-www-form-urlencoded")) {
+			InputStream in = ex.getRequestBody();
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				body.write(buf, 0, n);
+			}
+			decode(body.toString("UTF-8"), params);
+		}
+		return params;
+	}
+
+	private static void decode(String s, Map<String, List<String>> params)
+			throws UnsupportedEncodingException {
+		if (s == null || s.length() == 0) {
+			return;
+		}
+		for (String pair : s.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq),
+					"UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(
+					pair.substring(eq + 1), "UTF-8");
+			List<String> values = params.get(key);
+			if (values == null) {
+				values = new ArrayList<String>();
+				params.put(key, values);
+			}
+			values.add(value);
+		}
+	}
+
+	private static String param(Map<String, List<String>> params, String key) {
+		List<String> values = params.get(key);
+		return values == null ? null : values.get(0);
+	}
+
+	private static String required(Map<String, List<String>> params, String key)
+			throws RequestException {
+		String value = param(params, key);
+		if (value == null || value.trim().length() == 0) {
+			throw new RequestException(400, "missing " + key);
+		}
+		return value.trim();
+	}
+
+	private static int positive(String value, String key)
+			throws RequestException {
+		try {
+			int n = Integer.parseInt(value.trim());
+			if (n > 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		throw new RequestException(400, key + " must be a positive integer");
+	}
+
+	/* every id parameter, each may also be a comma separated list */
+	private static int[] movieIds(Map<String, List<String>> params)
+			throws RequestException {
+		List<String> values = params.get("id");
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		if (values != null) {
+			for (String v : values) {
+				for (String id : v.split(",")) {
+					if (id.trim().length() == 0) {
+						continue;
+					}
+					try {
+						ids.add(Integer.parseInt(id.trim()));
+					} catch (NumberFormatException e) {
+						throw new RequestException(400,
+								"need to give a numeric movie ID");
+					}
+				}
+			}
+		}
+		int[] mids = new int[ids.size()];
+		for (int i = 0; i < mids.length; i++) {
+			mids[i] = ids.get(i);
+		}
+		return mids;
+	}
+
+	private static void respond(HttpExchange ex, int status, String body)
+			throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		ex.getResponseHeaders().set("Content-Type",
+				"application/json; charset=utf-8");
+		ex.sendResponseHeaders(status, bytes.length);
+		OutputStream os = ex.getResponseBody();
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	static String json(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
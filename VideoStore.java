@@ -1,140 +1,292 @@
 import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.InputStreamReader;
+import java.sql.SQLException;
+import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 
 public class VideoStore {
 
+    /* past rentals printed by each history command */
+    private static final int HISTORY_PAGE_SIZE = 20;
+
+    /* movies listed by the similar command */
+    private static final int SIMILAR_COUNT = 10;
+
     public static void usage() {
         /* prints the choices for commands and parameters */
         System.out.println();
         System.out.println(" *** Please enter one of the following commands *** ");
-        System.out.println("> search <movie title>");
+        System.out.println("> search <movie title> [--page-size <n>]");
+        System.out.println("> next");
         System.out.println("> plan [<plan id>]");
-        System.out.println("> rent <movie id>");
-        System.out.println("> return [<movie id>]");
+        System.out.println("> rent <movie id> [<movie id> ...]");
+        System.out.println("> return [<movie id> ...]");
         System.out.println("> fastsearch <movie title>");
+        System.out.println("> history [more]");
+        System.out.println("> similar <movie id>");
+        System.out.println("> stats");
         System.out.println("> quit");
     }
 
+    /* the rest of the command line as movie ids */
+    private static int[] movieIds(StringTokenizer st) {
+        int[] mids = new int[st.countTokens()];
+        for (int i = 0; i < mids.length; i++) {
+            mids[i] = Integer.parseInt(st.nextToken());
+        }
+        return mids;
+    }
+
     public static void menu(int cid, Query q) throws Exception {
         /* cid = customer id (obtained from the command line) */
 
         /* prepare to read the user's command and parameter(s) */
+        BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
         String response = null;
 
         while (true) {
             usage();
 
-            BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
             /* before prompting the user, tell her/him how many movies he can still rent */
             q.transaction_personal_data(cid);
             System.out.print("> ");
 
             response = r.readLine();
+            if (response == null) {
+                return; /* end of input */
+            }
             if (response.trim().length() == 0) {
                 System.out.println("Sorry, please give a command");
                 continue; // back to top of loop
             }
+            try {
+                if (!execute(cid, q, response)) {
+                    return;
+                }
+            } catch (SQLException e) {
+                /* e.g. still conflicting after the retries, the next command may work */
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+    }
 
-            StringTokenizer st = new StringTokenizer(response);
-            String t = st.nextToken();
+    /**
+     * runs the commands read from r one after the other, without the usage
+     * and personal data the interactive menu prints around them. blank lines
+     * and lines starting with # are skipped. a failing command is reported
+     * and the script goes on. at the end prints how many commands of each
+     * type ran, how long they took and the overall commands per second
+     */
+    public static void script(int cid, Query q, BufferedReader r) throws Exception {
+        /* command -> { count, errors, nanoseconds } */
+        Map<String, long[]> counts = new TreeMap<String, long[]>();
+        long start = System.nanoTime();
+        long total = 0;
+        String response;
+        while ((response = r.readLine()) != null) {
+            String line = response.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String t = new StringTokenizer(line).nextToken();
+            long[] c = counts.get(t);
+            if (c == null) {
+                c = new long[3];
+                counts.put(t, c);
+            }
+            long began = System.nanoTime();
+            boolean go_on = true;
+            try {
+                go_on = execute(cid, q, line);
+            } catch (Exception e) {
+                c[1]++;
+                System.out.println("Error: '" + line + "' failed: " + e.getMessage());
+            }
+            c[0]++;
+            c[2] += System.nanoTime() - began;
+            total++;
+            if (!go_on) {
+                break;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("%-12s %10s %8s %12s", "command",
+                                         "count", "errors", "avg ms"));
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            long[] c = e.getValue();
+            System.out.println(String.format("%-12s %10d %8d %12.3f",
+                                             e.getKey(), c[0], c[1], c[2] / 1e6 / c[0]));
+        }
+        System.out.println(String.format("%d commands in %.3f s, %.1f ops/sec",
+                                         total, seconds, seconds > 0 ? total / seconds : 0.0));
+    }
 
-            if (t.equals("search")) {
-                /* search for a movie whose title matches a string */
-                if (st.hasMoreTokens()) {
-                    String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
+    /**
+     * runs one command line, returns false if it was quit
+     */
+    private static boolean execute(int cid, Query q, String response) throws Exception {
+        StringTokenizer st = new StringTokenizer(response);
+        String t = st.nextToken();
+
+        if (t.equals("search")) {
+            /* search for a movie whose title matches a string */
+            if (st.hasMoreTokens()) {
+                String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
+                /* a trailing --page-size n shows the results a page at a time */
+                int page_size = 0;
+                int at = movie_title.lastIndexOf("--page-size");
+                if (at >= 0) {
+                    try {
+                        page_size = Integer.parseInt(movie_title.substring(
+                                at + "--page-size".length()).trim());
+                        movie_title = movie_title.substring(0, at).trim();
+                    } catch (NumberFormatException nfe) {
+                        page_size = 0; /* part of the title after all */
+                    }
+                }
+                if (movie_title.length() == 0) {
+                    System.out.println("Error: need to type in movie title");
+                } else if (page_size > 0) {
+                    System.out.println("Searching for the movie '"
+                                       + movie_title + "', " + page_size
+                                       + " at a time");
+                    q.transaction_search_page(cid, movie_title, page_size);
+                } else {
                     System.out.println("Searching for the movie '"
                                        + movie_title + "'");
                     q.transaction_search(cid, movie_title);
-                } else {
-                    System.out.println("Error: need to type in movie title");
                 }
+            } else {
+                System.out.println("Error: need to type in movie title");
             }
-            else if (t.equals("plan")) {
-                /* choose a new rental plan, or, if none is given, then list all available plans */
-                if (st.hasMoreTokens()) {
-                    try{
-                        int plan_id = Integer.parseInt(st.nextToken());
-                        /* need to check that plan_id is a valid plan id in the database, */
-                        /* if yes, then set the new plan for the current customer */
-                        /* if not, then list all available plans */
-                        boolean correct_plan = q.helper_check_plan(plan_id);
-                        if (correct_plan) {
-                            System.out.println("Switching to plan " + plan_id);
-                            q.transaction_choose_plan(cid, plan_id);
-                        } else {
-                            System.out.println("Incorrect plan id " + plan_id);
-                            System.out.println("Available plans are:");
-                            q.transaction_list_plans();
-                        }
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: provided plan number is not an integer");
-                    }
-                    
-                } else {
-                    System.out.println("Available plans:");
-                    q.transaction_list_plans();
+        }
+        else if (t.equals("next")) {
+            /* the next page of the last search --page-size */
+            q.transaction_search_next(cid);
+        }
+        else if (t.equals("history")) {
+            /* past rentals, newest first; more continues the listing */
+            boolean more = st.hasMoreTokens() && st.nextToken().equals("more");
+            q.transaction_history(cid, HISTORY_PAGE_SIZE, more);
+        }
+        else if (t.equals("similar")) {
+            /* what customers who rented the movie also rented */
+            if (st.hasMoreTokens()) {
+                try {
+                    q.transaction_similar(Integer.parseInt(st.nextToken()), SIMILAR_COUNT);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Error: movie id is not an integer");
                 }
+            } else {
+                System.out.println("Error: need to type in movie id");
             }
-            else if (t.equals("rent")) {
-                /* rent the movie with the given movie id */
-                if (st.hasMoreTokens()){
-                    try{
-                        int mid = Integer.parseInt(st.nextToken());
-                        System.out.println("Renting the movie id " + mid);
-                        q.transaction_rent(cid, mid);
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: need to give a numeric movie ID");
+        }
+        else if (t.equals("plan")) {
+            /* choose a new rental plan, or, if none is given, then list all available plans */
+            if (st.hasMoreTokens()) {
+                try{
+                    int plan_id = Integer.parseInt(st.nextToken());
+                    /* need to check that plan_id is a valid plan id in the database, */
+                    /* if yes, then set the new plan for the current customer */
+                    /* if not, then list all available plans */
+                    boolean correct_plan = q.helper_check_plan(plan_id);
+                    if (correct_plan) {
+                        System.out.println("Switching to plan " + plan_id);
+                        q.transaction_choose_plan(cid, plan_id);
+                    } else {
+                        System.out.println("Incorrect plan id " + plan_id);
+                        System.out.println("Available plans are:");
+                        q.transaction_list_plans();
                     }
+                } catch (NumberFormatException nfe){
+                    System.out.println("Error: provided plan number is not an integer");
                 }
-                else{
-                    System.out.println("Error: need to give a movie ID");
-                }
+                
+            } else {
+                System.out.println("Available plans:");
+                q.transaction_list_plans();
             }
-            else if (t.equals("return")) {
-                /* return a movie previously rented */
-                if (st.hasMoreTokens()){
-                    try{
-                        int mid = Integer.parseInt(st.nextToken());  
-
-                        /* return the movie with mid */
-                        System.out.println("Returning the movie id " + mid);
-                        q.transaction_return(cid, mid);
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: need to give a numeric movie ID");
+        }
+        else if (t.equals("rent")) {
+            /* rent the movie with the given movie id */
+            if (st.hasMoreTokens()){
+                try{
+                    int[] mids = movieIds(st);
+                    if (mids.length == 1) {
+                        System.out.println("Renting the movie id " + mids[0]);
+                        q.transaction_rent(cid, mids[0]);
+                    } else {
+                        /* several ids are rented together in one transaction */
+                        System.out.println("Renting " + mids.length + " movies");
+                        q.transaction_rent_batch(cid, mids);
                     }
-                    
+                } catch (NumberFormatException nfe){
+                    System.out.println("Error: need to give a numeric movie ID");
                 }
-                else{
-                    q.transaction_list_user_rentals(cid);
-                }
-
             }
-            else if (t.equals("fastsearch")) {
-                /* same as search, only faster */
-                if (st.hasMoreTokens()) {
-                    String movie_title = st.nextToken("\n").trim();
-                    System.out.println("Fast Searching for the movie '"
-                                       + movie_title + "'");
-                    q.transaction_fast_search(cid, movie_title);
-                } else {
-                    System.out
-                        .println("Error: need to type in movie title");
+            else{
+                System.out.println("Error: need to give a movie ID");
+            }
+        }
+        else if (t.equals("return")) {
+            /* return a movie previously rented */
+            if (st.hasMoreTokens()){
+                try{
+                    int[] mids = movieIds(st);
+
+                    /* return the movie(s) with mid */
+                    if (mids.length == 1) {
+                        System.out.println("Returning the movie id " + mids[0]);
+                        q.transaction_return(cid, mids[0]);
+                    } else {
+                        System.out.println("Returning " + mids.length + " movies");
+                        q.transaction_return_batch(cid, mids);
+                    }
+                } catch (NumberFormatException nfe){
+                    System.out.println("Error: need to give a numeric movie ID");
                 }
+                
             }
-            else if (t.equals("quit")) {
-                System.exit(0);
+            else{
+                q.transaction_list_user_rentals(cid);
             }
-            else {
-                System.out.println("Error: unrecognized command '" + t
-                                   + "'");
+
+        }
+        else if (t.equals("fastsearch")) {
+            /* same as search, only faster */
+            if (st.hasMoreTokens()) {
+                String movie_title = st.nextToken("\n").trim();
+                System.out.println("Fast Searching for the movie '"
+                                   + movie_title + "'");
+                q.transaction_fast_search(cid, movie_title);
+            } else {
+                System.out
+                    .println("Error: need to type in movie title");
             }
         }
+        else if (t.equals("stats")) {
+            /* where the time goes, per transaction and statement */
+            q.helper_print_stats();
+        }
+        else if (t.equals("quit")) {
+            return false;
+        }
+        else {
+            System.out.println("Error: unrecognized command '" + t
+                               + "'");
+        }
+        return true;
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 2) {
-            System.out.println("Usage: java VideoStore CUSTOMER_ID CUSTOMER_PASSWORD");
+        if (args.length < 2 || args.length > 4
+            || (args.length > 2 && !args[2].equals("--script"))) {
+            System.out.println("Usage: java VideoStore CUSTOMER_ID CUSTOMER_PASSWORD [--script [FILE]]");
+            System.out.println("       --script runs the commands in FILE, or on standard input, without prompting");
             System.exit(1);
         }
         
@@ -145,7 +297,19 @@ public class VideoStore {
 
         /* authenticate the user */
         int cid = q.transaction_login(args[0], args[1]);            
-        if (cid >= 0)
+        q.helper_print_startup();
+        if (cid >= 0 && args.length > 2) {
+            /* batch mode: commands come from a file or a pipe */
+            BufferedReader r = new BufferedReader(args.length > 3
+                ? new FileReader(args[3])
+                : new InputStreamReader(System.in));
+            try {
+                script(cid, q, r);
+            } finally {
+                r.close();
+            }
+        }
+        else if (cid >= 0)
             menu(cid, q); /* menu(...) does the real work */
         else
             System.out.println("Sorry, login failed..."); /* innocent mistake, or malicious attack ? */
@@ -0,0 +1,187 @@
+/* Group E CS390DB Fall 2013 */
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the Query transactions against a live postgres, run from
+ * the directory holding dbconn.config after loading data with DataGenerator:
+ *
+ * <pre>
+ * java -cp target/classes:postgresql-9.2-1002.jdbc4.jar DataGenerator --reset
+ * mvn -P bench package
+ * java -jar target/benchmarks.jar
+ * </pre>
+ *
+ * JMH refuses benchmarks in the default package, and classes in a named
+ * package can't name the default package's Query, so the transactions are
+ * called through method handles. Query's console output is discarded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+
+	/**
+	 * one logged in customer session per benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Session {
+		/* movies DataGenerator never rents, one per thread */
+		private static final AtomicInteger nextMovie = new AtomicInteger(1);
+
+		@Param({ "user1" })
+		public String user;
+
+		@Param({ "pass1" })
+		public String password;
+
+		Object query;
+		int cid;
+		int mid;
+		PrintStream out;
+
+		MethodHandle search;
+		MethodHandle fastSearch;
+		MethodHandle rent;
+		MethodHandle giveBack;
+		MethodHandle choosePlan;
+		MethodHandle listRentals;
+
+		@Setup(Level.Trial)
+		public void open() throws Throwable {
+			out = System.out;
+			System.setOut(new PrintStream(new OutputStream() {
+				public void write(int b) {
+				}
+
+				public void write(byte[] b, int off, int len) {
+				}
+			}));
+
+			Class<?> cls = Class.forName("Query");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			MethodType search_type = MethodType.methodType(void.class,
+					int.class, String.class);
+			MethodType movie_type = MethodType.methodType(void.class, int.class,
+					int.class);
+			search = lookup.findVirtual(cls, "transaction_search", search_type);
+			fastSearch = lookup.findVirtual(cls, "transaction_fast_search",
+					search_type);
+			rent = lookup.findVirtual(cls, "transaction_rent", movie_type);
+			giveBack = lookup.findVirtual(cls, "transaction_return", movie_type);
+			choosePlan = lookup.findVirtual(cls, "transaction_choose_plan",
+					movie_type);
+			listRentals = lookup.findVirtual(cls,
+					"transaction_list_user_rentals",
+					MethodType.methodType(void.class, int.class));
+
+			query = cls.getConstructor().newInstance();
+			lookup.findVirtual(cls, "openConnection",
+					MethodType.methodType(void.class)).invoke(query);
+			lookup.findVirtual(cls, "prepareStatements",
+					MethodType.methodType(void.class)).invoke(query);
+			cid = (Integer) lookup.findVirtual(cls, "transaction_login",
+					MethodType.methodType(int.class, String.class, String.class))
+					.invoke(query, user, password);
+			if (cid < 0) {
+				throw new IllegalStateException("login failed for " + user
+						+ ", load data with DataGenerator first");
+			}
+			mid = nextMovie.getAndIncrement();
+		}
+
+		@TearDown(Level.Trial)
+		public void close() throws Throwable {
+			query.getClass().getMethod("closeConnection").invoke(query);
+			System.setOut(out);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Terms {
+		@Param({ "star wars", "the", "nonexistent" })
+		public String term;
+	}
+
+	/**
+	 * rents the thread's movie before every call, for the return benchmark
+	 */
+	@State(Scope.Thread)
+	public static class Rented {
+		@Setup(Level.Invocation)
+		public void rentIt(Session s) throws Throwable {
+			s.rent.invoke(s.query, s.cid, s.mid);
+		}
+	}
+
+	/**
+	 * returns the thread's movie after every call, for the rent benchmark
+	 */
+	@State(Scope.Thread)
+	public static class Returned {
+		@TearDown(Level.Invocation)
+		public void returnIt(Session s) throws Throwable {
+			s.giveBack.invoke(s.query, s.cid, s.mid);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Plans {
+		int[] plans = { 4, 5 };
+		int next = 0;
+	}
+
+	@Benchmark
+	public void search(Session s, Terms t) throws Throwable {
+		s.search.invoke(s.query, s.cid, t.term);
+	}
+
+	@Benchmark
+	public void fastSearch(Session s, Terms t) throws Throwable {
+		s.fastSearch.invoke(s.query, s.cid, t.term);
+	}
+
+	@Benchmark
+	public void rent(Session s, Returned r) throws Throwable {
+		s.rent.invoke(s.query, s.cid, s.mid);
+	}
+
+	@Benchmark
+	public void giveBack(Session s, Rented r) throws Throwable {
+		s.giveBack.invoke(s.query, s.cid, s.mid);
+	}
+
+	@Benchmark
+	public void choosePlan(Session s, Plans p) throws Throwable {
+		s.choosePlan.invoke(s.query, s.cid, p.plans[p.next]);
+		p.next ^= 1;
+	}
+
+	@Benchmark
+	public void listUserRentals(Session s) throws Throwable {
+		s.listRentals.invoke(s.query, s.cid);
+	}
+}
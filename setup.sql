@@ -1,173 +1,404 @@
-/* movie may not be needed 1/2
-CREATE TABLE movie (
-   movie_id serial,
-   name text,
-   year integer
-);
-*/
-
-CREATE TABLE activerental (
-    rental_id serial,
-    movie_id integer NOT NULL,
-    cust_id integer,
-    dateout timestamp
-);
-
-CREATE TABLE inactiverental (
-    rental_id serial,
-    movie_id integer NOT NULL,
-    cust_id integer,
-    dateout timestamp,
-    datein timestamp
-);
-
-CREATE TABLE customer (
-    cust_id serial,
-    username text,
-    password text,
-    fname text,
-    lname text,
-    phone text,
-    plan_id integer,
-    address_id integer
-);
-
-CREATE TABLE rentalplan (
-    plan_id serial,
-    name text UNIQUE NOT NULL,
-    maxrentals integer NOT NULL, -- restriction 2a
-    fee numeric(6,2) NOT NULL
-);
-
-CREATE TABLE address (
-    address_id serial,
-    street text,
-    city text,
-    state text,
-    zip text
-);
-
-/* movie may not be needed 2/2
-ALTER TABLE movie
-    ADD CONSTRAINT movie_pkey PRIMARY KEY (movie_id);
-*/
-
-ALTER TABLE rentalplan
-    ADD CONSTRAINT rentalplan_pkey PRIMARY KEY (plan_id);
-
-ALTER TABLE address
-    ADD CONSTRAINT address_pkey PRIMARY KEY (address_id);
-
-ALTER TABLE customer
-    ADD CONSTRAINT customer_pkey PRIMARY KEY (cust_id),
-    ADD CONSTRAINT customer_aid_fkey FOREIGN KEY (address_id) REFERENCES address(address_id),
-    ADD CONSTRAINT customer_pid_fkey FOREIGN KEY (plan_id) REFERENCES rentalplan(plan_id);
-
-/* TODO: movie_id constraint rework */
-ALTER TABLE activerental
-    ADD CONSTRAINT activerental_mid_key UNIQUE (movie_id), -- restriction 1
-    ADD CONSTRAINT activerental_pkey PRIMARY KEY (rental_id),
-    -- ADD CONSTRAINT activerental_mid_fkey FOREIGN KEY (movie_id) REFERENCES movie(movie_id),
-    ADD CONSTRAINT activerental_cid_fkey FOREIGN KEY (cust_id) REFERENCES customer(cust_id);
-
-ALTER TABLE inactiverental
-    ADD CONSTRAINT rentalhistory_pkey PRIMARY KEY (rental_id),
-    -- ADD CONSTRAINT rentalhistory_mid_fkey FOREIGN KEY (movie_id) REFERENCES movie(movie_id),
-    ADD CONSTRAINT rentalhistory_cid_fkey FOREIGN KEY (cust_id) REFERENCES customer(cust_id);
-
-/** Preserve records that are deleted from activerental in historical inactiverental
-* and save date of return
-*/
-CREATE OR REPLACE FUNCTION copy_to_history()
-RETURNS trigger AS
-$end_rental$
-    BEGIN
-        INSERT INTO inactiverental (rental_id, movie_id, cust_id, datein, dateout)
-        VALUES (OLD.rental_id, OLD.movie_id, OLD.cust_id, OLD.dateout, current_timestamp);
-        RETURN NULL;
-    END;
-$end_rental$
-LANGUAGE plpgsql;
-
-/** When any row is deleted from activerental, call copy_to_history()
-*/
-DROP TRIGGER IF EXISTS end_rental ON activerental;
-CREATE TRIGGER end_rental
-AFTER DELETE
-ON activerental
-FOR EACH ROW
-EXECUTE PROCEDURE copy_to_history();
-
-/** Rollback insertion into activerental if the number of active rentals for a customer
-* would exceed their allowed plan amount
-*/
-CREATE OR REPLACE FUNCTION check_outstanding()
-RETURNS trigger AS
-$check_overdue$
-    DECLARE custid customer.cust_id%TYPE;
-        planid customer.plan_id%TYPE;
-        outstanding integer;
-        allowedrentals integer;
-    BEGIN
-        custid := NEW.cust_id;
-
-        SELECT count(*) INTO outstanding
-        FROM activerental
-        WHERE cust_id = custid;
-
-        SELECT r.maxrentals INTO allowedrentals
-        FROM rentalplan r
-        INNER JOIN customer c on c.plan_id = r.plan_id
-        WHERE c.cust_id = custid;
-        RAISE NOTICE 'For: % Outstanding: % Allowed: %',custid, outstanding, allowedrentals;
-
-        IF outstanding>allowedrentals THEN -- restriction 2b
-            ROLLBACK TRANSACTION;
-        END IF;
-        RETURN NULL;
-    END;
-$check_overdue$
-LANGUAGE plpgsql;
-
-/** When any row is inserted into activerental, call check_outstanding()
-*/
-DROP TRIGGER IF EXISTS check_overdue ON activerental;
-CREATE TRIGGER check_overdue
-AFTER INSERT
-ON activerental
-FOR EACH ROW
-EXECUTE PROCEDURE check_outstanding();
-
-/* Initial Data */
-INSERT INTO rentalplan (name, maxrentals, fee)
-VALUES    ('none', 0, 0),
-    ('basic', 1, 1.99),
-    ('rental plus', 3, 2.99),
-    ('super access', 5, 3.99),
-    ('prime', 10, 4.99);
-
-INSERT INTO address (street, city, state, zip)
-VALUES    ('123 Campus Center', 'Amherst', '01003', 'Massachusetts'),
-    ('456 CS Building', 'Amherst', '01003', 'Massachusetts'),
-    ('789 Student Union', 'Amherst', '01003', 'Massachusetts'),
-    ('012 Goessman', 'Amherst', '01003', 'Massachusetts'),
-    ('345 Parking Garage', 'Amherst', '01003', 'Massachusetts'),
-    ('678 Mullins Center', 'Amherst', '01003', 'Massachusetts');
-
-INSERT INTO customer (username, password, fname, lname, phone, plan_id, address_id)
-VALUES     ('aelsey', 'abc', 'Andrew', 'Elsey', '4131111111', 1, 1),
-     ('asantos', 'def', 'Anthony', 'Santos', '4132222222', 2, 2),
-    ('danton', 'ghi', 'Derek', 'Anton', '4133333333', 3, 3),
-    ('jfrankline', 'jkl', 'Jonathan', 'Frankline', '4134444444', 4, 4),
-    ('pghale', 'mno', 'Pratima', 'Ghale', '4135555555', 1, 5),
-    ('tpham', 'pqr', 'Ted', 'Pham', '4136666666', 2, 6);
-
-INSERT INTO activerental (movie_id, cust_id, dateout)
-VALUES    (1, 2, current_timestamp - interval '2 day'),
-    (3, 4, current_timestamp - interval '4 day');
-
-DELETE FROM activerental
-WHERE cust_id = 4;
-
---ensure transactions are synchronized
-SET default_transaction_isolation TO serializable;
+/* movie may not be needed 1/2
+CREATE TABLE movie (
+   movie_id serial,
+   name text,
+   year integer
+);
+*/
+
+CREATE TABLE activerental (
+    rental_id serial,
+    movie_id integer NOT NULL,
+    cust_id integer,
+    dateout timestamp
+);
+
+/* parent of the monthly history partitions inactiverental_yYYYYmMM (by datein),
+* created by history_partition(); the parent itself stays empty
+*/
+CREATE TABLE inactiverental (
+    rental_id serial,
+    movie_id integer NOT NULL,
+    cust_id integer,
+    dateout timestamp,
+    datein timestamp
+);
+
+/* returns not archived yet, moved into inactiverental by archive_rentals() */
+CREATE TABLE rental_return_queue (
+    rental_id integer NOT NULL,
+    movie_id integer NOT NULL,
+    cust_id integer,
+    dateout timestamp,
+    datein timestamp NOT NULL
+);
+
+CREATE TABLE customer (
+    cust_id serial,
+    username text,
+    password text,
+    fname text,
+    lname text,
+    phone text,
+    plan_id integer,
+    address_id integer,
+    version integer NOT NULL DEFAULT 0, -- bumped on every rental change, see bump_customer_version()
+    active_rentals integer NOT NULL DEFAULT 0, -- rows in activerental, kept by bump_customer_version()
+    rental_limit integer -- maxrentals of the plan, kept by set_rental_limit()
+);
+
+CREATE TABLE rentalplan (
+    plan_id serial,
+    name text UNIQUE NOT NULL,
+    maxrentals integer NOT NULL, -- restriction 2a
+    fee numeric(6,2) NOT NULL
+);
+
+CREATE TABLE address (
+    address_id serial,
+    street text,
+    city text,
+    state text,
+    zip text
+);
+
+/* movie may not be needed 2/2
+ALTER TABLE movie
+    ADD CONSTRAINT movie_pkey PRIMARY KEY (movie_id);
+*/
+
+ALTER TABLE rentalplan
+    ADD CONSTRAINT rentalplan_pkey PRIMARY KEY (plan_id);
+
+ALTER TABLE address
+    ADD CONSTRAINT address_pkey PRIMARY KEY (address_id);
+
+ALTER TABLE customer
+    ADD CONSTRAINT customer_pkey PRIMARY KEY (cust_id),
+    ADD CONSTRAINT customer_aid_fkey FOREIGN KEY (address_id) REFERENCES address(address_id),
+    ADD CONSTRAINT customer_pid_fkey FOREIGN KEY (plan_id) REFERENCES rentalplan(plan_id),
+    ADD CONSTRAINT customer_rental_limit_check CHECK (active_rentals >= 0 AND active_rentals <= rental_limit); -- restriction 2b
+
+/* TODO: movie_id constraint rework */
+ALTER TABLE activerental
+    ADD CONSTRAINT activerental_mid_key UNIQUE (movie_id), -- restriction 1
+    ADD CONSTRAINT activerental_pkey PRIMARY KEY (rental_id),
+    -- ADD CONSTRAINT activerental_mid_fkey FOREIGN KEY (movie_id) REFERENCES movie(movie_id),
+    ADD CONSTRAINT activerental_cid_fkey FOREIGN KEY (cust_id) REFERENCES customer(cust_id);
+
+ALTER TABLE inactiverental
+    ADD CONSTRAINT rentalhistory_pkey PRIMARY KEY (rental_id),
+    -- ADD CONSTRAINT rentalhistory_mid_fkey FOREIGN KEY (movie_id) REFERENCES movie(movie_id),
+    ADD CONSTRAINT rentalhistory_cid_fkey FOREIGN KEY (cust_id) REFERENCES customer(cust_id);
+
+/** Preserve records that are deleted from activerental and save the date of
+* return. They go to the unindexed rental_return_queue, which keeps a return
+* cheap however long the history gets; archive_rentals() moves them on
+*/
+CREATE OR REPLACE FUNCTION copy_to_history()
+RETURNS trigger AS
+$end_rental$
+    BEGIN
+        INSERT INTO rental_return_queue (rental_id, movie_id, cust_id, dateout, datein)
+        VALUES (OLD.rental_id, OLD.movie_id, OLD.cust_id, OLD.dateout, current_timestamp);
+        RETURN NULL;
+    END;
+$end_rental$
+LANGUAGE plpgsql;
+
+/** When any row is deleted from activerental, call copy_to_history()
+*/
+DROP TRIGGER IF EXISTS end_rental ON activerental;
+CREATE TRIGGER end_rental
+AFTER DELETE
+ON activerental
+FOR EACH ROW
+EXECUTE PROCEDURE copy_to_history();
+
+/** Keep customer.rental_limit equal to the maxrentals of the customer's plan,
+* so customer_rental_limit_check can enforce the limit on the customer row
+* (a CHECK can't read rentalplan)
+*/
+CREATE OR REPLACE FUNCTION set_rental_limit()
+RETURNS trigger AS
+$rental_limit$
+    BEGIN
+        SELECT maxrentals INTO NEW.rental_limit
+        FROM rentalplan
+        WHERE plan_id = NEW.plan_id;
+        RETURN NEW;
+    END;
+$rental_limit$
+LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS rental_limit ON customer;
+CREATE TRIGGER rental_limit
+BEFORE INSERT OR UPDATE OF plan_id
+ON customer
+FOR EACH ROW
+EXECUTE PROCEDURE set_rental_limit();
+
+/** When a plan's maxrentals changes, so does the limit of its customers,
+* and their version so cached customer states are reloaded
+*/
+CREATE OR REPLACE FUNCTION update_rental_limits()
+RETURNS trigger AS
+$plan_limit$
+    BEGIN
+        UPDATE customer SET version = version + 1, rental_limit = NEW.maxrentals
+        WHERE plan_id = NEW.plan_id;
+        RETURN NULL;
+    END;
+$plan_limit$
+LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS plan_limit ON rentalplan;
+CREATE TRIGGER plan_limit
+AFTER UPDATE OF maxrentals
+ON rentalplan
+FOR EACH ROW
+EXECUTE PROCEDURE update_rental_limits();
+
+/** Tell listeners (Query's rental cache) about every change to activerental,
+* so processes can keep an in memory copy of who rents what
+*/
+CREATE OR REPLACE FUNCTION notify_rental()
+RETURNS trigger AS
+$rental_changed$
+    BEGIN
+        IF TG_OP = 'DELETE' OR TG_OP = 'UPDATE' THEN
+            PERFORM pg_notify('activerental', 'return ' || OLD.movie_id);
+        END IF;
+        IF TG_OP = 'INSERT' OR TG_OP = 'UPDATE' THEN
+            PERFORM pg_notify('activerental', 'rent ' || NEW.movie_id || ' ' || NEW.cust_id);
+        END IF;
+        RETURN NULL;
+    END;
+$rental_changed$
+LANGUAGE plpgsql;
+
+/** When any row of activerental changes, call notify_rental()
+*/
+DROP TRIGGER IF EXISTS rental_changed ON activerental;
+CREATE TRIGGER rental_changed
+AFTER INSERT OR UPDATE OR DELETE
+ON activerental
+FOR EACH ROW
+EXECUTE PROCEDURE notify_rental();
+
+/** Rent movie mid to customer cid in one call, checking the plan limit and that
+* the only copy is in. Returns 0 when rented, 1 when the rental limit is
+* reached, 2 when someone else has the movie
+*/
+CREATE OR REPLACE FUNCTION rent_movie(mid integer, cid integer)
+RETURNS integer AS
+$rent_movie$
+    DECLARE outstanding integer;
+        allowedrentals integer;
+    BEGIN
+        -- lock the customer so two rents by the same customer can't both pass the limit
+        SELECT active_rentals, rental_limit INTO outstanding, allowedrentals
+        FROM customer
+        WHERE cust_id = cid
+        FOR UPDATE;
+
+        IF allowedrentals IS NULL OR outstanding >= allowedrentals THEN
+            RETURN 1;
+        END IF;
+        IF EXISTS (SELECT 1 FROM activerental WHERE movie_id = mid) THEN
+            RETURN 2;
+        END IF;
+
+        INSERT INTO activerental (movie_id, cust_id, dateout)
+        VALUES (mid, cid, current_timestamp);
+        RETURN 0;
+    EXCEPTION
+        WHEN unique_violation THEN -- lost a race for the same movie
+            RETURN 2;
+    END;
+$rent_movie$
+LANGUAGE plpgsql;
+
+/** Return movie mid if customer cid is the one renting it, in one call.
+* Returns 0 when returned, 1 when cid does not have the movie
+*/
+CREATE OR REPLACE FUNCTION return_movie(mid integer, cid integer)
+RETURNS integer AS
+$return_movie$
+    BEGIN
+        DELETE FROM activerental
+        WHERE movie_id = mid AND cust_id = cid;
+        IF FOUND THEN
+            RETURN 0;
+        END IF;
+        RETURN 1;
+    END;
+$return_movie$
+LANGUAGE plpgsql;
+
+/** Bump customer.version whenever one of the customer's rentals starts or
+* ends, so sessions caching the customer's state can tell it changed, and
+* keep customer.active_rentals counting them in the same update
+*/
+CREATE OR REPLACE FUNCTION bump_customer_version()
+RETURNS trigger AS
+$rental_version$
+    BEGIN
+        IF TG_OP = 'DELETE' OR TG_OP = 'UPDATE' THEN
+            UPDATE customer SET version = version + 1, active_rentals = active_rentals - 1
+            WHERE cust_id = OLD.cust_id;
+        END IF;
+        IF TG_OP = 'INSERT' OR TG_OP = 'UPDATE' THEN
+            UPDATE customer SET version = version + 1, active_rentals = active_rentals + 1
+            WHERE cust_id = NEW.cust_id;
+        END IF;
+        RETURN NULL;
+    END;
+$rental_version$
+LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS rental_version ON activerental;
+CREATE TRIGGER rental_version
+AFTER INSERT OR UPDATE OR DELETE
+ON activerental
+FOR EACH ROW
+EXECUTE PROCEDURE bump_customer_version();
+
+/** Fix and return every customer whose active_rentals differs from
+* activerental. Each one is locked before it is counted again; a rental in
+* flight has to update the same row, so it either is counted or waits. A fix
+* bumps the customer's version like any other change to the count
+*/
+CREATE OR REPLACE FUNCTION reconcile_rental_counts()
+RETURNS TABLE (cust integer, counter integer, rentals integer) AS
+$reconcile$
+    DECLARE drifted integer;
+    BEGIN
+        FOR drifted IN
+            SELECT c.cust_id FROM customer c
+            LEFT JOIN (SELECT a.cust_id, count(*) AS n FROM activerental a GROUP BY a.cust_id) r
+            ON r.cust_id = c.cust_id
+            WHERE c.active_rentals <> coalesce(r.n, 0)
+        LOOP
+            SELECT c.active_rentals INTO counter FROM customer c WHERE c.cust_id = drifted FOR UPDATE;
+            SELECT count(*) INTO rentals FROM activerental a WHERE a.cust_id = drifted;
+            IF counter <> rentals THEN
+                UPDATE customer c SET version = c.version + 1, active_rentals = rentals WHERE c.cust_id = drifted;
+                cust := drifted;
+                RETURN NEXT;
+            END IF;
+        END LOOP;
+    END;
+$reconcile$
+LANGUAGE plpgsql;
+
+/** Bump customer.version when the customer changes plan
+*/
+CREATE OR REPLACE FUNCTION bump_plan_version()
+RETURNS trigger AS
+$plan_version$
+    BEGIN
+        IF NEW.plan_id IS DISTINCT FROM OLD.plan_id THEN
+            NEW.version := OLD.version + 1;
+        END IF;
+        RETURN NEW;
+    END;
+$plan_version$
+LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS plan_version ON customer;
+CREATE TRIGGER plan_version
+BEFORE UPDATE OF plan_id
+ON customer
+FOR EACH ROW
+EXECUTE PROCEDURE bump_plan_version();
+
+/** Name of the history partition holding returns of the month of ts, creating
+* it with its check constraint (for constraint exclusion) and its per customer
+* index the first time
+*/
+CREATE OR REPLACE FUNCTION history_partition(ts timestamp)
+RETURNS text AS
+$history_partition$
+    DECLARE part text := 'inactiverental_' || to_char(ts, '"y"YYYY"m"MM');
+        lo timestamp := date_trunc('month', ts);
+    BEGIN
+        IF NOT EXISTS (SELECT 1 FROM pg_class WHERE relname = part AND relkind = 'r') THEN
+            EXECUTE format('CREATE TABLE %I (CHECK (datein >= %L AND datein < %L)) INHERITS (inactiverental)',
+                part, lo, lo + interval '1 month');
+            EXECUTE format('CREATE INDEX %I ON %I (cust_id, datein, rental_id)',
+                part || '_cust_idx', part);
+        END IF;
+        RETURN part;
+    END;
+$history_partition$
+LANGUAGE plpgsql;
+
+/** Move every queued return into its monthly partition, with one set based
+* DELETE ... RETURNING / INSERT per month. Returns the number of rentals moved,
+* or -1 if another archive_rentals() is running
+*/
+CREATE OR REPLACE FUNCTION archive_rentals()
+RETURNS integer AS
+$archive_rentals$
+    DECLARE m record;
+        moved integer := 0;
+        n integer;
+    BEGIN
+        IF NOT pg_try_advisory_xact_lock(390019) THEN
+            RETURN -1;
+        END IF;
+        FOR m IN SELECT DISTINCT date_trunc('month', datein) AS month FROM rental_return_queue LOOP
+            EXECUTE format('WITH done AS (DELETE FROM rental_return_queue '
+                    || 'WHERE datein >= %L AND datein < %L RETURNING *) '
+                    || 'INSERT INTO %I (rental_id, movie_id, cust_id, dateout, datein) '
+                    || 'SELECT rental_id, movie_id, cust_id, dateout, datein FROM done',
+                m.month, m.month + interval '1 month', history_partition(m.month));
+            GET DIAGNOSTICS n = ROW_COUNT;
+            moved := moved + n;
+        END LOOP;
+        RETURN moved;
+    END;
+$archive_rentals$
+LANGUAGE plpgsql;
+
+/** Every finished rental, archived or still queued
+*/
+CREATE OR REPLACE VIEW rental_history AS
+    SELECT rental_id, movie_id, cust_id, dateout, datein FROM inactiverental
+    UNION ALL
+    SELECT rental_id, movie_id, cust_id, dateout, datein FROM rental_return_queue;
+
+/* Initial Data */
+INSERT INTO rentalplan (name, maxrentals, fee)
+VALUES    ('none', 0, 0),
+    ('basic', 1, 1.99),
+    ('rental plus', 3, 2.99),
+    ('super access', 5, 3.99),
+    ('prime', 10, 4.99);
+
+INSERT INTO address (street, city, state, zip)
+VALUES    ('123 Campus Center', 'Amherst', '01003', 'Massachusetts'),
+    ('456 CS Building', 'Amherst', '01003', 'Massachusetts'),
+    ('789 Student Union', 'Amherst', '01003', 'Massachusetts'),
+    ('012 Goessman', 'Amherst', '01003', 'Massachusetts'),
+    ('345 Parking Garage', 'Amherst', '01003', 'Massachusetts'),
+    ('678 Mullins Center', 'Amherst', '01003', 'Massachusetts');
+
+INSERT INTO customer (username, password, fname, lname, phone, plan_id, address_id)
+VALUES     ('aelsey', 'abc', 'Andrew', 'Elsey', '4131111111', 1, 1),
+     ('asantos', 'def', 'Anthony', 'Santos', '4132222222', 2, 2),
+    ('danton', 'ghi', 'Derek', 'Anton', '4133333333', 3, 3),
+    ('jfrankline', 'jkl', 'Jonathan', 'Frankline', '4134444444', 4, 4),
+    ('pghale', 'mno', 'Pratima', 'Ghale', '4135555555', 1, 5),
+    ('tpham', 'pqr', 'Ted', 'Pham', '4136666666', 2, 6);
+
+INSERT INTO activerental (movie_id, cust_id, dateout)
+VALUES    (1, 2, current_timestamp - interval '2 day'),
+    (3, 4, current_timestamp - interval '4 day');
+
+DELETE FROM activerental
+WHERE cust_id = 4;
+
+--ensure transactions are synchronized
+SET default_transaction_isolation TO serializable;
@@ -0,0 +1,124 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CatalogCacheTest {
+
+	private static CatalogCache.Entry people(int actors) {
+		CatalogCache.Builder b = new CatalogCache.Builder();
+		b.director("Lana", "Wachowski");
+		for (int i = 0; i < actors; i++) {
+			b.actor("Actor" + i, "Last" + i, i % 2 == 0 ? "M" : "F");
+		}
+		return b.build();
+	}
+
+	@Test
+	public void roundTripsNullsAndUnicode() {
+		CatalogCache.Builder b = new CatalogCache.Builder();
+		b.director(null, "Jeunet");
+		b.actor("Audrey", "Tautou", "F");
+		b.actor("Mathieu", "Kassovitz", null);
+		b.actor("", "Zoë 漢字 🎬", "M");
+		CatalogCache cache = new CatalogCache(1 << 20);
+		cache.put(40, b.build());
+		CatalogCache.Entry e = cache.get(40);
+		assertArrayEquals(new String[] { null }, e.directorFirst);
+		assertArrayEquals(new String[] { "Jeunet" }, e.directorLast);
+		assertArrayEquals(new String[] { "Audrey", "Mathieu", "" }, e.actorFirst);
+		assertArrayEquals(new String[] { "Tautou", "Kassovitz",
+				"Zoë 漢字 🎬" }, e.actorLast);
+		assertArrayEquals(new String[] { "F", null, "M" }, e.actorGender);
+	}
+
+	@Test
+	public void emptyEntry() {
+		CatalogCache cache = new CatalogCache(1 << 20);
+		cache.put(1, new CatalogCache.Builder().build());
+		CatalogCache.Entry e = cache.get(1);
+		assertEquals(0, e.directorFirst.length);
+		assertEquals(0, e.actorFirst.length);
+	}
+
+	@Test
+	public void countsHitsAndMisses() {
+		CatalogCache cache = new CatalogCache(1 << 20);
+		assertNull(cache.get(1));
+		cache.put(1, people(2));
+		assertNotNull(cache.get(1));
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedWithinBudget() {
+		CatalogCache probe = new CatalogCache(1 << 20);
+		probe.put(1, people(3));
+		long one = probe.bytes();
+
+		CatalogCache cache = new CatalogCache(3 * one);
+		cache.put(1, people(3));
+		cache.put(2, people(3));
+		cache.put(3, people(3));
+		assertEquals(3 * one, cache.bytes());
+		/* 1 becomes the most recent, so 2 goes first */
+		assertNotNull(cache.get(1));
+		cache.put(4, people(3));
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(1));
+		assertNotNull(cache.get(3));
+		assertNotNull(cache.get(4));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.evictions());
+		assertEquals(3 * one, cache.bytes());
+	}
+
+	@Test
+	public void replacingKeepsTheByteCount() {
+		CatalogCache cache = new CatalogCache(1 << 20);
+		cache.put(1, people(1));
+		long small = cache.bytes();
+		cache.put(1, people(10));
+		assertTrue(cache.bytes() > small);
+		cache.put(1, people(1));
+		assertEquals(small, cache.bytes());
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.get(1).actorFirst.length);
+	}
+
+	/* an entry over the whole budget pushes the others out but is kept */
+	@Test
+	public void oversizedEntryStays() {
+		CatalogCache cache = new CatalogCache(200);
+		cache.put(1, people(1));
+		cache.put(2, people(50));
+		assertNull(cache.get(1));
+		assertEquals(50, cache.get(2).actorFirst.length);
+		assertEquals(1, cache.size());
+	}
+
+	/* slots freed by eviction are reused without mixing up movies */
+	@Test
+	public void manyMovies() {
+		CatalogCache probe = new CatalogCache(1 << 20);
+		probe.put(1, people(2));
+		long one = probe.bytes();
+		CatalogCache cache = new CatalogCache(100 * one);
+		for (int mid = 0; mid < 5000; mid++) {
+			cache.put(mid, people(2));
+		}
+		assertEquals(100, cache.size());
+		assertEquals(100 * one, cache.bytes());
+		for (int mid = 0; mid < 4900; mid++) {
+			assertNull(cache.get(mid));
+		}
+		for (int mid = 4900; mid < 5000; mid++) {
+			assertEquals("Actor1", cache.get(mid).actorFirst[1]);
+		}
+	}
+}
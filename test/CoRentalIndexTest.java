@@ -0,0 +1,151 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CoRentalIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void countsEachCustomerOnce() {
+		CoRentalIndex index = CoRentalIndex.empty();
+		assertTrue(index.rented(1, 10));
+		assertTrue(index.rented(1, 20));
+		assertFalse(index.rented(1, 20));
+		assertTrue(index.rented(2, 20));
+		assertTrue(index.rented(2, 10));
+		assertTrue(index.rented(2, 30));
+		assertEquals(2, index.customers());
+		assertEquals(3, index.movies());
+
+		int[] ids = new int[5];
+		int[] counts = new int[5];
+		assertEquals(2, index.similar(10, 5, ids, counts));
+		assertArrayEquals(new int[] { 20, 30 }, Arrays.copyOf(ids, 2));
+		assertArrayEquals(new int[] { 2, 1 }, Arrays.copyOf(counts, 2));
+		assertEquals(1, index.similar(20, 1, ids, counts));
+		assertEquals(10, ids[0]);
+		assertEquals(0, index.similar(99, 5, ids, counts));
+		assertEquals(0, index.similar(10, 0, ids, counts));
+	}
+
+	private static CoRentalIndex random(Map<Integer, Set<Integer>> rentals) {
+		Random random = new Random(390);
+		CoRentalIndex index = CoRentalIndex.empty();
+		for (int i = 0; i < 20000; i++) {
+			int cid = random.nextInt(500);
+			/* a few popular movies so there are ties and long lists */
+			int mid = random.nextInt(4) == 0 ? random.nextInt(10) : random
+					.nextInt(300);
+			index.rented(cid, mid);
+			Set<Integer> own = rentals.get(cid);
+			if (own == null) {
+				own = new HashSet<Integer>();
+				rentals.put(cid, own);
+			}
+			own.add(mid);
+		}
+		return index;
+	}
+
+	/* the top k against counting every pair */
+	private static void check(CoRentalIndex index,
+			Map<Integer, Set<Integer>> rentals) {
+		int[] ids = new int[20];
+		int[] counts = new int[20];
+		for (int mid = 0; mid < 300; mid += 7) {
+			final Map<Integer, Integer> together = new HashMap<Integer, Integer>();
+			for (Set<Integer> own : rentals.values()) {
+				if (own.contains(mid)) {
+					for (int other : own) {
+						if (other != mid) {
+							Integer c = together.get(other);
+							together.put(other, c == null ? 1 : c + 1);
+						}
+					}
+				}
+			}
+			Integer[] expected = together.keySet().toArray(
+					new Integer[together.size()]);
+			Arrays.sort(expected, new java.util.Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					int c = together.get(b) - together.get(a);
+					return c != 0 ? c : a - b;
+				}
+			});
+			int n = index.similar(mid, ids.length, ids, counts);
+			assertEquals(Math.min(ids.length, expected.length), n);
+			for (int i = 0; i < n; i++) {
+				assertEquals(expected[i].intValue(), ids[i]);
+				assertEquals(together.get(expected[i]).intValue(), counts[i]);
+			}
+		}
+	}
+
+	@Test
+	public void matchesCountingPairs() {
+		Map<Integer, Set<Integer>> rentals = new HashMap<Integer, Set<Integer>>();
+		check(random(rentals), rentals);
+	}
+
+	@Test
+	public void saveAndLoad() throws IOException {
+		Map<Integer, Set<Integer>> rentals = new HashMap<Integer, Set<Integer>>();
+		CoRentalIndex index = random(rentals);
+		File file = new File(folder.getRoot(), "corentals.bin");
+		index.save(file);
+		index.save(file);
+		CoRentalIndex loaded = CoRentalIndex.load(file);
+		assertEquals(index.customers(), loaded.customers());
+		assertEquals(index.movies(), loaded.movies());
+		check(loaded, rentals);
+		/* the loaded index keeps counting */
+		assertFalse(loaded.rented(rentals.keySet().iterator().next(),
+				rentals.values().iterator().next().iterator().next()));
+		assertTrue(loaded.rented(100000, 5));
+		rentals.put(100000, new HashSet<Integer>(Arrays.asList(5)));
+		check(loaded, rentals);
+	}
+
+	@Test
+	public void rejectsOtherFiles() throws IOException {
+		File file = folder.newFile();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(CoRentalIndex.MAGIC);
+		out.writeInt(CoRentalIndex.FORMAT_VERSION + 1);
+		out.close();
+		try {
+			CoRentalIndex.load(file);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("format"));
+		}
+		out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(0);
+		out.close();
+		try {
+			CoRentalIndex.load(file);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("not a co-rental index"));
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IntIntMapTest {
+
+	@Test
+	public void putGetAndAdd() {
+		IntIntMap m = new IntIntMap();
+		assertEquals(-1, m.get(7, -1));
+		m.put(7, 70);
+		m.put(-3, 30);
+		m.put(0, 0);
+		assertEquals(70, m.get(7, -1));
+		assertEquals(30, m.get(-3, -1));
+		assertTrue(m.containsKey(0));
+		assertEquals(3, m.size());
+		m.put(7, 71);
+		assertEquals(71, m.get(7, -1));
+		assertEquals(3, m.size());
+		assertEquals(5, m.add(9, 5));
+		assertEquals(8, m.add(9, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void reservedKey() {
+		new IntIntMap().put(Integer.MIN_VALUE, 1);
+	}
+
+	/* removing from the middle of a probe run must keep the rest reachable */
+	@Test
+	public void removeInsideProbeRuns() {
+		IntIntMap m = new IntIntMap(16);
+		int[] keys = new int[12];
+		for (int i = 0; i < keys.length; i++) {
+			/* multiples of a large power of two end up in few slots */
+			keys[i] = i << 20;
+			m.put(keys[i], i);
+		}
+		for (int i = 0; i < keys.length; i += 2) {
+			assertEquals(i, m.remove(keys[i], -1));
+		}
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i % 2 == 0 ? -1 : i, m.get(keys[i], -1));
+		}
+		assertEquals(keys.length / 2, m.size());
+		assertEquals(-1, m.remove(keys[0], -1));
+	}
+
+	@Test
+	public void matchesHashMap() {
+		Random random = new Random(390);
+		IntIntMap m = new IntIntMap(4);
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt(2000) - 1000;
+			switch (random.nextInt(3)) {
+			case 0:
+				m.put(key, i);
+				expected.put(key, i);
+				break;
+			case 1:
+				Integer old = expected.remove(key);
+				assertEquals(old == null ? -1 : old.intValue(), m.remove(key, -1));
+				break;
+			default:
+				Integer value = expected.get(key);
+				assertEquals(value == null ? -1 : value.intValue(), m.get(key, -1));
+			}
+		}
+		assertEquals(expected.size(), m.size());
+		int[] keys = m.keys();
+		Arrays.sort(keys);
+		int[] expectedKeys = new int[expected.size()];
+		int n = 0;
+		for (int key : expected.keySet()) {
+			expectedKeys[n++] = key;
+		}
+		Arrays.sort(expectedKeys);
+		assertArrayEquals(expectedKeys, keys);
+	}
+
+	@Test
+	public void forEachVisitsEveryEntry() {
+		IntIntMap m = new IntIntMap();
+		for (int i = 1; i <= 100; i++) {
+			m.put(i, i * 2);
+		}
+		final long[] sums = new long[2];
+		m.forEach(new IntIntMap.Visitor() {
+			public void visit(int key, int value) {
+				sums[0] += key;
+				sums[1] += value;
+			}
+		});
+		assertEquals(5050, sums[0]);
+		assertEquals(10100, sums[1]);
+	}
+
+	@Test
+	public void clear() {
+		IntIntMap m = new IntIntMap();
+		m.put(1, 1);
+		m.clear();
+		assertEquals(0, m.size());
+		assertFalse(m.containsKey(1));
+		m.put(1, 2);
+		assertEquals(2, m.get(1, -1));
+	}
+}
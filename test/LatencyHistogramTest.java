@@ -0,0 +1,83 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	private static final int BUCKETS = LatencyHistogram.index(Long.MAX_VALUE) + 1;
+
+	/* the buckets cover every long once, in order */
+	@Test
+	public void bucketsAreContiguous() {
+		assertEquals(0, LatencyHistogram.lowest(0));
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.highest(BUCKETS - 1));
+		for (int i = 0; i < BUCKETS; i++) {
+			long low = LatencyHistogram.lowest(i);
+			long high = LatencyHistogram.highest(i);
+			assertTrue(low <= high);
+			assertEquals(i, LatencyHistogram.index(low));
+			assertEquals(i, LatencyHistogram.index(high));
+			if (i + 1 < BUCKETS) {
+				assertEquals(high + 1, LatencyHistogram.lowest(i + 1));
+			}
+		}
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		for (int v = 0; v < 32; v++) {
+			assertEquals(v, LatencyHistogram.index(v));
+			assertEquals(v, LatencyHistogram.highest(v));
+		}
+	}
+
+	@Test
+	public void bucketsAreWithinASixteenth() {
+		for (int i = 32; i < BUCKETS; i++) {
+			long low = LatencyHistogram.lowest(i);
+			long high = LatencyHistogram.highest(i);
+			assertTrue(i + ": " + low + ".." + high, high - low <= low / 16);
+		}
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.percentile(0.5));
+		for (int v = 1; v <= 1000; v++) {
+			h.record(v);
+		}
+		assertEquals(1000, h.getCount());
+		assertEquals(1000, h.getMax());
+		assertEquals(500.5, h.getMean(), 1e-9);
+		long p50 = h.percentile(0.5);
+		assertTrue(p50 >= 500 && p50 <= 500 + 500 / 16);
+		long p99 = h.percentile(0.99);
+		assertTrue(p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, h.percentile(1));
+		assertEquals(1, h.percentile(0));
+	}
+
+	@Test
+	public void negativeAndHugeValues() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(0, h.percentile(1));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, h.percentile(1));
+		assertEquals(Long.MAX_VALUE, h.getMax());
+	}
+
+	@Test
+	public void reset() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(100);
+		h.reset();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.percentile(0.5));
+		h.record(3);
+		assertEquals(3, h.percentile(0.5));
+	}
+}
@@ -0,0 +1,98 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * the rental history against a real database, skipped without a
+ * dbconn.config or when its databases can't be reached
+ */
+public class QueryHistoryTest {
+
+	private static Connection connect(Properties props, String url) {
+		try {
+			return DriverManager.getConnection(props.getProperty(url),
+					props.getProperty("postgreSQLUser"),
+					props.getProperty("postgreSQLPassword"));
+		} catch (SQLException e) {
+			assumeNoException(e);
+			return null;
+		}
+	}
+
+	/* a movie in stock that nobody is renting */
+	private static int freeMovie(Properties props) throws SQLException {
+		Set<Integer> rented = new HashSet<Integer>();
+		Connection customer = connect(props, "customerUrl");
+		try {
+			ResultSet rs = customer.createStatement().executeQuery(
+					"SELECT movie_id FROM activerental");
+			while (rs.next()) {
+				rented.add(rs.getInt(1));
+			}
+		} finally {
+			customer.close();
+		}
+		Connection imdb = connect(props, "imdbUrl");
+		try {
+			ResultSet rs = imdb.createStatement().executeQuery(
+					"SELECT id FROM movie ORDER BY id LIMIT 1000");
+			while (rs.next()) {
+				if (!rented.contains(rs.getInt(1))) {
+					return rs.getInt(1);
+				}
+			}
+		} finally {
+			imdb.close();
+		}
+		assumeTrue(false);
+		return -1;
+	}
+
+	@Test
+	public void firstPageShowsTheLastReturn() throws Exception {
+		File config = new File("dbconn.config");
+		assumeTrue(config.exists());
+		Properties props = new Properties();
+		props.load(new FileInputStream(config));
+		Class.forName(props.getProperty("postgreSQLDriver"));
+		int mid = freeMovie(props);
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(buffer, true, "UTF-8");
+		Query q = new Query();
+		q.setOutput(out, out);
+		q.openConnection();
+		try {
+			q.setOutputFormat(RowWriter.Format.TSV);
+			int cid = q.transaction_login("danton", "ghi");
+			assumeTrue(cid >= 0);
+			q.transaction_rent(cid, mid);
+			q.transaction_return(cid, mid);
+			buffer.reset();
+			q.transaction_history(cid, 5, false);
+			String page = buffer.toString("UTF-8");
+			assertTrue(page, page.startsWith("history\t"));
+			assertTrue(page, page.contains("\t" + mid + "\t"));
+			/* and the keyset of the next page binds too */
+			q.transaction_history(cid, 1, false);
+			q.transaction_history(cid, 1, true);
+		} finally {
+			q.closeConnection();
+		}
+	}
+}
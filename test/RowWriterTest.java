@@ -0,0 +1,105 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class RowWriterTest {
+	private static final RowWriter.Template MOVIE = RowWriter.template(
+			"movie", "ID: {id}\nName: {name}\n");
+
+	private static String write(RowWriter.Format format, int id, String name)
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RowWriter w = new RowWriter(out, format);
+		w.text("header\n");
+		w.begin(MOVIE).field(id).field(name).end();
+		w.flush();
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void text() throws Exception {
+		assertEquals("header\nID: 12\nName: Star\tWars\n",
+				write(RowWriter.Format.TEXT, 12, "Star\tWars"));
+		assertEquals("header\nID: -7\nName: null\n",
+				write(RowWriter.Format.TEXT, -7, null));
+	}
+
+	@Test
+	public void tsvEscapesAsCopyReadsIt() throws Exception {
+		assertEquals("movie\t12\ta\\tb\\nc\\rd\\\\e\"f\n",
+				write(RowWriter.Format.TSV, 12, "a\tb\nc\rd\\e\"f"));
+		assertEquals("movie\t0\t\\N\n", write(RowWriter.Format.TSV, 0, null));
+		assertEquals("movie\t1\t\\b\\f\\v\\x01\\x1f\n",
+				write(RowWriter.Format.TSV, 1, "\b\f\u000b\u0001\u001f"));
+	}
+
+	@Test
+	public void jsonEscapes() throws Exception {
+		assertEquals(
+				"{\"type\":\"movie\",\"id\":3,\"name\":\"say \\\"hi\\\"\\\\\\n\"}\n",
+				write(RowWriter.Format.JSON, 3, "say \"hi\"\\\n"));
+		assertEquals("{\"type\":\"movie\",\"id\":3,\"name\":null}\n",
+				write(RowWriter.Format.JSON, 3, null));
+		assertEquals(
+				"{\"type\":\"movie\",\"id\":1,\"name\":\"\\b\\f\\u000b\\u0001\\u001f\"}\n",
+				write(RowWriter.Format.JSON, 1, "\b\f\u000b\u0001\u001f"));
+	}
+
+	@Test
+	public void ints() throws Exception {
+		assertEquals("movie\t-2147483648\tx\n",
+				write(RowWriter.Format.TSV, Integer.MIN_VALUE, "x"));
+		assertEquals("movie\t2147483647\tx\n",
+				write(RowWriter.Format.TSV, Integer.MAX_VALUE, "x"));
+		assertEquals("movie\t1000000\tx\n",
+				write(RowWriter.Format.TSV, 1000000, "x"));
+	}
+
+	@Test
+	public void utf8() throws Exception {
+		String name = "Amélie 漢字 🎬";
+		assertEquals("movie\t1\t" + name + "\n",
+				write(RowWriter.Format.TSV, 1, name));
+		/* a surrogate without its pair can't be encoded */
+		assertEquals("movie\t1\ta?b\n",
+				write(RowWriter.Format.TSV, 1, "a\ud83cb"));
+	}
+
+	/* values bigger than the buffer are written whole */
+	@Test
+	public void longValues() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		String name = sb.toString();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RowWriter w = new RowWriter(out, RowWriter.Format.TSV);
+		for (int i = 0; i < 3; i++) {
+			w.begin(MOVIE).field(i).field(name).end();
+		}
+		w.flush();
+		assertEquals("movie\t0\t" + name + "\nmovie\t1\t" + name
+				+ "\nmovie\t2\t" + name + "\n", out.toString("UTF-8"));
+	}
+
+	@Test
+	public void writeErrorsAreRemembered() {
+		RowWriter w = new RowWriter(new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("closed");
+			}
+		}, RowWriter.Format.TEXT);
+		w.begin(MOVIE).field(1).field("x").end();
+		assertFalse(w.checkError());
+		w.flush();
+		assertTrue(w.checkError());
+	}
+}
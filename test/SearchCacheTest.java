@@ -0,0 +1,166 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class SearchCacheTest {
+
+	private static SearchCache.Entry result(int... ids) {
+		String[] names = new String[ids.length];
+		String[] years = new String[ids.length];
+		CatalogCache.Entry[] people = new CatalogCache.Entry[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			names[i] = "movie " + ids[i];
+			years[i] = "1999";
+			people[i] = new CatalogCache.Builder().build();
+		}
+		return new SearchCache.Entry(ids, names, years, people);
+	}
+
+	private static class Counting implements SearchCache.Loader {
+		final AtomicInteger loads = new AtomicInteger();
+
+		public SearchCache.Entry load(String term) {
+			loads.incrementAndGet();
+			return result(term.length());
+		}
+	}
+
+	@Test
+	public void normalize() {
+		assertEquals("star wars", SearchCache.normalize("  Star WARS "));
+		assertEquals("title", SearchCache.normalize("TITLE"));
+	}
+
+	@Test
+	public void sameTermLoadsOnce() throws Exception {
+		SearchCache cache = new SearchCache(60000, 1 << 20, 100);
+		Counting loader = new Counting();
+		SearchCache.Entry first = cache.get("Matrix", loader);
+		assertSame(first, cache.get(" matrix", loader));
+		assertEquals(1, loader.loads.get());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void expiredEntriesReload() throws Exception {
+		SearchCache cache = new SearchCache(0, 1 << 20, 100);
+		Counting loader = new Counting();
+		cache.get("matrix", loader);
+		cache.get("matrix", loader);
+		assertEquals(2, loader.loads.get());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void tooLargeIsCached() throws Exception {
+		SearchCache cache = new SearchCache(60000, 1 << 20, 100);
+		final AtomicInteger loads = new AtomicInteger();
+		SearchCache.Loader loader = new SearchCache.Loader() {
+			public SearchCache.Entry load(String term) {
+				loads.incrementAndGet();
+				return SearchCache.tooLarge();
+			}
+		};
+		assertTrue(cache.get("the", loader).isTooLarge());
+		assertTrue(cache.get("the", loader).isTooLarge());
+		assertEquals(1, loads.get());
+	}
+
+	@Test
+	public void failuresAreNotCached() throws Exception {
+		SearchCache cache = new SearchCache(60000, 1 << 20, 100);
+		SearchCache.Loader failing = new SearchCache.Loader() {
+			public SearchCache.Entry load(String term) throws Exception {
+				throw new IllegalStateException("down");
+			}
+		};
+		try {
+			cache.get("matrix", failing);
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("down", e.getMessage());
+		}
+		assertEquals(0, cache.size());
+		Counting loader = new Counting();
+		cache.get("matrix", loader);
+		assertEquals(1, loader.loads.get());
+	}
+
+	@Test
+	public void staysWithinBudget() throws Exception {
+		SearchCache probe = new SearchCache(60000, 1 << 20, 100);
+		SearchCache.Loader loader = new SearchCache.Loader() {
+			public SearchCache.Entry load(String term) {
+				return result(1, 2, 3);
+			}
+		};
+		probe.get("a", loader);
+		long one = result(1, 2, 3).bytes;
+
+		SearchCache cache = new SearchCache(60000, 2 * one, 100);
+		Counting counting = new Counting();
+		cache.get("a", loader);
+		cache.get("b", loader);
+		/* a becomes the most recent, so b goes when c comes in */
+		cache.get("a", loader);
+		cache.get("c", loader);
+		assertEquals(2, cache.size());
+		cache.get("a", counting);
+		cache.get("c", counting);
+		assertEquals(0, counting.loads.get());
+		cache.get("b", counting);
+		assertEquals(1, counting.loads.get());
+	}
+
+	/* concurrent searches for the same term share one load */
+	@Test
+	public void concurrentCallersShareTheLoad() throws Exception {
+		final SearchCache cache = new SearchCache(60000, 1 << 20, 100);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger();
+		final SearchCache.Loader slow = new SearchCache.Loader() {
+			public SearchCache.Entry load(String term) throws Exception {
+				loads.incrementAndGet();
+				started.countDown();
+				release.await();
+				return result(7);
+			}
+		};
+		final SearchCache.Entry[] seen = new SearchCache.Entry[4];
+		Thread[] threads = new Thread[seen.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						seen[n] = cache.get("matrix", slow);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].start();
+			if (i == 0) {
+				started.await();
+			}
+		}
+		/* give the others time to find the running load */
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(1, loads.get());
+		for (SearchCache.Entry e : seen) {
+			assertSame(seen[0], e);
+		}
+	}
+}
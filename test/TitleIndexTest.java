@@ -0,0 +1,90 @@
+/* Group E CS390DB Fall 2013 */
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TitleIndexTest {
+	private static final int[] IDS = { 1, 5, 9, 12, 40 };
+	private static final String[] NAMES = { "Star Wars", "The Matrix",
+			"Return of the King", null, "Amélie" };
+
+	@Test
+	public void findsSubstringsIgnoringCase() {
+		TitleIndex index = TitleIndex.build(IDS, NAMES);
+		assertArrayEquals(new int[] { 1 }, index.search("star"));
+		assertArrayEquals(new int[] { 5, 9 }, index.search("THE"));
+		assertArrayEquals(new int[] { 9 }, index.search("rn of th"));
+		assertArrayEquals(new int[] { 40 }, index.search("AMÉ"));
+		assertArrayEquals(new int[0], index.search("xyz"));
+		assertArrayEquals(new int[0], index.search("star wars!"));
+	}
+
+	@Test
+	public void shortTermsCheckEveryTitle() {
+		TitleIndex index = TitleIndex.build(IDS, NAMES);
+		assertArrayEquals(new int[] { 1, 5, 9 }, index.search("r"));
+		assertArrayEquals(new int[] { 1, 5, 9, 12, 40 }, index.search(""));
+	}
+
+	@Test
+	public void wildcardsAreNotAnswered() {
+		TitleIndex index = TitleIndex.build(IDS, NAMES);
+		assertNull(index.search("star%"));
+		assertNull(index.search("st_r"));
+		assertNull(index.search("a\\b"));
+	}
+
+	@Test
+	public void knowsItsMovies() {
+		TitleIndex index = TitleIndex.build(IDS, NAMES);
+		assertEquals(5, index.size());
+		assertTrue(index.hasMovie(12));
+		assertFalse(index.hasMovie(13));
+	}
+
+	/* the posting list intersection against checking every title */
+	@Test
+	public void matchesScan() {
+		Random random = new Random(390);
+		int n = 3000;
+		int[] ids = new int[n];
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = i * 3 + 1;
+			StringBuilder sb = new StringBuilder();
+			int words = 1 + random.nextInt(4);
+			for (int w = 0; w < words; w++) {
+				if (w > 0) {
+					sb.append(' ');
+				}
+				sb.append(DataGenerator.WORDS[random.nextInt(DataGenerator.WORDS.length)]);
+			}
+			names[i] = random.nextBoolean() ? sb.toString() : sb.toString()
+					.toUpperCase(Locale.ROOT);
+		}
+		TitleIndex index = TitleIndex.build(ids, names);
+		for (int q = 0; q < 500; q++) {
+			String name = names[random.nextInt(n)].toLowerCase(Locale.ROOT);
+			int from = random.nextInt(name.length());
+			String term = name.substring(from,
+					from + 1 + random.nextInt(Math.min(12, name.length() - from)));
+			int[] expected = new int[n];
+			int found = 0;
+			for (int i = 0; i < n; i++) {
+				if (names[i].toLowerCase(Locale.ROOT).contains(term)) {
+					expected[found++] = ids[i];
+				}
+			}
+			assertArrayEquals(term, Arrays.copyOf(expected, found),
+					index.search(term));
+		}
+	}
+}